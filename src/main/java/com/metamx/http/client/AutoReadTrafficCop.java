@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.metamx.http.client.response.TrafficCop;
+import io.netty.channel.Channel;
+
+/**
+ * Pauses reads by turning off the channel's auto-read. Nothing is buffered on the client's side, so release is a
+ * no-op. Once closed, auto-read is back on and later pauses are ignored, so a pooled channel is never left unread.
+ *
+ * On an HTTP/2 stream channel, pausing stops only that stream: its data is no longer consumed, so its flow control
+ * window fills up and the server stops sending on it, while other streams on the connection carry on.
+ */
+class AutoReadTrafficCop implements TrafficCop
+{
+  private final Channel channel;
+
+  // Guarded by "this"
+  private boolean closed = false;
+
+  AutoReadTrafficCop(Channel channel)
+  {
+    this.channel = channel;
+  }
+
+  @Override
+  public void release(long bytes)
+  {
+    // Nothing buffered
+  }
+
+  @Override
+  public synchronized void pause()
+  {
+    if (!closed) {
+      channel.config().setAutoRead(false);
+    }
+  }
+
+  @Override
+  public synchronized void resume()
+  {
+    channel.config().setAutoRead(true);
+  }
+
+  synchronized void close()
+  {
+    closed = true;
+    channel.config().setAutoRead(true);
+  }
+}
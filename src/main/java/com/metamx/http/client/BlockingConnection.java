@@ -0,0 +1,240 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.base.Preconditions;
+import com.metamx.common.logger.Logger;
+import com.metamx.http.client.pool.ResourceFactory;
+import org.jboss.netty.channel.ChannelException;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+
+/**
+ * A pooled connection for {@link BlockingHttpClient}. Connects on first use, from the thread making the request, so
+ * the pool can create as many as it likes up front without touching the network.
+ */
+class BlockingConnection
+{
+  private static final Logger log = new Logger(BlockingConnection.class);
+
+  // Same as Netty's default connectTimeoutMillis
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final long DEFAULT_SSL_HANDSHAKE_TIMEOUT = 10000L;
+
+  private final String host;
+  private final int port;
+  private final boolean https;
+  private final HttpClientConfig config;
+
+  // Only touched by the thread holding the connection
+  private Socket socket = null;
+  private InputStream in = null;
+  private OutputStream out = null;
+  private boolean reused = false;
+
+  private volatile boolean closed = false;
+
+  BlockingConnection(String poolKey, HttpClientConfig config)
+  {
+    final URL url;
+    try {
+      url = new URL(poolKey);
+    }
+    catch (MalformedURLException e) {
+      throw new RuntimeException(e);
+    }
+
+    this.host = url.getHost();
+    this.port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    this.https = "https".equals(url.getProtocol());
+    this.config = config;
+
+    if (https) {
+      Preconditions.checkState(config.getSslContext() != null, "No sslContext set, cannot do https");
+    }
+  }
+
+  /**
+   * Connects, unless already connected.
+   *
+   * @return true if the connection was used by an earlier request, in which case the server may have closed it in
+   * the meantime
+   */
+  boolean open() throws IOException
+  {
+    if (socket != null) {
+      return reused;
+    }
+
+    log.info("Connecting: %s:%s", host, port);
+    final Socket plainSocket = new Socket();
+    try {
+      plainSocket.setKeepAlive(true);
+      plainSocket.setTcpNoDelay(config.isTcpNoDelay());
+      if (config.getSendBufferSize() > 0) {
+        plainSocket.setSendBufferSize(config.getSendBufferSize());
+      }
+      if (config.getReceiveBufferSize() > 0) {
+        plainSocket.setReceiveBufferSize(config.getReceiveBufferSize());
+      }
+      try {
+        plainSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+      }
+      catch (IOException e) {
+        throw new ChannelException(String.format("Failed to connect to host[%s:%s]", host, port), e);
+      }
+
+      if (https) {
+        socket = handshake(plainSocket);
+      } else {
+        socket = plainSocket;
+      }
+      in = socket.getInputStream();
+      out = socket.getOutputStream();
+      return false;
+    }
+    catch (IOException | RuntimeException e) {
+      socket = null;
+      closeQuietly(plainSocket);
+      throw e;
+    }
+  }
+
+  InputStream getInputStream()
+  {
+    return in;
+  }
+
+  OutputStream getOutputStream()
+  {
+    return out;
+  }
+
+  void setReadTimeout(long readTimeoutMillis) throws IOException
+  {
+    socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, Math.max(readTimeoutMillis, 0)));
+  }
+
+  /**
+   * Called once a request has used the connection and left it ready for another.
+   */
+  void reusable()
+  {
+    reused = true;
+  }
+
+  /**
+   * Whether the connection hasn't been closed on this side. A server may have closed it without the client noticing,
+   * which only shows once it's used; {@link BlockingHttpClient} retries requests that fail that way.
+   */
+  boolean isOpen()
+  {
+    return !closed && (socket == null || !socket.isClosed());
+  }
+
+  /**
+   * Drops the socket, leaving the connection to connect again on the next {@link #open()}.
+   */
+  void disconnect()
+  {
+    if (socket != null) {
+      closeQuietly(socket);
+      socket = null;
+      in = null;
+      out = null;
+      reused = false;
+    }
+  }
+
+  void close()
+  {
+    closed = true;
+    if (socket != null) {
+      closeQuietly(socket);
+    }
+  }
+
+  private Socket handshake(Socket plainSocket) throws IOException
+  {
+    final SSLSocket sslSocket = (SSLSocket) config.getSslContext()
+                                                  .getSocketFactory()
+                                                  .createSocket(plainSocket, host, port, true);
+    final SSLParameters sslParameters = new SSLParameters();
+    sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+    sslSocket.setSSLParameters(sslParameters);
+    sslSocket.setUseClientMode(true);
+
+    final long handshakeTimeout = config.getSslHandshakeTimeout() == null
+                                  ? DEFAULT_SSL_HANDSHAKE_TIMEOUT
+                                  : config.getSslHandshakeTimeout().getMillis();
+    try {
+      sslSocket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, handshakeTimeout));
+      sslSocket.startHandshake();
+    }
+    catch (IOException e) {
+      closeQuietly(sslSocket);
+      throw new ChannelException(String.format("Failed to handshake with host[%s:%s]", host, port), e);
+    }
+    return sslSocket;
+  }
+
+  private static void closeQuietly(Socket socket)
+  {
+    try {
+      socket.close();
+    }
+    catch (IOException e) {
+      // ignore
+    }
+  }
+
+  static class Factory implements ResourceFactory<String, BlockingConnection>
+  {
+    private final HttpClientConfig config;
+
+    Factory(HttpClientConfig config)
+    {
+      this.config = config;
+    }
+
+    @Override
+    public BlockingConnection generate(String key)
+    {
+      return new BlockingConnection(key, config);
+    }
+
+    @Override
+    public boolean isGood(BlockingConnection resource)
+    {
+      return resource.isOpen();
+    }
+
+    @Override
+    public void close(BlockingConnection resource)
+    {
+      resource.close();
+    }
+  }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.metamx.common.lifecycle.LifecycleStart;
+import com.metamx.common.lifecycle.LifecycleStop;
+import com.metamx.common.logger.Logger;
+import com.metamx.http.client.io.ExactLengthInputStream;
+import com.metamx.http.client.pool.ResourceContainer;
+import com.metamx.http.client.pool.ResourcePool;
+import com.metamx.http.client.pool.ResourcePoolConfig;
+import com.metamx.http.client.response.ClientResponse;
+import com.metamx.http.client.response.HttpResponseHandler;
+import com.metamx.http.client.response.StreamingResponseHandler;
+import com.metamx.http.client.response.TrafficCop;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpContentDecompressor;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
+import org.jboss.netty.handler.timeout.ReadTimeoutException;
+import org.joda.time.Duration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * HttpClient that does blocking socket I/O, one request per task on a caller-supplied executor, with its own pool of
+ * connections. Meant to run on an executor with cheap threads, like one from
+ * Executors.newVirtualThreadPerTaskExecutor() on JDK 21, where it costs a blocked virtual thread per request instead
+ * of NIO selectors and I/O threads. Requests and responses are encoded and decoded with the same Netty codecs as
+ * {@link NettyHttpClient}, and response handlers are called the same way, on the request's task.
+ *
+ * The config's numConnections, SSL, socket, compression, read timeout and response body size settings apply; the
+ * ones for Netty's threads, timer, buffer budget and executors don't.
+ *
+ * A request that fails on a pooled connection before any of its response arrives is sent once more on a new
+ * connection, since the server most likely closed the old one while it sat idle. Non-idempotent requests, which the
+ * server may already have acted on, and requests with a body that can only be read once are not retried.
+ *
+ * Waiting for a paused handler to resume doesn't pin a virtual thread to its carrier. Waiting for a connection from
+ * the pool, when all of a key's connections are in use, still does, since {@link ResourcePool} blocks in a
+ * synchronized wait.
+ */
+public class BlockingHttpClient extends AbstractHttpClient
+{
+  private static final Logger log = new Logger(BlockingHttpClient.class);
+
+  private static final int READ_BUFFER_SIZE = 8192;
+  private static final int STREAMING_CONTENT_CHUNK_SIZE = 8192;
+
+  private final ResourcePool<String, BlockingConnection> pool;
+  private final Executor executor;
+  private final HttpClientConfig.CompressionCodec compressionCodec;
+  private final Duration defaultReadTimeout;
+  private final long defaultMaxResponseBodySize;
+
+  public BlockingHttpClient(HttpClientConfig config, Executor executor)
+  {
+    this.pool = new ResourcePool<>(
+        new BlockingConnection.Factory(config),
+        new ResourcePoolConfig(config.getNumConnections())
+    );
+    this.executor = Preconditions.checkNotNull(executor, "executor");
+    this.compressionCodec = Preconditions.checkNotNull(config.getCompressionCodec());
+    this.defaultReadTimeout = config.getReadTimeout();
+    this.defaultMaxResponseBodySize = config.getMaxResponseBodySize();
+  }
+
+  @LifecycleStart
+  public void start()
+  {
+  }
+
+  @LifecycleStop
+  public void stop()
+  {
+    pool.close();
+  }
+
+  @Override
+  public <Intermediate, Final> ListenableFuture<Final> go(
+      final Request request,
+      final HttpResponseHandler<Intermediate, Final> handler,
+      final Duration requestReadTimeout
+  )
+  {
+    final SettableFuture<Final> retVal = SettableFuture.create();
+    try {
+      executor.execute(
+          new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              new Exchange<>(request, handler, requestReadTimeout, retVal).run();
+            }
+          }
+      );
+    }
+    catch (RejectedExecutionException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    return retVal;
+  }
+
+  /**
+   * One request and its response, run start to finish on one thread.
+   */
+  private class Exchange<Intermediate, Final> implements TrafficCop
+  {
+    private final Request request;
+    private final HttpResponseHandler<Intermediate, Final> handler;
+    private final SettableFuture<Final> retVal;
+    private final String requestDesc;
+    private final long readTimeout;
+    private final long maxResponseBodySize;
+
+    private ClientResponse<Intermediate> response = null;
+    private HttpResponse httpResponse = null;
+    private long responseBodyBytes = 0;
+    private boolean inHandler = false;
+    private boolean done = false;
+    private boolean responseStarted = false;
+
+    // A lock rather than synchronized, so a virtual thread waiting on it doesn't pin its carrier.
+    private final Lock pauseLock = new ReentrantLock();
+    private final Condition resumed = pauseLock.newCondition();
+
+    // Guarded by "pauseLock"
+    private boolean paused = false;
+
+    Exchange(
+        Request request,
+        HttpResponseHandler<Intermediate, Final> handler,
+        Duration requestReadTimeout,
+        SettableFuture<Final> retVal
+    )
+    {
+      this.request = request;
+      this.handler = handler;
+      this.retVal = retVal;
+      this.requestDesc = String.format("%s %s", request.getMethod(), request.getUrl());
+
+      if (requestReadTimeout != null) {
+        this.readTimeout = requestReadTimeout.getMillis();
+      } else if (defaultReadTimeout != null) {
+        this.readTimeout = defaultReadTimeout.getMillis();
+      } else {
+        this.readTimeout = 0;
+      }
+      this.maxResponseBodySize = request.getMaxResponseBodySize() < 0
+                                 ? defaultMaxResponseBodySize
+                                 : request.getMaxResponseBodySize();
+    }
+
+    void run()
+    {
+      if (log.isDebugEnabled()) {
+        log.debug("[%s] starting", requestDesc);
+      }
+
+      final ResourceContainer<BlockingConnection> connectionContainer;
+      try {
+        connectionContainer = pool.take(NettyHttpClient.getPoolKey(request.getUrl()));
+      }
+      catch (Exception e) {
+        retVal.setException(e);
+        return;
+      }
+      if (connectionContainer == null) {
+        retVal.setException(new ChannelException("Client is closed"));
+        return;
+      }
+
+      final BlockingConnection connection = connectionContainer.get();
+      boolean reusable = false;
+      try {
+        final boolean reused = connection.open();
+        try {
+          reusable = exchange(connection);
+        }
+        catch (IOException | ChannelException e) {
+          if (!reused || responseStarted || e instanceof ReadTimeoutException || !isReplayable()) {
+            throw e;
+          }
+          if (log.isDebugEnabled()) {
+            log.debug(e, "[%s] Reused connection failed before any response, retrying on a new one", requestDesc);
+          }
+          connection.disconnect();
+          connection.open();
+          reusable = exchange(connection);
+        }
+      }
+      catch (Throwable t) {
+        fail(t);
+      }
+      finally {
+        if (reusable) {
+          connection.reusable();
+        } else {
+          connection.close();
+        }
+        connectionContainer.returnResource();
+      }
+    }
+
+    /**
+     * @return true if the connection can be used for another request
+     */
+    private boolean exchange(BlockingConnection connection) throws Exception
+    {
+      connection.setReadTimeout(readTimeout);
+      writeRequest(connection.getOutputStream());
+      return readResponse(connection.getInputStream());
+    }
+
+    /**
+     * Whether the request can be written again. The server may already have acted on it, so it must be idempotent, and
+     * streaming content is only known to be re-readable if it's a file.
+     */
+    private boolean isReplayable()
+    {
+      return HttpPipelines.IDEMPOTENT_METHODS.contains(request.getMethod())
+             && (!request.hasStreamingContent() || request.hasFileContent());
+    }
+
+    private void writeRequest(OutputStream out) throws IOException
+    {
+      final HttpRequest httpRequest = NettyHttpClient.toHttpRequest(request, compressionCodec);
+      final EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<>(new HttpRequestEncoder());
+      encoder.offer(httpRequest);
+      flushEncoded(encoder, out);
+
+      if (httpRequest.isChunked()) {
+        final long length = request.getStreamingContentLength();
+        final InputStream source = request.getStreamingContent().openStream();
+        try (InputStream in = length < 0 ? source : new ExactLengthInputStream(source, length)) {
+          final byte[] buf = new byte[STREAMING_CONTENT_CHUNK_SIZE];
+          int n;
+          while ((n = in.read(buf)) >= 0) {
+            if (n > 0) {
+              encoder.offer(new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(buf, 0, n)));
+              flushEncoded(encoder, out);
+            }
+          }
+        }
+        encoder.offer(HttpChunk.LAST_CHUNK);
+        flushEncoded(encoder, out);
+      }
+
+      out.flush();
+    }
+
+    private void flushEncoded(EncoderEmbedder<ChannelBuffer> encoder, OutputStream out) throws IOException
+    {
+      ChannelBuffer buffer;
+      while ((buffer = encoder.poll()) != null) {
+        buffer.getBytes(buffer.readerIndex(), out, buffer.readableBytes());
+      }
+    }
+
+    /**
+     * @return true if the connection can be used for another request
+     */
+    private boolean readResponse(InputStream in) throws Exception
+    {
+      final DecoderEmbedder<Object> decoder = new DecoderEmbedder<>(
+          new HttpResponseDecoder()
+          {
+            @Override
+            protected boolean isContentAlwaysEmpty(HttpMessage msg)
+            {
+              return HttpMethod.HEAD.equals(request.getMethod()) || super.isContentAlwaysEmpty(msg);
+            }
+          },
+          new HttpContentDecompressor()
+      );
+
+      boolean eof = false;
+      while (!done) {
+        if (eof) {
+          throw new ChannelException("Channel disconnected");
+        }
+        awaitResumed();
+
+        // A fresh buffer for each read, since the decoder may hand out slices of it.
+        final byte[] buf = new byte[READ_BUFFER_SIZE];
+        final int n;
+        try {
+          n = in.read(buf);
+        }
+        catch (SocketTimeoutException e) {
+          throw new ReadTimeoutException(e);
+        }
+        if (n > 0) {
+          responseStarted = true;
+        }
+
+        try {
+          if (n < 0) {
+            eof = true;
+            decoder.finish();
+          } else {
+            decoder.offer(ChannelBuffers.wrappedBuffer(buf, 0, n));
+          }
+        }
+        catch (CodecEmbedderException e) {
+          throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+
+        Object msg;
+        while (!done && (msg = decoder.poll()) != null) {
+          handleMessage(msg);
+        }
+      }
+
+      return !eof && HttpHeaders.isKeepAlive(httpResponse) && decoder.poll() == null;
+    }
+
+    private void handleMessage(Object msg) throws Exception
+    {
+      if (msg instanceof HttpResponse) {
+        httpResponse = (HttpResponse) msg;
+        if (log.isDebugEnabled()) {
+          log.debug("[%s] Got response: %s", requestDesc, httpResponse.getStatus());
+        }
+
+        checkResponseBodySize(httpResponse.getContent());
+        inHandler = true;
+        if (handler instanceof StreamingResponseHandler) {
+          response = ((StreamingResponseHandler<Intermediate, Final>) handler).handleResponse(httpResponse, this);
+        } else {
+          response = handler.handleResponse(httpResponse);
+        }
+        inHandler = false;
+        if (response.isFinished()) {
+          retVal.set((Final) response.getObj());
+        }
+
+        if (!httpResponse.isChunked()) {
+          finishRequest();
+        }
+      } else if (msg instanceof HttpChunk) {
+        final HttpChunk httpChunk = (HttpChunk) msg;
+        if (httpChunk.isLast()) {
+          finishRequest();
+        } else {
+          checkResponseBodySize(httpChunk.getContent());
+          inHandler = true;
+          response = handler.handleChunk(response, httpChunk);
+          inHandler = false;
+          if (response.isFinished() && !retVal.isDone()) {
+            retVal.set((Final) response.getObj());
+          }
+        }
+      } else {
+        throw new IllegalStateException(String.format("Unknown message type[%s]", msg.getClass()));
+      }
+    }
+
+    private void finishRequest()
+    {
+      inHandler = true;
+      final ClientResponse<Final> finalResponse = handler.done(response);
+      inHandler = false;
+      if (!finalResponse.isFinished()) {
+        throw new IllegalStateException(
+            String.format(
+                "[%s] Didn't get a completed ClientResponse Object from [%s]",
+                requestDesc,
+                handler.getClass()
+            )
+        );
+      }
+      if (!retVal.isDone()) {
+        retVal.set(finalResponse.getObj());
+      }
+      done = true;
+    }
+
+    private void checkResponseBodySize(ChannelBuffer content)
+    {
+      responseBodyBytes += content.readableBytes();
+      if (maxResponseBodySize > 0 && responseBodyBytes > maxResponseBodySize) {
+        throw new ResponseTooLargeException(maxResponseBodySize);
+      }
+    }
+
+    /**
+     * Fails the request the way {@link NettyHttpClient} would: a handler that throws gets a null result, anything
+     * else fails the future.
+     */
+    private void fail(Throwable t)
+    {
+      if (inHandler) {
+        log.warn(t, "[%s] Exception thrown while processing message, closing connection.", requestDesc);
+        if (!retVal.isDone()) {
+          retVal.set(null);
+        }
+      } else {
+        if (log.isDebugEnabled()) {
+          log.debug(t, "[%s] Caught exception", requestDesc);
+        }
+        retVal.setException(t);
+      }
+
+      // response is non-null if we received initial chunk and then exception occurs
+      if (response != null) {
+        try {
+          handler.exceptionCaught(response, t);
+        }
+        catch (Exception e) {
+          log.warn(e, "[%s] Exception thrown by handler's exceptionCaught", requestDesc);
+        }
+      }
+    }
+
+    @Override
+    public void release(long bytes)
+    {
+      // No buffer budget
+    }
+
+    @Override
+    public void pause()
+    {
+      pauseLock.lock();
+      try {
+        paused = true;
+      }
+      finally {
+        pauseLock.unlock();
+      }
+    }
+
+    @Override
+    public void resume()
+    {
+      pauseLock.lock();
+      try {
+        paused = false;
+        resumed.signalAll();
+      }
+      finally {
+        pauseLock.unlock();
+      }
+    }
+
+    /**
+     * Waits for a paused handler to resume. The read timeout still applies, as it does for {@link NettyHttpClient}.
+     */
+    private void awaitResumed() throws InterruptedException
+    {
+      pauseLock.lock();
+      try {
+        final long deadline = readTimeout > 0 ? System.currentTimeMillis() + readTimeout : Long.MAX_VALUE;
+        while (paused) {
+          final long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            throw new ReadTimeoutException();
+          }
+          if (readTimeout > 0) {
+            resumed.await(remaining, TimeUnit.MILLISECONDS);
+          } else {
+            resumed.await();
+          }
+        }
+      }
+      finally {
+        pauseLock.unlock();
+      }
+    }
+  }
+}
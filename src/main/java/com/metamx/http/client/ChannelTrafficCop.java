@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.metamx.http.client.response.TrafficCop;
+import org.jboss.netty.channel.Channel;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controls reads from a channel on behalf of one request, and tracks the response bytes that request holds against the
+ * client's {@link ResponseBufferBudget}. Once the request is closed it no longer touches the channel, which may
+ * already be serving another request, but late releases still go to the budget.
+ */
+class ChannelTrafficCop implements TrafficCop
+{
+  private static final int PAUSED_FOR_BUDGET = 1;
+  private static final int PAUSED_BY_HANDLER = 2;
+  private static final int PAUSED_FOR_CALLBACKS = 4;
+
+  private final Channel channel;
+  private final ResponseBufferBudget budget;
+  private final boolean handlerReleases;
+  private final AtomicLong heldBytes = new AtomicLong(0);
+
+  private final Runnable resumeForBudget = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      resume(PAUSED_FOR_BUDGET);
+    }
+  };
+
+  // Changes to a channel's readability made off its I/O thread are queued, and may land after ones made on it later.
+  // Applying whatever the latest state is, on the I/O thread, keeps a stale change from outliving close().
+  private final Runnable applyReadable = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      synchronized (ChannelTrafficCop.this) {
+        if (!closed) {
+          channel.setReadable(pausedReasons == 0);
+        }
+      }
+    }
+  };
+
+  // Guarded by "this"
+  private int pausedReasons = 0;
+  private boolean everPaused = false;
+  private boolean closed = false;
+
+  /**
+   * @param budget          budget to account against, or null for none
+   * @param handlerReleases true if the response handler releases content itself, false if everything the request
+   *                        received should be released when it is closed
+   */
+  ChannelTrafficCop(Channel channel, ResponseBufferBudget budget, boolean handlerReleases)
+  {
+    this.channel = channel;
+    this.budget = budget;
+    this.handlerReleases = handlerReleases;
+  }
+
+  /**
+   * Called from the I/O thread before "bytes" of content are handed to the response handler.
+   */
+  void received(long bytes)
+  {
+    if (budget == null || bytes <= 0) {
+      return;
+    }
+
+    heldBytes.addAndGet(bytes);
+    if (!budget.acquire(bytes) && !budget.exempt(this)) {
+      // Pause before asking to be woken up, so a wake-up can't come in before the pause.
+      pause(PAUSED_FOR_BUDGET);
+      budget.whenAvailable(resumeForBudget);
+    }
+  }
+
+  @Override
+  public void release(long bytes)
+  {
+    if (budget == null || bytes <= 0) {
+      return;
+    }
+
+    // Never release more than is held, so releases racing with close() can't return bytes twice.
+    long held;
+    long toRelease;
+    do {
+      held = heldBytes.get();
+      toRelease = Math.min(held, bytes);
+    } while (toRelease > 0 && !heldBytes.compareAndSet(held, held - toRelease));
+
+    if (toRelease > 0) {
+      budget.release(toRelease);
+    }
+  }
+
+  @Override
+  public void pause()
+  {
+    pause(PAUSED_BY_HANDLER);
+  }
+
+  @Override
+  public void resume()
+  {
+    resume(PAUSED_BY_HANDLER);
+  }
+
+  /**
+   * Called when the request's queue of response handler callbacks is too long; see {@link HandlerCallbackQueue}.
+   */
+  void pauseForCallbacks()
+  {
+    pause(PAUSED_FOR_CALLBACKS);
+  }
+
+  void resumeForCallbacks()
+  {
+    resume(PAUSED_FOR_CALLBACKS);
+  }
+
+  /**
+   * Called once the request is over, whether it succeeded or not. Leaves the channel readable.
+   *
+   * @param failed true if the request failed, in which case everything it still holds is released, since the handler
+   *               may never get around to it
+   */
+  void close(boolean failed)
+  {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (everPaused) {
+        // Even if nothing is paused now, a resume may still be on its way to the channel.
+        pausedReasons = 0;
+        channel.setReadable(true);
+      }
+    }
+
+    if (budget != null) {
+      if (failed || !handlerReleases) {
+        release(heldBytes.get());
+      }
+      budget.unexempt(this);
+    }
+  }
+
+  private synchronized void pause(int reason)
+  {
+    if (closed) {
+      return;
+    }
+    if (pausedReasons == 0) {
+      everPaused = true;
+      channel.getPipeline().execute(applyReadable);
+    }
+    pausedReasons |= reason;
+  }
+
+  private synchronized void resume(int reason)
+  {
+    if (closed || (pausedReasons & reason) == 0) {
+      return;
+    }
+    pausedReasons &= ~reason;
+    if (pausedReasons == 0) {
+      channel.getPipeline().execute(applyReadable);
+    }
+  }
+}
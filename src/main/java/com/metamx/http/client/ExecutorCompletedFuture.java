@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Mirrors a future completed on an I/O thread, completing on an executor instead, so that no listener of this one
+ * runs on the I/O thread. Costs one object and one listener per request, where Futures.transform and friends cost
+ * several. Cancelling this cancels the original.
+ */
+class ExecutorCompletedFuture<V> extends AbstractFuture<V> implements Runnable
+{
+  private final ListenableFuture<V> delegate;
+  private final Executor executor;
+
+  // Set on the I/O thread before handing off, read on the executor.
+  private volatile boolean handedOff = false;
+
+  ExecutorCompletedFuture(ListenableFuture<V> delegate, Executor executor)
+  {
+    this.delegate = delegate;
+    this.executor = executor;
+    delegate.addListener(this, MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * Runs twice: first on whatever thread completed the original, to hand off to the executor, and then on the
+   * executor to complete this one.
+   */
+  @Override
+  public void run()
+  {
+    if (!handedOff && !isDone()) {
+      handedOff = true;
+      try {
+        executor.execute(this);
+        return;
+      }
+      catch (RejectedExecutionException e) {
+        // Better late listeners on the wrong thread than none at all.
+      }
+    }
+
+    complete();
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning)
+  {
+    if (super.cancel(mayInterruptIfRunning)) {
+      delegate.cancel(mayInterruptIfRunning);
+      return true;
+    }
+    return false;
+  }
+
+  private void complete()
+  {
+    try {
+      set(Uninterruptibles.getUninterruptibly(delegate));
+    }
+    catch (ExecutionException e) {
+      setException(e.getCause());
+    }
+    catch (CancellationException e) {
+      cancel(false);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.metamx.common.logger.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs one request's response handler callbacks on an executor, one at a time and in the order they were submitted.
+ * When more than maxPending callbacks are waiting, reads from the request's channel pause until the backlog is down
+ * to half that, so a slow handler holds up its own connection rather than an I/O thread shared with others.
+ */
+class HandlerCallbackQueue implements Runnable
+{
+  private static final Logger log = new Logger(HandlerCallbackQueue.class);
+
+  // Callbacks to run before giving the executor's thread back, so a busy stream doesn't starve other requests.
+  private static final int MAX_CALLBACKS_PER_RUN = 64;
+
+  private final Executor executor;
+  private final int maxPending;
+  private final ChannelTrafficCop trafficCop;
+
+  // Guarded by "this"
+  private final Queue<Runnable> queue = new ArrayDeque<>();
+  private boolean running = false;
+  private boolean paused = false;
+
+  HandlerCallbackQueue(Executor executor, int maxPending, ChannelTrafficCop trafficCop)
+  {
+    this.executor = executor;
+    this.maxPending = Math.max(maxPending, 1);
+    this.trafficCop = trafficCop;
+  }
+
+  void submit(Runnable callback)
+  {
+    synchronized (this) {
+      queue.add(callback);
+      if (!paused && queue.size() > maxPending) {
+        paused = true;
+        trafficCop.pauseForCallbacks();
+      }
+      if (running) {
+        return;
+      }
+      running = true;
+    }
+
+    try {
+      executor.execute(this);
+    }
+    catch (RejectedExecutionException e) {
+      // Better to hold up the I/O thread than to drop callbacks.
+      run();
+    }
+  }
+
+  @Override
+  public void run()
+  {
+    for (int ran = 0; ; ran++) {
+      if (ran == MAX_CALLBACKS_PER_RUN) {
+        try {
+          executor.execute(this);
+          return;
+        }
+        catch (RejectedExecutionException e) {
+          // Keep going here, then.
+        }
+      }
+
+      final Runnable callback;
+      synchronized (this) {
+        callback = queue.poll();
+        if (callback == null) {
+          running = false;
+          return;
+        }
+        if (paused && queue.size() <= maxPending / 2) {
+          paused = false;
+          trafficCop.resumeForCallbacks();
+        }
+      }
+
+      try {
+        callback.run();
+      }
+      catch (Throwable t) {
+        log.error(t, "Response handler callback failed");
+      }
+    }
+  }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.metamx.common.guava.CloseQuietly;
+import com.metamx.common.lifecycle.LifecycleStart;
+import com.metamx.common.lifecycle.LifecycleStop;
+import com.metamx.common.logger.Logger;
+import com.metamx.http.client.io.ExactLengthInputStream;
+import com.metamx.http.client.netty4.Netty4Messages;
+import com.metamx.http.client.pool.ResourceContainer;
+import com.metamx.http.client.pool.ResourcePool;
+import com.metamx.http.client.response.ClientResponse;
+import com.metamx.http.client.response.HttpResponseHandler;
+import com.metamx.http.client.response.StreamingResponseHandler;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.stream.ChunkedFile;
+import io.netty.handler.stream.ChunkedStream;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.handler.timeout.ReadTimeoutException;
+import org.joda.time.Duration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpClient that speaks HTTP/2, built on the same Netty 4 transport as {@link Netty4HttpClient}. Plain http URLs use
+ * h2c with prior knowledge and https URLs negotiate h2 with ALPN, so the server must speak HTTP/2; there is no
+ * fallback to HTTP/1.1.
+ *
+ * Each request is a stream on one of the pool's connections to its host. A connection is only taken from the pool
+ * long enough to open a stream on it, so any number of requests share {@link HttpClientConfig#getNumConnections()}
+ * connections per host, and a request never waits for another to finish unless the server's limit on concurrent
+ * streams is reached. Every stream has its own flow control window, which is refilled as handleChunk is called for
+ * its data: pausing a {@link StreamingResponseHandler}'s TrafficCop holds back that response alone.
+ *
+ * Handlers see the same Netty 3 messages as with {@link Netty4HttpClient}. Buffer budgets and handler executors are
+ * not supported, and requests that set a handler executor are rejected. Requires io.netty:netty-all 4.1, which is an
+ * optional dependency.
+ */
+public class Http2HttpClient extends AbstractHttpClient
+{
+  private static final Logger log = new Logger(Http2HttpClient.class);
+
+  private static final String READ_TIMEOUT_HANDLER_NAME = "read-timeout";
+  private static final String LAST_HANDLER_NAME = "last-handler";
+  private static final int STREAMING_CONTENT_CHUNK_SIZE = 8192;
+
+  private final ResourcePool<String, ChannelFuture> pool;
+  private final HttpClientConfig.CompressionCodec compressionCodec;
+  private final Duration defaultReadTimeout;
+  private final long defaultMaxResponseBodySize;
+  private final Executor completionExecutor;
+
+  public Http2HttpClient(
+      ResourcePool<String, ChannelFuture> pool,
+      Duration defaultReadTimeout,
+      HttpClientConfig.CompressionCodec compressionCodec,
+      long defaultMaxResponseBodySize,
+      Executor completionExecutor
+  )
+  {
+    this.pool = Preconditions.checkNotNull(pool, "pool");
+    this.defaultReadTimeout = defaultReadTimeout;
+    this.compressionCodec = Preconditions.checkNotNull(compressionCodec);
+    this.defaultMaxResponseBodySize = defaultMaxResponseBodySize;
+    this.completionExecutor = completionExecutor;
+  }
+
+  @LifecycleStart
+  public void start()
+  {
+  }
+
+  @LifecycleStop
+  public void stop()
+  {
+    pool.close();
+  }
+
+  @Override
+  public <Intermediate, Final> ListenableFuture<Final> go(
+      final Request request,
+      final HttpResponseHandler<Intermediate, Final> handler,
+      final Duration requestReadTimeout
+  )
+  {
+    Preconditions.checkArgument(
+        request.getHandlerExecutor() == null,
+        "handlerExecutor is not supported by Http2HttpClient"
+    );
+
+    final URL url = request.getUrl();
+
+    final String requestDesc = String.format("%s %s", request.getMethod(), url);
+    if (log.isDebugEnabled()) {
+      log.debug("[%s] starting", requestDesc);
+    }
+
+    // Open streaming content before taking a connection, so a source that can't be read doesn't open a stream.
+    final RandomAccessFile fileContent;
+    final InputStream streamingContent;
+    if (request.hasFileContent()) {
+      try {
+        fileContent = new RandomAccessFile(request.getFileContent(), "r");
+      }
+      catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+      streamingContent = null;
+    } else if (request.hasStreamingContent()) {
+      fileContent = null;
+      try {
+        final InputStream in = request.getStreamingContent().openStream();
+        final long length = request.getStreamingContentLength();
+        streamingContent = length < 0 ? in : new ExactLengthInputStream(in, length);
+      }
+      catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+    } else {
+      fileContent = null;
+      streamingContent = null;
+    }
+
+    // Block while acquiring a connection from the pool, then hand it back as soon as a stream has been opened on it.
+    final Channel connection;
+    final ResourceContainer<ChannelFuture> channelResourceContainer = pool.take(NettyHttpClient.getPoolKey(url));
+    final ChannelFuture channelFuture = channelResourceContainer.get().awaitUninterruptibly();
+    if (!channelFuture.isSuccess()) {
+      channelResourceContainer.returnResource(); // Some other poor sap will have to deal with it...
+      CloseQuietly.close(fileContent);
+      CloseQuietly.close(streamingContent);
+      return Futures.immediateFailedFuture(
+          new ChannelException(
+              "Faulty channel in resource pool",
+              channelFuture.cause()
+          )
+      );
+    } else {
+      connection = channelFuture.channel();
+    }
+
+    final SettableFuture<Final> retVal = SettableFuture.create();
+    final Exchange<Intermediate, Final> exchange = new Exchange<>(
+        requestDesc,
+        Netty4Messages.toNetty4Request(NettyHttpClient.toHttpRequest(request, compressionCodec)),
+        fileContent,
+        request.getFileContentOffset(),
+        request.getStreamingContentLength(),
+        streamingContent,
+        handler,
+        getReadTimeout(requestReadTimeout),
+        request.getMaxResponseBodySize() < 0 ? defaultMaxResponseBodySize : request.getMaxResponseBodySize(),
+        retVal
+    );
+    new Http2StreamChannelBootstrap(connection).open().addListener(exchange);
+    channelResourceContainer.returnResource();
+
+    return completionExecutor == null ? retVal : new ExecutorCompletedFuture<>(retVal, completionExecutor);
+  }
+
+  private long getReadTimeout(Duration requestReadTimeout)
+  {
+    if (requestReadTimeout != null) {
+      return requestReadTimeout.getMillis();
+    } else if (defaultReadTimeout != null) {
+      return defaultReadTimeout.getMillis();
+    } else {
+      return 0;
+    }
+  }
+
+  /**
+   * One request and its response on a stream of its own. Once the stream is open, it writes the request and handles
+   * what comes back. Everything but the constructor runs on the connection's event loop.
+   */
+  private static class Exchange<Intermediate, Final> extends SimpleChannelInboundHandler<HttpObject>
+      implements GenericFutureListener<Future<Http2StreamChannel>>
+  {
+    private final String requestDesc;
+    private final HttpRequest httpRequest;
+    private final RandomAccessFile fileContent;
+    private final long fileContentOffset;
+    private final long contentLength;
+    private final InputStream streamingContent;
+    private final HttpResponseHandler<Intermediate, Final> handler;
+    private final long readTimeout;
+    private final long maxResponseBodySize;
+    private final SettableFuture<Final> retVal;
+
+    private Channel channel = null;
+    // Completes once the last of the request has been written, so the handler can tell whether a server responded
+    // before reading the entire request.
+    private ChannelPromise requestWriteFuture = null;
+    private ClientResponse<Intermediate> response = null;
+    private long responseBodyBytes = 0;
+    private boolean requestOver = false;
+
+    Exchange(
+        String requestDesc,
+        HttpRequest httpRequest,
+        RandomAccessFile fileContent,
+        long fileContentOffset,
+        long contentLength,
+        InputStream streamingContent,
+        HttpResponseHandler<Intermediate, Final> handler,
+        long readTimeout,
+        long maxResponseBodySize,
+        SettableFuture<Final> retVal
+    )
+    {
+      this.requestDesc = requestDesc;
+      this.httpRequest = httpRequest;
+      this.fileContent = fileContent;
+      this.fileContentOffset = fileContentOffset;
+      this.contentLength = contentLength;
+      this.streamingContent = streamingContent;
+      this.handler = handler;
+      this.readTimeout = readTimeout;
+      this.maxResponseBodySize = maxResponseBodySize;
+      this.retVal = retVal;
+    }
+
+    @Override
+    public void operationComplete(Future<Http2StreamChannel> future) throws Exception
+    {
+      if (!future.isSuccess()) {
+        CloseQuietly.close(fileContent);
+        CloseQuietly.close(streamingContent);
+        retVal.setException(
+            new ChannelException(String.format("[%s] Failed to open stream", requestDesc), future.cause())
+        );
+        return;
+      }
+
+      channel = future.getNow();
+      channel.pipeline().addLast("codec", new Http2StreamFrameToHttpObjectCodec(false));
+      channel.pipeline().addLast("inflater", new HttpContentDecompressor());
+      channel.pipeline().addLast("chunked-writer", new ChunkedWriteHandler());
+      if (readTimeout > 0) {
+        channel.pipeline().addLast(
+            READ_TIMEOUT_HANDLER_NAME,
+            new ReadTimeoutHandler(readTimeout, TimeUnit.MILLISECONDS)
+        );
+      }
+      channel.pipeline().addLast(LAST_HANDLER_NAME, this);
+
+      requestWriteFuture = channel.newPromise();
+      if (fileContent != null) {
+        // Streams can't use sendfile, since their data is framed, so the file is read a chunk at a time.
+        channel.write(httpRequest);
+        try {
+          channel.writeAndFlush(
+              new HttpChunkedInput(
+                  new ChunkedFile(fileContent, fileContentOffset, contentLength, STREAMING_CONTENT_CHUNK_SIZE)
+              ),
+              requestWriteFuture
+          );
+        }
+        catch (IOException e) {
+          CloseQuietly.close(fileContent);
+          requestWriteFuture.setFailure(e);
+        }
+      } else if (streamingContent == null) {
+        channel.writeAndFlush(httpRequest, requestWriteFuture);
+      } else {
+        // Chunks are only pulled from the stream while the server's flow control window has room for them.
+        channel.write(httpRequest);
+        channel.writeAndFlush(
+            new HttpChunkedInput(new ChunkedStream(streamingContent, STREAMING_CONTENT_CHUNK_SIZE)),
+            requestWriteFuture
+        );
+      }
+
+      requestWriteFuture.addListener(
+          new ChannelFutureListener()
+          {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception
+            {
+              if (!future.isSuccess()) {
+                channel.close();
+                if (!retVal.isDone()) {
+                  retVal.setException(
+                      new ChannelException(
+                          String.format("[%s] Failed to write request to stream", requestDesc),
+                          future.cause()
+                      )
+                  );
+                }
+              }
+            }
+          }
+      );
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception
+    {
+      if (log.isDebugEnabled()) {
+        log.debug("[%s] channelRead: %s", requestDesc, msg);
+      }
+      if (requestOver) {
+        return;
+      }
+      if (msg.decoderResult().isFailure()) {
+        processException(msg.decoderResult().cause());
+        return;
+      }
+
+      try {
+        if (msg instanceof HttpResponse) {
+          final org.jboss.netty.handler.codec.http.HttpResponse httpResponse = Netty4Messages.toNetty3Response(
+              (HttpResponse) msg
+          );
+          if (log.isDebugEnabled()) {
+            log.debug("[%s] Got response: %s", requestDesc, httpResponse.getStatus());
+          }
+
+          if (handler instanceof StreamingResponseHandler) {
+            response = ((StreamingResponseHandler<Intermediate, Final>) handler).handleResponse(
+                httpResponse,
+                new AutoReadTrafficCop(channel)
+            );
+          } else {
+            response = handler.handleResponse(httpResponse);
+          }
+          if (response.isFinished()) {
+            retVal.set((Final) response.getObj());
+          }
+        }
+
+        // A response with no body, or the last of one, may be both the response and its content.
+        if (msg instanceof HttpContent) {
+          final HttpContent httpContent = (HttpContent) msg;
+          final int bytes = httpContent.content().readableBytes();
+          if (bytes > 0) {
+            responseBodyBytes += bytes;
+            if (maxResponseBodySize > 0 && responseBodyBytes > maxResponseBodySize) {
+              processException(new ResponseTooLargeException(maxResponseBodySize));
+              return;
+            }
+
+            response = handler.handleChunk(response, Netty4Messages.toNetty3Chunk(httpContent));
+            if (response.isFinished() && !retVal.isDone()) {
+              retVal.set((Final) response.getObj());
+            }
+          }
+
+          if (msg instanceof LastHttpContent) {
+            finishRequest();
+          }
+        }
+      }
+      catch (Exception ex) {
+        log.warn(ex, "[%s] Exception thrown while processing message, resetting stream.", requestDesc);
+
+        if (!retVal.isDone()) {
+          retVal.set(null);
+        }
+        requestOver = true;
+        channel.close();
+
+        // response is non-null if we received initial chunk and then exception occurs
+        if (response != null) {
+          handler.exceptionCaught(response, ex);
+        }
+      }
+    }
+
+    private void finishRequest()
+    {
+      ClientResponse<Final> finalResponse = handler.done(response);
+      if (!finalResponse.isFinished()) {
+        throw new IllegalStateException(
+            String.format(
+                "[%s] Didn't get a completed ClientResponse Object from [%s]",
+                requestDesc,
+                handler.getClass()
+            )
+        );
+      }
+      if (!retVal.isDone()) {
+        retVal.set(finalResponse.getObj());
+      }
+      requestOver = true;
+      if (!requestWriteFuture.isDone()) {
+        // The server responded before reading the whole request, so there's no point sending the rest of it.
+        log.debug("[%s] Response finished before request was fully written, resetting stream.", requestDesc);
+        channel.close();
+      }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception
+    {
+      if (log.isDebugEnabled()) {
+        log.debug(cause, "[%s] Caught exception", requestDesc);
+      }
+      if (!requestOver) {
+        processException(
+            cause instanceof io.netty.handler.timeout.ReadTimeoutException ? new ReadTimeoutException() : cause
+        );
+      }
+    }
+
+    private void processException(Throwable cause)
+    {
+      requestOver = true;
+      retVal.setException(cause);
+      // response is non-null if we received initial chunk and then exception occurs
+      if (response != null) {
+        handler.exceptionCaught(response, cause);
+      }
+      channel.close();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception
+    {
+      if (log.isDebugEnabled()) {
+        log.debug("[%s] Stream closed", requestDesc);
+      }
+      if (!requestOver) {
+        requestOver = true;
+        // response is non-null if we received initial chunk and then exception occurs
+        if (response != null) {
+          handler.exceptionCaught(response, new ChannelException("Channel disconnected"));
+        }
+        if (!retVal.isDone()) {
+          log.warn("[%s] Stream closed before response complete", requestDesc);
+          retVal.setException(new ChannelException("Channel disconnected"));
+        }
+      }
+      ctx.fireChannelInactive();
+    }
+  }
+}
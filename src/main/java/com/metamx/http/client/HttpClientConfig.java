@@ -16,9 +16,13 @@
 
 package com.metamx.http.client;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import org.joda.time.Duration;
 
 import javax.net.ssl.SSLContext;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  */
@@ -60,6 +64,8 @@ public class HttpClientConfig
   }
 
   public static final CompressionCodec DEFAULT_COMPRESSION_CODEC = CompressionCodec.GZIP;
+  public static final int DEFAULT_MAX_PENDING_HANDLER_CALLBACKS = 16;
+  public static final int DEFAULT_PIPELINING_DEPTH = 1;
 
   // Default from NioClientSocketChannelFactory.DEFAULT_BOSS_COUNT, which is private:
   private static final int DEFAULT_BOSS_COUNT = 1;
@@ -67,6 +73,17 @@ public class HttpClientConfig
   // Default from SelectorUtil.DEFAULT_IO_THREADS, which is private:
   private static final int DEFAULT_WORKER_COUNT = Runtime.getRuntime().availableProcessors() * 2;
 
+  // Defaults from HashedWheelTimer's simpler constructors, which we can't use since we need a ThreadNameDeterminer:
+  private static final Duration DEFAULT_TIMER_TICK_DURATION = new Duration(100);
+  private static final int DEFAULT_TIMER_TICKS_PER_WHEEL = 512;
+
+  // Tuned for request/response traffic: small requests shouldn't wait on Nagle, and the receive buffer predictor may
+  // grow well beyond Netty's default maximum of 64KB when downloading large responses.
+  private static final boolean DEFAULT_TCP_NO_DELAY = true;
+  private static final int DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_MIN = 64;
+  private static final int DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_INITIAL = 1024;
+  private static final int DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_MAX = 1024 * 1024;
+
   public static Builder builder()
   {
     return new Builder();
@@ -79,6 +96,30 @@ public class HttpClientConfig
   private final int bossPoolSize;
   private final int workerPoolSize;
   private final CompressionCodec compressionCodec;
+  private final Duration timerTickDuration;
+  private final int timerTicksPerWheel;
+  private final boolean tcpNoDelay;
+  private final int sendBufferSize;
+  private final int receiveBufferSize;
+  private final int writeBufferHighWaterMark;
+  private final int writeBufferLowWaterMark;
+  private final int receiveBufferSizePredictorMin;
+  private final int receiveBufferSizePredictorInitial;
+  private final int receiveBufferSizePredictorMax;
+  private final Map<String, Map<String, Object>> channelOptionsByKey;
+  private final long maxResponseBodySize;
+  private final long maxBufferedResponseBytes;
+  private final Executor completionExecutor;
+  private final Executor handlerExecutor;
+  private final int maxPendingHandlerCallbacks;
+  private final boolean nativeTransport;
+  private final boolean tcpFastOpen;
+  private final boolean tcpQuickAck;
+  private final int busyPollMicros;
+  private final Duration tcpUserTimeout;
+  private final int pipeliningDepth;
+  private final Map<String, Integer> pipeliningDepthByKey;
+  private final Map<String, String> unixDomainSocketsByKey;
 
   @Deprecated // Use the builder instead
   public HttpClientConfig(
@@ -93,7 +134,31 @@ public class HttpClientConfig
         null,
         DEFAULT_BOSS_COUNT,
         DEFAULT_WORKER_COUNT,
-        DEFAULT_COMPRESSION_CODEC
+        DEFAULT_COMPRESSION_CODEC,
+        DEFAULT_TIMER_TICK_DURATION,
+        DEFAULT_TIMER_TICKS_PER_WHEEL,
+        DEFAULT_TCP_NO_DELAY,
+        0,
+        0,
+        0,
+        0,
+        DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_MIN,
+        DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_INITIAL,
+        DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_MAX,
+        ImmutableMap.<String, Map<String, Object>>of(),
+        0,
+        0,
+        null,
+        null,
+        DEFAULT_MAX_PENDING_HANDLER_CALLBACKS,
+        false,
+        false,
+        false,
+        0,
+        null,
+        DEFAULT_PIPELINING_DEPTH,
+        ImmutableMap.<String, Integer>of(),
+        ImmutableMap.<String, String>of()
     );
   }
 
@@ -111,7 +176,31 @@ public class HttpClientConfig
         null,
         DEFAULT_BOSS_COUNT,
         DEFAULT_WORKER_COUNT,
-        DEFAULT_COMPRESSION_CODEC
+        DEFAULT_COMPRESSION_CODEC,
+        DEFAULT_TIMER_TICK_DURATION,
+        DEFAULT_TIMER_TICKS_PER_WHEEL,
+        DEFAULT_TCP_NO_DELAY,
+        0,
+        0,
+        0,
+        0,
+        DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_MIN,
+        DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_INITIAL,
+        DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_MAX,
+        ImmutableMap.<String, Map<String, Object>>of(),
+        0,
+        0,
+        null,
+        null,
+        DEFAULT_MAX_PENDING_HANDLER_CALLBACKS,
+        false,
+        false,
+        false,
+        0,
+        null,
+        DEFAULT_PIPELINING_DEPTH,
+        ImmutableMap.<String, Integer>of(),
+        ImmutableMap.<String, String>of()
     );
   }
 
@@ -130,7 +219,31 @@ public class HttpClientConfig
         sslHandshakeTimeout,
         DEFAULT_BOSS_COUNT,
         DEFAULT_WORKER_COUNT,
-        DEFAULT_COMPRESSION_CODEC
+        DEFAULT_COMPRESSION_CODEC,
+        DEFAULT_TIMER_TICK_DURATION,
+        DEFAULT_TIMER_TICKS_PER_WHEEL,
+        DEFAULT_TCP_NO_DELAY,
+        0,
+        0,
+        0,
+        0,
+        DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_MIN,
+        DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_INITIAL,
+        DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_MAX,
+        ImmutableMap.<String, Map<String, Object>>of(),
+        0,
+        0,
+        null,
+        null,
+        DEFAULT_MAX_PENDING_HANDLER_CALLBACKS,
+        false,
+        false,
+        false,
+        0,
+        null,
+        DEFAULT_PIPELINING_DEPTH,
+        ImmutableMap.<String, Integer>of(),
+        ImmutableMap.<String, String>of()
     );
   }
 
@@ -141,7 +254,31 @@ public class HttpClientConfig
       Duration sslHandshakeTimeout,
       int bossPoolSize,
       int workerPoolSize,
-      CompressionCodec compressionCodec
+      CompressionCodec compressionCodec,
+      Duration timerTickDuration,
+      int timerTicksPerWheel,
+      boolean tcpNoDelay,
+      int sendBufferSize,
+      int receiveBufferSize,
+      int writeBufferHighWaterMark,
+      int writeBufferLowWaterMark,
+      int receiveBufferSizePredictorMin,
+      int receiveBufferSizePredictorInitial,
+      int receiveBufferSizePredictorMax,
+      Map<String, Map<String, Object>> channelOptionsByKey,
+      long maxResponseBodySize,
+      long maxBufferedResponseBytes,
+      Executor completionExecutor,
+      Executor handlerExecutor,
+      int maxPendingHandlerCallbacks,
+      boolean nativeTransport,
+      boolean tcpFastOpen,
+      boolean tcpQuickAck,
+      int busyPollMicros,
+      Duration tcpUserTimeout,
+      int pipeliningDepth,
+      Map<String, Integer> pipeliningDepthByKey,
+      Map<String, String> unixDomainSocketsByKey
   )
   {
     this.numConnections = numConnections;
@@ -151,6 +288,30 @@ public class HttpClientConfig
     this.bossPoolSize = bossPoolSize;
     this.workerPoolSize = workerPoolSize;
     this.compressionCodec = compressionCodec;
+    this.timerTickDuration = timerTickDuration;
+    this.timerTicksPerWheel = timerTicksPerWheel;
+    this.tcpNoDelay = tcpNoDelay;
+    this.sendBufferSize = sendBufferSize;
+    this.receiveBufferSize = receiveBufferSize;
+    this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+    this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+    this.receiveBufferSizePredictorMin = receiveBufferSizePredictorMin;
+    this.receiveBufferSizePredictorInitial = receiveBufferSizePredictorInitial;
+    this.receiveBufferSizePredictorMax = receiveBufferSizePredictorMax;
+    this.channelOptionsByKey = channelOptionsByKey;
+    this.maxResponseBodySize = maxResponseBodySize;
+    this.maxBufferedResponseBytes = maxBufferedResponseBytes;
+    this.completionExecutor = completionExecutor;
+    this.handlerExecutor = handlerExecutor;
+    this.maxPendingHandlerCallbacks = maxPendingHandlerCallbacks;
+    this.nativeTransport = nativeTransport;
+    this.tcpFastOpen = tcpFastOpen;
+    this.tcpQuickAck = tcpQuickAck;
+    this.busyPollMicros = busyPollMicros;
+    this.tcpUserTimeout = tcpUserTimeout;
+    this.pipeliningDepth = pipeliningDepth;
+    this.pipeliningDepthByKey = pipeliningDepthByKey;
+    this.unixDomainSocketsByKey = unixDomainSocketsByKey;
   }
 
   public int getNumConnections()
@@ -188,6 +349,142 @@ public class HttpClientConfig
     return compressionCodec;
   }
 
+  public Duration getTimerTickDuration()
+  {
+    return timerTickDuration;
+  }
+
+  public int getTimerTicksPerWheel()
+  {
+    return timerTicksPerWheel;
+  }
+
+  public boolean isTcpNoDelay()
+  {
+    return tcpNoDelay;
+  }
+
+  public int getSendBufferSize()
+  {
+    return sendBufferSize;
+  }
+
+  public int getReceiveBufferSize()
+  {
+    return receiveBufferSize;
+  }
+
+  public int getWriteBufferHighWaterMark()
+  {
+    return writeBufferHighWaterMark;
+  }
+
+  public int getWriteBufferLowWaterMark()
+  {
+    return writeBufferLowWaterMark;
+  }
+
+  public int getReceiveBufferSizePredictorMin()
+  {
+    return receiveBufferSizePredictorMin;
+  }
+
+  public int getReceiveBufferSizePredictorInitial()
+  {
+    return receiveBufferSizePredictorInitial;
+  }
+
+  public int getReceiveBufferSizePredictorMax()
+  {
+    return receiveBufferSizePredictorMax;
+  }
+
+  public Map<String, Map<String, Object>> getChannelOptionsByKey()
+  {
+    return channelOptionsByKey;
+  }
+
+  public long getMaxResponseBodySize()
+  {
+    return maxResponseBodySize;
+  }
+
+  public long getMaxBufferedResponseBytes()
+  {
+    return maxBufferedResponseBytes;
+  }
+
+  public Executor getCompletionExecutor()
+  {
+    return completionExecutor;
+  }
+
+  public Executor getHandlerExecutor()
+  {
+    return handlerExecutor;
+  }
+
+  public int getMaxPendingHandlerCallbacks()
+  {
+    return maxPendingHandlerCallbacks;
+  }
+
+  public boolean isNativeTransport()
+  {
+    return nativeTransport;
+  }
+
+  public boolean isTcpFastOpen()
+  {
+    return tcpFastOpen;
+  }
+
+  public boolean isTcpQuickAck()
+  {
+    return tcpQuickAck;
+  }
+
+  public int getBusyPollMicros()
+  {
+    return busyPollMicros;
+  }
+
+  public Duration getTcpUserTimeout()
+  {
+    return tcpUserTimeout;
+  }
+
+  public int getPipeliningDepth()
+  {
+    return pipeliningDepth;
+  }
+
+  public Map<String, Integer> getPipeliningDepthByKey()
+  {
+    return pipeliningDepthByKey;
+  }
+
+  /**
+   * Whether any pool key has a pipelining depth over 1.
+   */
+  public boolean isPipelining()
+  {
+    if (pipeliningDepth > 1) {
+      return true;
+    }
+    for (int depth : pipeliningDepthByKey.values()) {
+      if (depth > 1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public Map<String, String> getUnixDomainSocketsByKey()
+  {
+    return unixDomainSocketsByKey;
+  }
+
   public static class Builder
   {
     private int numConnections = 1;
@@ -197,6 +494,30 @@ public class HttpClientConfig
     private int bossCount = DEFAULT_BOSS_COUNT;
     private int workerCount = DEFAULT_WORKER_COUNT;
     private CompressionCodec compressionCodec = DEFAULT_COMPRESSION_CODEC;
+    private Duration timerTickDuration = DEFAULT_TIMER_TICK_DURATION;
+    private int timerTicksPerWheel = DEFAULT_TIMER_TICKS_PER_WHEEL;
+    private boolean tcpNoDelay = DEFAULT_TCP_NO_DELAY;
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+    private int writeBufferHighWaterMark = 0;
+    private int writeBufferLowWaterMark = 0;
+    private int receiveBufferSizePredictorMin = DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_MIN;
+    private int receiveBufferSizePredictorInitial = DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_INITIAL;
+    private int receiveBufferSizePredictorMax = DEFAULT_RECEIVE_BUFFER_SIZE_PREDICTOR_MAX;
+    private final ImmutableMap.Builder<String, Map<String, Object>> channelOptionsByKey = ImmutableMap.builder();
+    private long maxResponseBodySize = 0;
+    private long maxBufferedResponseBytes = 0;
+    private Executor completionExecutor = null;
+    private Executor handlerExecutor = null;
+    private int maxPendingHandlerCallbacks = DEFAULT_MAX_PENDING_HANDLER_CALLBACKS;
+    private boolean nativeTransport = false;
+    private boolean tcpFastOpen = false;
+    private boolean tcpQuickAck = false;
+    private int busyPollMicros = 0;
+    private Duration tcpUserTimeout = null;
+    private int pipeliningDepth = DEFAULT_PIPELINING_DEPTH;
+    private final ImmutableMap.Builder<String, Integer> pipeliningDepthByKey = ImmutableMap.builder();
+    private final ImmutableMap.Builder<String, String> unixDomainSocketsByKey = ImmutableMap.builder();
 
     private Builder() {}
 
@@ -248,6 +569,243 @@ public class HttpClientConfig
       return this;
     }
 
+    /**
+     * Resolution of the timer used for read timeouts and SSL handshake timeouts. Timeouts fire up to one tick late,
+     * so the default of 100ms is too coarse for requests with read timeouts in the tens of milliseconds. Each tick
+     * wakes up the timer thread once regardless of how many timeouts are armed, so a 1-5ms tick stays cheap even
+     * with a very large number of outstanding requests.
+     */
+    public Builder withTimerTickDuration(Duration timerTickDuration)
+    {
+      this.timerTickDuration = timerTickDuration;
+      return this;
+    }
+
+    /**
+     * Number of slots in the timer wheel. Should be raised along with lowering the tick duration, so that the
+     * wheel still spans the typical read timeout and armed timeouts don't pile up in a few slots.
+     */
+    public Builder withTimerTicksPerWheel(int timerTicksPerWheel)
+    {
+      this.timerTicksPerWheel = timerTicksPerWheel;
+      return this;
+    }
+
+    public Builder withTcpNoDelay(boolean tcpNoDelay)
+    {
+      this.tcpNoDelay = tcpNoDelay;
+      return this;
+    }
+
+    /**
+     * SO_SNDBUF for new connections. Zero or less leaves the operating system default in place.
+     */
+    public Builder withSendBufferSize(int sendBufferSize)
+    {
+      this.sendBufferSize = sendBufferSize;
+      return this;
+    }
+
+    /**
+     * SO_RCVBUF for new connections. Zero or less leaves the operating system default in place.
+     */
+    public Builder withReceiveBufferSize(int receiveBufferSize)
+    {
+      this.receiveBufferSize = receiveBufferSize;
+      return this;
+    }
+
+    /**
+     * Write buffer watermarks, in bytes, controlling when a connection stops and starts being writable. Zero or less
+     * for both leaves Netty's defaults in place; setting only one of them is an error, since the Netty 3 and Netty 4
+     * clients can't apply half a pair the same way.
+     */
+    public Builder withWriteBufferWaterMarks(int lowWaterMark, int highWaterMark)
+    {
+      Preconditions.checkArgument(
+          (lowWaterMark > 0) == (highWaterMark > 0),
+          "lowWaterMark[%s] and highWaterMark[%s] must both be set, or neither",
+          lowWaterMark,
+          highWaterMark
+      );
+      Preconditions.checkArgument(
+          lowWaterMark <= highWaterMark,
+          "lowWaterMark[%s] must not be more than highWaterMark[%s]",
+          lowWaterMark,
+          highWaterMark
+      );
+      this.writeBufferLowWaterMark = lowWaterMark;
+      this.writeBufferHighWaterMark = highWaterMark;
+      return this;
+    }
+
+    /**
+     * Bounds for the adaptive predictor that sizes the buffers used for socket reads.
+     */
+    public Builder withReceiveBufferSizePredictor(int minimum, int initial, int maximum)
+    {
+      this.receiveBufferSizePredictorMin = minimum;
+      this.receiveBufferSizePredictorInitial = initial;
+      this.receiveBufferSizePredictorMax = maximum;
+      return this;
+    }
+
+    /**
+     * Netty channel options (as accepted by ClientBootstrap.setOption) for connections to a particular pool key,
+     * overriding the client-wide settings. Pool keys look like "http://example.com:80".
+     */
+    public Builder withChannelOptions(String poolKey, Map<String, Object> options)
+    {
+      this.channelOptionsByKey.put(poolKey, ImmutableMap.copyOf(options));
+      return this;
+    }
+
+    /**
+     * Default limit on the decompressed size of response bodies. Responses that exceed it fail with a
+     * {@link ResponseTooLargeException} and have their connection closed. Zero or less means no limit. Can be
+     * overridden per request with {@link Request#setMaxResponseBodySize(long)}.
+     */
+    public Builder withMaxResponseBodySize(long maxResponseBodySize)
+    {
+      this.maxResponseBodySize = maxResponseBodySize;
+      return this;
+    }
+
+    /**
+     * Limit on response content held in memory across all requests of the client. Connections stop reading once it
+     * is reached, until handlers release enough content. Content given to a
+     * {@link com.metamx.http.client.response.StreamingResponseHandler} is held until the handler releases it, and
+     * content given to any other handler until its request is done. Zero or less means no limit.
+     *
+     * To guarantee progress, one response at a time may exceed the limit, so the actual ceiling is this plus the
+     * largest response; use {@link #withMaxResponseBodySize(long)} to bound that.
+     */
+    public Builder withMaxBufferedResponseBytes(long maxBufferedResponseBytes)
+    {
+      this.maxBufferedResponseBytes = maxBufferedResponseBytes;
+      return this;
+    }
+
+    /**
+     * Executor to complete the futures returned by the client on, so their listeners, including those added with
+     * {@link com.google.common.util.concurrent.MoreExecutors#sameThreadExecutor()}, don't run on the client's I/O
+     * threads. Response handlers still run on the I/O threads. Null, the default, completes futures directly on the
+     * I/O threads. Futures are completed on the I/O thread anyway if the executor rejects the work.
+     */
+    public Builder withCompletionExecutor(Executor completionExecutor)
+    {
+      this.completionExecutor = completionExecutor;
+      return this;
+    }
+
+    /**
+     * Executor to run response handler callbacks on, so expensive handlers don't hold up other connections served by
+     * the same I/O thread. Each request's callbacks still run one at a time and in order. Null, the default, runs
+     * them on the I/O threads. Can be overridden per request with {@link Request#setHandlerExecutor(Executor)}.
+     */
+    public Builder withHandlerExecutor(Executor handlerExecutor)
+    {
+      this.handlerExecutor = handlerExecutor;
+      return this;
+    }
+
+    /**
+     * Number of callbacks a request may have waiting on its handler executor before reads from its connection pause.
+     * Reads resume once the backlog is down to half that.
+     */
+    public Builder withMaxPendingHandlerCallbacks(int maxPendingHandlerCallbacks)
+    {
+      this.maxPendingHandlerCallbacks = maxPendingHandlerCallbacks;
+      return this;
+    }
+
+    /**
+     * Use Netty's native epoll transport, with edge-triggered I/O, instead of NIO. Only applies to clients created
+     * with {@link HttpClientInit#createNetty4Client} or {@link HttpClientInit#createHttp2Client}, and only on Linux;
+     * elsewhere they fall back to NIO with a warning. Needed for the TCP options below.
+     */
+    public Builder withNativeTransport(boolean nativeTransport)
+    {
+      this.nativeTransport = nativeTransport;
+      return this;
+    }
+
+    /**
+     * Send the start of the request along with the SYN of new connections (TCP_FASTOPEN_CONNECT), saving a round trip
+     * on reconnects to servers that support TCP Fast Open. The kernel must have client support enabled in
+     * net.ipv4.tcp_fastopen. Requires the native transport.
+     */
+    public Builder withTcpFastOpen(boolean tcpFastOpen)
+    {
+      this.tcpFastOpen = tcpFastOpen;
+      return this;
+    }
+
+    /**
+     * Acknowledge received data right away (TCP_QUICKACK) rather than delaying ACKs. Requires the native transport.
+     */
+    public Builder withTcpQuickAck(boolean tcpQuickAck)
+    {
+      this.tcpQuickAck = tcpQuickAck;
+      return this;
+    }
+
+    /**
+     * Microseconds to busy poll the device queue for incoming data (SO_BUSY_POLL), trading CPU for latency. Zero or
+     * less leaves the operating system default in place. Requires the native transport.
+     */
+    public Builder withBusyPollMicros(int busyPollMicros)
+    {
+      this.busyPollMicros = busyPollMicros;
+      return this;
+    }
+
+    /**
+     * How long sent data may go unacknowledged before the kernel gives up on the connection (TCP_USER_TIMEOUT), so
+     * dead peers are noticed well before the retransmission timeout, which can take many minutes. Null leaves the
+     * operating system default in place. Requires the native transport.
+     */
+    public Builder withTcpUserTimeout(Duration tcpUserTimeout)
+    {
+      this.tcpUserTimeout = tcpUserTimeout;
+      return this;
+    }
+
+    /**
+     * Number of requests that may be outstanding at once on each connection, using HTTP/1.1 pipelining. Only
+     * idempotent requests without a streaming or file body, per-request read timeout or handler executor are
+     * pipelined; others always get a connection to themselves. Requests queued behind a response that fails are sent
+     * again on another connection, once. The default of 1 turns pipelining off. Only applies to {@link NettyHttpClient}.
+     */
+    public Builder withPipeliningDepth(int pipeliningDepth)
+    {
+      this.pipeliningDepth = pipeliningDepth;
+      return this;
+    }
+
+    /**
+     * Pipelining depth for connections to a particular pool key, overriding {@link #withPipeliningDepth(int)}, for
+     * servers known to handle pipelining well. Pool keys look like "http://example.com:80".
+     */
+    public Builder withPipeliningDepth(String poolKey, int pipeliningDepth)
+    {
+      this.pipeliningDepthByKey.put(poolKey, pipeliningDepth);
+      return this;
+    }
+
+    /**
+     * Connect to a particular pool key through the Unix domain socket at "path" rather than TCP, such as for a sidecar
+     * reached as "http://localhost:8080". Requests are written just as they would be over TCP, Host header included,
+     * and connections to the key are pooled as usual. Pool keys look like "http://example.com:80". Requires the
+     * native transport, which is used for the whole client when any key is mapped. Only applies to the Netty 4
+     * clients.
+     */
+    public Builder withUnixDomainSocket(String poolKey, String path)
+    {
+      this.unixDomainSocketsByKey.put(poolKey, path);
+      return this;
+    }
+
     public HttpClientConfig build()
     {
       return new HttpClientConfig(
@@ -257,7 +815,31 @@ public class HttpClientConfig
           sslHandshakeTimeout,
           bossCount,
           workerCount,
-          compressionCodec
+          compressionCodec,
+          timerTickDuration,
+          timerTicksPerWheel,
+          tcpNoDelay,
+          sendBufferSize,
+          receiveBufferSize,
+          writeBufferHighWaterMark,
+          writeBufferLowWaterMark,
+          receiveBufferSizePredictorMin,
+          receiveBufferSizePredictorInitial,
+          receiveBufferSizePredictorMax,
+          channelOptionsByKey.build(),
+          maxResponseBodySize,
+          maxBufferedResponseBytes,
+          completionExecutor,
+          handlerExecutor,
+          maxPendingHandlerCallbacks,
+          nativeTransport,
+          tcpFastOpen,
+          tcpQuickAck,
+          busyPollMicros,
+          tcpUserTimeout,
+          pipeliningDepth,
+          pipeliningDepthByKey.build(),
+          unixDomainSocketsByKey.build()
       );
     }
   }
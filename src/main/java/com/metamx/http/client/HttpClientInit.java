@@ -16,15 +16,20 @@
 
 package com.metamx.http.client;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.metamx.common.guava.CloseQuietly;
 import com.metamx.common.lifecycle.Lifecycle;
 import com.metamx.http.client.netty.HttpClientPipelineFactory;
+import com.metamx.http.client.netty4.Http2ChannelResourceFactory;
+import com.metamx.http.client.netty4.Netty4ChannelResourceFactory;
+import com.metamx.http.client.netty4.Netty4Transport;
 import com.metamx.http.client.pool.ChannelResourceFactory;
 import com.metamx.http.client.pool.ResourcePool;
 import com.metamx.http.client.pool.ResourcePoolConfig;
 import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.AdaptiveReceiveBufferSizePredictorFactory;
 import org.jboss.netty.channel.socket.nio.NioClientBossPool;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioWorkerPool;
@@ -45,6 +50,8 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
@@ -55,16 +62,16 @@ public class HttpClientInit
   public static HttpClient createClient(HttpClientConfig config, Lifecycle lifecycle)
   {
     try {
-      // We need to use the full constructor in order to set a ThreadNameDeterminer. The other parameters are taken
-      // from the defaults in HashedWheelTimer's other constructors.
+      // We need to use the full constructor in order to set a ThreadNameDeterminer. The tick duration and wheel size
+      // default to the values used by HashedWheelTimer's other constructors.
       final HashedWheelTimer timer = new HashedWheelTimer(
           new ThreadFactoryBuilder().setDaemon(true)
                                     .setNameFormat("HttpClient-Timer-%s")
                                     .build(),
           ThreadNameDeterminer.CURRENT,
-          100,
+          config.getTimerTickDuration().getMillis(),
           TimeUnit.MILLISECONDS,
-          512
+          config.getTimerTicksPerWheel()
       );
       lifecycle.addMaybeStartHandler(
           new Lifecycle.Handler()
@@ -86,16 +93,27 @@ public class HttpClientInit
           new NettyHttpClient(
               new ResourcePool<>(
                   new ChannelResourceFactory(
-                      createBootstrap(lifecycle, timer, config.getBossPoolSize(), config.getWorkerPoolSize()),
+                      createBootstrap(lifecycle, timer, config),
                       config.getSslContext(),
                       timer,
-                      config.getSslHandshakeTimeout() == null ? -1 : config.getSslHandshakeTimeout().getMillis()
+                      config.getSslHandshakeTimeout() == null ? -1 : config.getSslHandshakeTimeout().getMillis(),
+                      config.getChannelOptionsByKey()
                   ),
                   new ResourcePoolConfig(config.getNumConnections())
               ),
               config.getReadTimeout(),
               config.getCompressionCodec(),
-              timer
+              timer,
+              config.getMaxResponseBodySize(),
+              config.getMaxBufferedResponseBytes() > 0
+              ? new ResponseBufferBudget(config.getMaxBufferedResponseBytes())
+              : null,
+              config.getCompletionExecutor(),
+              config.getHandlerExecutor(),
+              config.getMaxPendingHandlerCallbacks(),
+              config.getPipeliningDepth(),
+              config.getPipeliningDepthByKey(),
+              config.isPipelining() ? createPipeliningRequeueExecutor(lifecycle) : null
           )
       );
     }
@@ -104,6 +122,99 @@ public class HttpClientInit
     }
   }
 
+  /**
+   * Creates a {@link Netty4HttpClient}, which needs io.netty:netty-all 4.1 on the classpath. Its event loop threads and
+   * connections are shut down when the lifecycle stops.
+   *
+   * @throws IllegalArgumentException if the config has a buffer budget or handler executor, which it doesn't support
+   */
+  public static HttpClient createNetty4Client(HttpClientConfig config, Lifecycle lifecycle)
+  {
+    checkNetty4Config(config);
+    try {
+      return lifecycle.addMaybeStartManagedInstance(
+          new Netty4HttpClient(
+              new ResourcePool<>(
+                  new Netty4ChannelResourceFactory(
+                      Netty4Transport.createBootstrap(config, lifecycle),
+                      config.getSslContext(),
+                      config.getSslHandshakeTimeout() == null ? -1 : config.getSslHandshakeTimeout().getMillis(),
+                      config.getChannelOptionsByKey(),
+                      config.getUnixDomainSocketsByKey()
+                  ),
+                  new ResourcePoolConfig(config.getNumConnections())
+              ),
+              config.getReadTimeout(),
+              config.getCompressionCodec(),
+              config.getMaxResponseBodySize(),
+              config.getCompletionExecutor()
+          )
+      );
+    }
+    catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+  /**
+   * Creates an {@link Http2HttpClient}, which needs io.netty:netty-all 4.1 on the classpath. Every host it talks to
+   * must speak HTTP/2. Its event loop threads and connections are shut down when the lifecycle stops.
+   *
+   * @throws IllegalArgumentException if the config has a buffer budget or handler executor, which it doesn't support
+   */
+  public static HttpClient createHttp2Client(HttpClientConfig config, Lifecycle lifecycle)
+  {
+    checkNetty4Config(config);
+    try {
+      return lifecycle.addMaybeStartManagedInstance(
+          new Http2HttpClient(
+              new ResourcePool<>(
+                  new Http2ChannelResourceFactory(
+                      Netty4Transport.createHttp2Bootstrap(config, lifecycle),
+                      config.getSslContext(),
+                      config.getSslHandshakeTimeout() == null ? -1 : config.getSslHandshakeTimeout().getMillis(),
+                      config.getChannelOptionsByKey(),
+                      config.getUnixDomainSocketsByKey()
+                  ),
+                  new ResourcePoolConfig(config.getNumConnections())
+              ),
+              config.getReadTimeout(),
+              config.getCompressionCodec(),
+              config.getMaxResponseBodySize(),
+              config.getCompletionExecutor()
+          )
+      );
+    }
+    catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static void checkNetty4Config(HttpClientConfig config)
+  {
+    Preconditions.checkArgument(
+        config.getMaxBufferedResponseBytes() <= 0,
+        "maxBufferedResponseBytes is not supported by the Netty 4 and HTTP/2 clients"
+    );
+    Preconditions.checkArgument(
+        config.getHandlerExecutor() == null,
+        "handlerExecutor is not supported by the Netty 4 and HTTP/2 clients"
+    );
+  }
+
+  /**
+   * Creates a {@link BlockingHttpClient}, which runs each request as one blocking task on "executor". Its connections
+   * are closed when the lifecycle stops; the executor is left to the caller.
+   */
+  public static HttpClient createBlockingClient(HttpClientConfig config, Executor executor, Lifecycle lifecycle)
+  {
+    try {
+      return lifecycle.addMaybeStartManagedInstance(new BlockingHttpClient(config, executor));
+    }
+    catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
   @Deprecated
   public static HttpClient createClient(ResourcePoolConfig config, final SSLContext sslContext, Lifecycle lifecycle)
   {
@@ -116,8 +227,7 @@ public class HttpClientInit
   @Deprecated // use createClient directly
   public static ClientBootstrap createBootstrap(Lifecycle lifecycle, Timer timer)
   {
-    final HttpClientConfig defaultConfig = HttpClientConfig.builder().build();
-    return createBootstrap(lifecycle, timer, defaultConfig.getBossPoolSize(), defaultConfig.getWorkerPoolSize());
+    return createBootstrap(lifecycle, timer, HttpClientConfig.builder().build());
   }
 
   @Deprecated // use createClient directly
@@ -167,7 +277,33 @@ public class HttpClientInit
     }
   }
 
-  private static ClientBootstrap createBootstrap(Lifecycle lifecycle, Timer timer, int bossPoolSize, int workerPoolSize)
+  private static Executor createPipeliningRequeueExecutor(Lifecycle lifecycle) throws Exception
+  {
+    final ExecutorService exec = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("HttpClient-Pipeline-Requeue-%s")
+            .build()
+    );
+    lifecycle.addMaybeStartHandler(
+        new Lifecycle.Handler()
+        {
+          @Override
+          public void start() throws Exception
+          {
+          }
+
+          @Override
+          public void stop()
+          {
+            exec.shutdown();
+          }
+        }
+    );
+    return exec;
+  }
+
+  static ClientBootstrap createBootstrap(Lifecycle lifecycle, Timer timer, HttpClientConfig config)
   {
     final NioClientBossPool bossPool = new NioClientBossPool(
         Executors.newCachedThreadPool(
@@ -176,7 +312,7 @@ public class HttpClientInit
                 .setNameFormat("HttpClient-Netty-Boss-%s")
                 .build()
         ),
-        bossPoolSize,
+        config.getBossPoolSize(),
         timer,
         ThreadNameDeterminer.CURRENT
     );
@@ -188,13 +324,32 @@ public class HttpClientInit
                 .setNameFormat("HttpClient-Netty-Worker-%s")
                 .build()
         ),
-        workerPoolSize,
+        config.getWorkerPoolSize(),
         ThreadNameDeterminer.CURRENT
     );
 
     final ClientBootstrap bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(bossPool, workerPool));
 
     bootstrap.setOption("keepAlive", true);
+    bootstrap.setOption("tcpNoDelay", config.isTcpNoDelay());
+    if (config.getSendBufferSize() > 0) {
+      bootstrap.setOption("sendBufferSize", config.getSendBufferSize());
+    }
+    if (config.getReceiveBufferSize() > 0) {
+      bootstrap.setOption("receiveBufferSize", config.getReceiveBufferSize());
+    }
+    if (config.getWriteBufferHighWaterMark() > 0 && config.getWriteBufferLowWaterMark() > 0) {
+      bootstrap.setOption("writeBufferHighWaterMark", config.getWriteBufferHighWaterMark());
+      bootstrap.setOption("writeBufferLowWaterMark", config.getWriteBufferLowWaterMark());
+    }
+    bootstrap.setOption(
+        "receiveBufferSizePredictorFactory",
+        new AdaptiveReceiveBufferSizePredictorFactory(
+            config.getReceiveBufferSizePredictorMin(),
+            config.getReceiveBufferSizePredictorInitial(),
+            config.getReceiveBufferSizePredictorMax()
+        )
+    );
     bootstrap.setPipelineFactory(new HttpClientPipelineFactory());
 
     InternalLoggerFactory.setDefaultFactory(new Log4JLoggerFactory());
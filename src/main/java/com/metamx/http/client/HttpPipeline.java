@@ -0,0 +1,429 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.metamx.common.logger.Logger;
+import com.metamx.http.client.pool.ResourceContainer;
+import com.metamx.http.client.response.ClientResponse;
+import com.metamx.http.client.response.HttpResponseHandler;
+import com.metamx.http.client.response.StreamingResponseHandler;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.timeout.ReadTimeoutHandler;
+import org.jboss.netty.util.Timer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pooled channel shared by several outstanding requests under HTTP/1.1 pipelining. Requests are written in the
+ * order they are added, and responses go to them in the same order. The channel goes back to the pool once no
+ * requests are left on it.
+ *
+ * If a response breaks, the channel is closed and the requests behind it are handed back to {@link HttpPipelines}
+ * to be sent again elsewhere. The same happens when a server closes the connection after a response.
+ */
+class HttpPipeline extends SimpleChannelUpstreamHandler
+{
+  private static final Logger log = new Logger(HttpPipeline.class);
+
+  private static final String READ_TIMEOUT_HANDLER_NAME = "pipeline-read-timeout";
+  private static final String HANDLER_NAME = "pipeline";
+
+  private final HttpPipelines owner;
+  private final Channel channel;
+  private final ResourceContainer<ChannelFuture> channelResourceContainer;
+  private final boolean readTimeoutHandler;
+
+  // Guarded by "this"
+  private final Deque<Entry<?, ?>> entries = new ArrayDeque<>();
+  private boolean open = true;
+  private boolean released = false;
+
+  HttpPipeline(
+      HttpPipelines owner,
+      Channel channel,
+      ResourceContainer<ChannelFuture> channelResourceContainer,
+      Timer timer,
+      long readTimeout
+  )
+  {
+    this.owner = owner;
+    this.channel = channel;
+    this.channelResourceContainer = channelResourceContainer;
+    this.readTimeoutHandler = readTimeout > 0;
+
+    if (readTimeoutHandler) {
+      channel.getPipeline().addLast(
+          READ_TIMEOUT_HANDLER_NAME,
+          new ReadTimeoutHandler(timer, readTimeout, TimeUnit.MILLISECONDS)
+      );
+    }
+    channel.getPipeline().addLast(HANDLER_NAME, this);
+  }
+
+  synchronized int size()
+  {
+    return entries.size();
+  }
+
+  /**
+   * Writes the request of "entry" to the channel, unless the pipeline no longer takes requests.
+   *
+   * @return false if the pipeline no longer takes requests
+   */
+  synchronized boolean add(Entry<?, ?> entry)
+  {
+    if (!open) {
+      return false;
+    }
+
+    entries.add(entry);
+    entry.trafficCop = new ChannelTrafficCop(
+        channel,
+        owner.getResponseBufferBudget(),
+        entry.handler instanceof StreamingResponseHandler
+    );
+
+    // Written while holding the lock, so requests go out in the same order as the entries.
+    channel.write(NettyHttpClient.toHttpRequest(entry.request, owner.getCompressionCodec())).addListener(
+        new ChannelFutureListener()
+        {
+          @Override
+          public void operationComplete(ChannelFuture future) throws Exception
+          {
+            if (!future.isSuccess()) {
+              breakPipeline(
+                  new ChannelException("Failed to write pipelined request to channel", future.getCause()),
+                  true,
+                  true
+              );
+            }
+          }
+        }
+    );
+    return true;
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    final Entry<?, ?> head;
+    synchronized (this) {
+      head = entries.peek();
+    }
+    if (head == null) {
+      breakPipeline(new IllegalStateException("Got a response with no request outstanding"), true, true);
+      return;
+    }
+
+    if (!head.process(e.getMessage())) {
+      return;
+    }
+
+    if (head.failure != null) {
+      // The head has already failed itself.
+      synchronized (this) {
+        entries.poll();
+      }
+      breakPipeline(head.failure, false, true);
+    } else if (!head.keepAlive) {
+      synchronized (this) {
+        entries.poll();
+      }
+      // The server won't answer the rest, but nothing went wrong, so sending them again doesn't count as a retry.
+      breakPipeline(new ChannelException("Connection closed by server"), false, false);
+    } else {
+      final boolean empty;
+      synchronized (this) {
+        entries.poll();
+        empty = entries.isEmpty();
+        if (empty) {
+          open = false;
+        }
+      }
+      if (empty) {
+        release(false);
+      }
+    }
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception
+  {
+    if (log.isDebugEnabled()) {
+      log.debug(e.getCause(), "[%s] Caught exception on pipelined channel", channel);
+    }
+    breakPipeline(e.getCause(), true, true);
+  }
+
+  @Override
+  public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+  {
+    if (log.isDebugEnabled()) {
+      log.debug("[%s] Pipelined channel disconnected", channel);
+    }
+    final boolean headStarted;
+    synchronized (this) {
+      headStarted = !entries.isEmpty() && entries.peek().response != null;
+    }
+    // A head that hasn't seen any of its response is as safe to send again as the rest.
+    breakPipeline(new ChannelException("Channel disconnected"), headStarted, true);
+    ctx.sendUpstream(e);
+  }
+
+  /**
+   * Closes the channel and gives up on the requests still on it. If "failHead" is set, the first of them fails with
+   * "cause", since its response is the one that broke. The rest are sent again, counting as a retry if "retry" is set.
+   */
+  private void breakPipeline(Throwable cause, boolean failHead, boolean retry)
+  {
+    final List<Entry<?, ?>> remaining;
+    synchronized (this) {
+      open = false;
+      remaining = new ArrayList<>(entries);
+      entries.clear();
+    }
+
+    release(true);
+
+    if (failHead && !remaining.isEmpty()) {
+      remaining.remove(0).fail(cause);
+    }
+    if (!remaining.isEmpty()) {
+      if (log.isDebugEnabled()) {
+        log.debug(cause, "[%s] Sending %,d pipelined requests again", channel, remaining.size());
+      }
+      owner.requeue(remaining, cause, retry);
+    }
+  }
+
+  private void release(boolean close)
+  {
+    synchronized (this) {
+      if (released) {
+        return;
+      }
+      released = true;
+    }
+
+    if (readTimeoutHandler) {
+      channel.getPipeline().remove(READ_TIMEOUT_HANDLER_NAME);
+    }
+    channel.getPipeline().remove(HANDLER_NAME);
+    if (close) {
+      channel.close();
+    }
+    owner.remove(this);
+    channelResourceContainer.returnResource();
+  }
+
+  /**
+   * A request waiting on, or being answered by, a pipeline. Only touched by one pipeline at a time.
+   */
+  static class Entry<Intermediate, Final>
+  {
+    private final Request request;
+    private final HttpResponseHandler<Intermediate, Final> handler;
+    private final SettableFuture<Final> retVal;
+    private final long maxResponseBodySize;
+    private final String requestDesc;
+
+    private int retries = 0;
+    private ChannelTrafficCop trafficCop = null;
+    private ClientResponse<Intermediate> response = null;
+    private long responseBodyBytes = 0;
+    private boolean keepAlive = true;
+    private Throwable failure = null;
+
+    Entry(
+        Request request,
+        HttpResponseHandler<Intermediate, Final> handler,
+        SettableFuture<Final> retVal,
+        long maxResponseBodySize
+    )
+    {
+      this.request = request;
+      this.handler = handler;
+      this.retVal = retVal;
+      this.maxResponseBodySize = maxResponseBodySize;
+      this.requestDesc = String.format("%s %s", request.getMethod(), request.getUrl());
+    }
+
+    String getPoolKey()
+    {
+      return NettyHttpClient.getPoolKey(request.getUrl());
+    }
+
+    /**
+     * Counts a retry of the request.
+     *
+     * @return the number of retries so far, including this one
+     */
+    int retry()
+    {
+      return ++retries;
+    }
+
+    /**
+     * Hands part of the response to the handler.
+     *
+     * @return true once the request is over, either done or failed
+     */
+    @SuppressWarnings("unchecked")
+    boolean process(Object msg)
+    {
+      try {
+        if (msg instanceof HttpResponse) {
+          final HttpResponse httpResponse = (HttpResponse) msg;
+          if (log.isDebugEnabled()) {
+            log.debug("[%s] Got pipelined response: %s", requestDesc, httpResponse.getStatus());
+          }
+          keepAlive = HttpHeaders.isKeepAlive(httpResponse);
+
+          if (!httpResponse.isChunked()) {
+            if (exceedsLimit(httpResponse.getContent().readableBytes())) {
+              return true;
+            }
+            trafficCop.received(httpResponse.getContent().readableBytes());
+          }
+          if (handler instanceof StreamingResponseHandler) {
+            response = ((StreamingResponseHandler<Intermediate, Final>) handler).handleResponse(
+                httpResponse,
+                trafficCop
+            );
+          } else {
+            response = handler.handleResponse(httpResponse);
+          }
+          if (response.isFinished()) {
+            retVal.set((Final) response.getObj());
+          }
+
+          if (!httpResponse.isChunked()) {
+            finishRequest();
+            return true;
+          }
+          return false;
+        } else if (msg instanceof HttpChunk) {
+          final HttpChunk httpChunk = (HttpChunk) msg;
+          if (httpChunk.isLast()) {
+            finishRequest();
+            return true;
+          }
+
+          if (exceedsLimit(httpChunk.getContent().readableBytes())) {
+            return true;
+          }
+          trafficCop.received(httpChunk.getContent().readableBytes());
+          response = handler.handleChunk(response, httpChunk);
+          if (response.isFinished() && !retVal.isDone()) {
+            retVal.set((Final) response.getObj());
+          }
+          return false;
+        } else {
+          throw new IllegalStateException(String.format("Unknown message type[%s]", msg.getClass()));
+        }
+      }
+      catch (Exception ex) {
+        log.warn(ex, "[%s] Exception thrown while processing message, closing channel.", requestDesc);
+
+        failure = ex;
+        if (!retVal.isDone()) {
+          retVal.set(null);
+        }
+        trafficCop.close(true);
+        // response is non-null if we received initial chunk and then exception occurs
+        if (response != null) {
+          handler.exceptionCaught(response, ex);
+        }
+        return true;
+      }
+    }
+
+    private boolean exceedsLimit(int bytes)
+    {
+      responseBodyBytes += bytes;
+      if (maxResponseBodySize > 0 && responseBodyBytes > maxResponseBodySize) {
+        failure = new ResponseTooLargeException(maxResponseBodySize);
+        fail(failure);
+        return true;
+      } else {
+        return false;
+      }
+    }
+
+    private void finishRequest()
+    {
+      ClientResponse<Final> finalResponse = handler.done(response);
+      if (!finalResponse.isFinished()) {
+        throw new IllegalStateException(
+            String.format(
+                "[%s] Didn't get a completed ClientResponse Object from [%s]",
+                requestDesc,
+                handler.getClass()
+            )
+        );
+      }
+      if (!retVal.isDone()) {
+        retVal.set(finalResponse.getObj());
+      }
+      trafficCop.close(false);
+    }
+
+    void fail(Throwable cause)
+    {
+      retVal.setException(cause);
+      // response is non-null if we received initial chunk and then exception occurs
+      if (response != null) {
+        handler.exceptionCaught(response, cause);
+      }
+      if (trafficCop != null) {
+        trafficCop.close(true);
+      }
+    }
+
+    /**
+     * Gets the entry ready to be added to another pipeline. Only valid if none of its response has been seen.
+     */
+    void reset()
+    {
+      if (trafficCop != null) {
+        trafficCop.close(false);
+        trafficCop = null;
+      }
+    }
+
+    String getRequestDesc()
+    {
+      return requestDesc;
+    }
+  }
+}
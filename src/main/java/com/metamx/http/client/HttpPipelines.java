@@ -0,0 +1,238 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.metamx.common.logger.Logger;
+import com.metamx.http.client.pool.ResourceContainer;
+import com.metamx.http.client.pool.ResourcePool;
+import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.util.Timer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * HTTP/1.1 pipelining for {@link NettyHttpClient}. Each pooled channel can carry up to a pool key's pipelining depth
+ * of outstanding requests. A request joins the least busy {@link HttpPipeline} for its key that has room, and a new
+ * channel is only taken from the pool if none does, so fewer connections are needed to hide round trips.
+ *
+ * Requests behind a broken response haven't been answered, so they are sent again on another channel, once, from the
+ * requeue executor, since taking a channel from the pool may block and pipelines break on I/O threads. Only idempotent
+ * requests with no streaming or file body are pipelined, so they are safe to send again.
+ */
+class HttpPipelines
+{
+  private static final Logger log = new Logger(HttpPipelines.class);
+
+  static final Set<HttpMethod> IDEMPOTENT_METHODS = ImmutableSet.of(
+      HttpMethod.GET,
+      HttpMethod.HEAD,
+      HttpMethod.OPTIONS,
+      HttpMethod.TRACE,
+      HttpMethod.PUT,
+      HttpMethod.DELETE
+  );
+  private static final int MAX_RETRIES = 1;
+
+  private final ResourcePool<String, ChannelFuture> pool;
+  private final HttpClientConfig.CompressionCodec compressionCodec;
+  private final Timer timer;
+  private final long readTimeout;
+  private final ResponseBufferBudget responseBufferBudget;
+  private final int defaultDepth;
+  private final Map<String, Integer> depthByKey;
+  private final Executor requeueExecutor;
+
+  // Guarded by "this"
+  private final Map<String, List<HttpPipeline>> pipelinesByKey = new HashMap<>();
+
+  HttpPipelines(
+      ResourcePool<String, ChannelFuture> pool,
+      HttpClientConfig.CompressionCodec compressionCodec,
+      Timer timer,
+      long readTimeout,
+      ResponseBufferBudget responseBufferBudget,
+      int defaultDepth,
+      Map<String, Integer> depthByKey,
+      Executor requeueExecutor
+  )
+  {
+    this.pool = pool;
+    this.compressionCodec = compressionCodec;
+    this.timer = timer;
+    this.readTimeout = readTimeout;
+    this.responseBufferBudget = responseBufferBudget;
+    this.defaultDepth = defaultDepth;
+    this.depthByKey = ImmutableMap.copyOf(depthByKey);
+    this.requeueExecutor = requeueExecutor;
+  }
+
+  /**
+   * Whether "request" may be pipelined: it must be idempotent, so it can be sent again, and have no streaming or file
+   * body. Pipelines only write requests whose content is in memory.
+   */
+  boolean canPipeline(Request request)
+  {
+    return IDEMPOTENT_METHODS.contains(request.getMethod())
+           && !request.hasStreamingContent()
+           && !request.hasFileContent()
+           && getDepth(NettyHttpClient.getPoolKey(request.getUrl())) > 1;
+  }
+
+  HttpClientConfig.CompressionCodec getCompressionCodec()
+  {
+    return compressionCodec;
+  }
+
+  ResponseBufferBudget getResponseBufferBudget()
+  {
+    return responseBufferBudget;
+  }
+
+  /**
+   * Sends the request of "entry" on a pipeline for its key, blocking while taking a channel from the pool if needed.
+   */
+  void submit(HttpPipeline.Entry<?, ?> entry)
+  {
+    final String poolKey = entry.getPoolKey();
+
+    synchronized (this) {
+      final HttpPipeline pipeline = leastBusy(poolKey);
+      if (pipeline != null && pipeline.add(entry)) {
+        return;
+      }
+    }
+
+    final ResourceContainer<ChannelFuture> channelResourceContainer;
+    try {
+      channelResourceContainer = pool.take(poolKey);
+    }
+    catch (Exception e) {
+      entry.fail(e);
+      return;
+    }
+    if (channelResourceContainer == null) {
+      entry.fail(new ChannelException("Client is closed"));
+      return;
+    }
+    final ChannelFuture channelFuture = channelResourceContainer.get().awaitUninterruptibly();
+    if (!channelFuture.isSuccess()) {
+      channelResourceContainer.returnResource(); // Some other poor sap will have to deal with it...
+      entry.fail(new ChannelException("Faulty channel in resource pool", channelFuture.getCause()));
+      return;
+    }
+
+    final HttpPipeline pipeline = new HttpPipeline(
+        this,
+        channelFuture.getChannel(),
+        channelResourceContainer,
+        timer,
+        readTimeout
+    );
+    synchronized (this) {
+      List<HttpPipeline> pipelines = pipelinesByKey.get(poolKey);
+      if (pipelines == null) {
+        pipelines = new ArrayList<>();
+        pipelinesByKey.put(poolKey, pipelines);
+      }
+      pipelines.add(pipeline);
+      pipeline.add(entry);
+    }
+  }
+
+  /**
+   * Sends requests from a broken pipeline again. If "retry" is set this counts as a retry, and requests that have
+   * already been retried fail instead.
+   */
+  void requeue(List<HttpPipeline.Entry<?, ?>> entries, Throwable cause, boolean retry)
+  {
+    for (final HttpPipeline.Entry<?, ?> entry : entries) {
+      entry.reset();
+      if (retry && entry.retry() > MAX_RETRIES) {
+        entry.fail(
+            new ChannelException(
+                String.format("[%s] Pipelined request failed behind a broken response", entry.getRequestDesc()),
+                cause
+            )
+        );
+        continue;
+      }
+
+      try {
+        requeueExecutor.execute(
+            new Runnable()
+            {
+              @Override
+              public void run()
+              {
+                submit(entry);
+              }
+            }
+        );
+      }
+      catch (RejectedExecutionException e) {
+        log.debug(e, "[%s] Requeue rejected", entry.getRequestDesc());
+        entry.fail(new ChannelException("Client is closed", cause));
+      }
+    }
+  }
+
+  synchronized void remove(HttpPipeline pipeline)
+  {
+    for (List<HttpPipeline> pipelines : pipelinesByKey.values()) {
+      if (pipelines.remove(pipeline)) {
+        return;
+      }
+    }
+  }
+
+  private int getDepth(String poolKey)
+  {
+    final Integer depth = depthByKey.get(poolKey);
+    return depth == null ? defaultDepth : depth;
+  }
+
+  // Must hold "this"
+  private HttpPipeline leastBusy(String poolKey)
+  {
+    final List<HttpPipeline> pipelines = pipelinesByKey.get(poolKey);
+    if (pipelines == null) {
+      return null;
+    }
+
+    final int depth = getDepth(poolKey);
+    HttpPipeline retVal = null;
+    int retValSize = depth;
+    for (HttpPipeline pipeline : pipelines) {
+      final int size = pipeline.size();
+      if (size < retValSize) {
+        retVal = pipeline;
+        retValSize = size;
+      }
+    }
+    return retVal;
+  }
+}
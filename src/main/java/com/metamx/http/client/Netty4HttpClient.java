@@ -0,0 +1,452 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.metamx.common.guava.CloseQuietly;
+import com.metamx.common.lifecycle.LifecycleStart;
+import com.metamx.common.lifecycle.LifecycleStop;
+import com.metamx.common.logger.Logger;
+import com.metamx.http.client.io.ExactLengthInputStream;
+import com.metamx.http.client.netty4.Netty4Messages;
+import com.metamx.http.client.pool.ResourceContainer;
+import com.metamx.http.client.pool.ResourcePool;
+import com.metamx.http.client.response.ClientResponse;
+import com.metamx.http.client.response.HttpResponseHandler;
+import com.metamx.http.client.response.StreamingResponseHandler;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedFile;
+import io.netty.handler.stream.ChunkedStream;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.handler.timeout.ReadTimeoutException;
+import org.joda.time.Duration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * HttpClient built on Netty 4 rather than Netty 3. Responses are read into pooled direct buffers and decoded without
+ * the intermediate heap buffers Netty 3 allocates for every read, so the only garbage per response is the copy of
+ * its content handed to the {@link HttpResponseHandler}.
+ *
+ * Handlers see the same Netty 3 messages as with {@link NettyHttpClient}, except that the initial HttpResponse never
+ * has content: all of it arrives through handleChunk. Pausing a {@link StreamingResponseHandler}'s TrafficCop stops
+ * reads from the channel. Buffer budgets and handler executors are not supported, and requests that set a handler
+ * executor are rejected.
+ *
+ * Requires io.netty:netty-all 4.1, which is an optional dependency.
+ */
+public class Netty4HttpClient extends AbstractHttpClient
+{
+  private static final Logger log = new Logger(Netty4HttpClient.class);
+
+  private static final String READ_TIMEOUT_HANDLER_NAME = "read-timeout";
+  private static final String LAST_HANDLER_NAME = "last-handler";
+  private static final int STREAMING_CONTENT_CHUNK_SIZE = 8192;
+
+  private final ResourcePool<String, ChannelFuture> pool;
+  private final HttpClientConfig.CompressionCodec compressionCodec;
+  private final Duration defaultReadTimeout;
+  private final long defaultMaxResponseBodySize;
+  private final Executor completionExecutor;
+
+  public Netty4HttpClient(
+      ResourcePool<String, ChannelFuture> pool,
+      Duration defaultReadTimeout,
+      HttpClientConfig.CompressionCodec compressionCodec,
+      long defaultMaxResponseBodySize,
+      Executor completionExecutor
+  )
+  {
+    this.pool = Preconditions.checkNotNull(pool, "pool");
+    this.defaultReadTimeout = defaultReadTimeout;
+    this.compressionCodec = Preconditions.checkNotNull(compressionCodec);
+    this.defaultMaxResponseBodySize = defaultMaxResponseBodySize;
+    this.completionExecutor = completionExecutor;
+  }
+
+  @LifecycleStart
+  public void start()
+  {
+  }
+
+  @LifecycleStop
+  public void stop()
+  {
+    pool.close();
+  }
+
+  @Override
+  public <Intermediate, Final> ListenableFuture<Final> go(
+      final Request request,
+      final HttpResponseHandler<Intermediate, Final> handler,
+      final Duration requestReadTimeout
+  )
+  {
+    Preconditions.checkArgument(
+        request.getHandlerExecutor() == null,
+        "handlerExecutor is not supported by Netty4HttpClient"
+    );
+
+    final URL url = request.getUrl();
+
+    final String requestDesc = String.format("%s %s", request.getMethod(), url);
+    if (log.isDebugEnabled()) {
+      log.debug("[%s] starting", requestDesc);
+    }
+
+    // Open streaming content before taking a channel, so a source that can't be read doesn't tie one up.
+    final RandomAccessFile fileContent;
+    final InputStream streamingContent;
+    if (request.hasFileContent()) {
+      try {
+        fileContent = new RandomAccessFile(request.getFileContent(), "r");
+      }
+      catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+      streamingContent = null;
+    } else if (request.hasStreamingContent()) {
+      fileContent = null;
+      try {
+        final InputStream in = request.getStreamingContent().openStream();
+        final long length = request.getStreamingContentLength();
+        streamingContent = length < 0 ? in : new ExactLengthInputStream(in, length);
+      }
+      catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+    } else {
+      fileContent = null;
+      streamingContent = null;
+    }
+
+    // Block while acquiring a channel from the pool, then complete the request asynchronously.
+    final Channel channel;
+    final ResourceContainer<ChannelFuture> channelResourceContainer = pool.take(NettyHttpClient.getPoolKey(url));
+    final ChannelFuture channelFuture = channelResourceContainer.get().awaitUninterruptibly();
+    if (!channelFuture.isSuccess()) {
+      channelResourceContainer.returnResource(); // Some other poor sap will have to deal with it...
+      CloseQuietly.close(fileContent);
+      CloseQuietly.close(streamingContent);
+      return Futures.immediateFailedFuture(
+          new ChannelException(
+              "Faulty channel in resource pool",
+              channelFuture.cause()
+          )
+      );
+    } else {
+      channel = channelFuture.channel();
+    }
+
+    final HttpRequest httpRequest = Netty4Messages.toNetty4Request(
+        NettyHttpClient.toHttpRequest(request, compressionCodec)
+    );
+
+    final long readTimeout = getReadTimeout(requestReadTimeout);
+    final long maxResponseBodySize = request.getMaxResponseBodySize() < 0
+                                     ? defaultMaxResponseBodySize
+                                     : request.getMaxResponseBodySize();
+    final SettableFuture<Final> retVal = SettableFuture.create();
+    final AutoReadTrafficCop trafficCop = new AutoReadTrafficCop(channel);
+
+    // Completes once the last of the request has been written. Created up front so the response handler can tell
+    // whether a server responded before reading the entire request.
+    final ChannelPromise requestWriteFuture = channel.newPromise();
+
+    if (readTimeout > 0) {
+      channel.pipeline().addLast(
+          READ_TIMEOUT_HANDLER_NAME,
+          new ReadTimeoutHandler(readTimeout, TimeUnit.MILLISECONDS)
+      );
+    }
+
+    // Set once the response handler has returned the channel to the pool, or is about to. A failed write leaves the
+    // channel alone after that.
+    final AtomicBoolean requestOver = new AtomicBoolean(false);
+
+    channel.pipeline().addLast(
+        LAST_HANDLER_NAME,
+        new SimpleChannelInboundHandler<HttpObject>()
+        {
+          // Only touched from the channel's event loop
+          private ClientResponse<Intermediate> response = null;
+          private long responseBodyBytes = 0;
+
+          @Override
+          protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception
+          {
+            if (log.isDebugEnabled()) {
+              log.debug("[%s] channelRead: %s", requestDesc, msg);
+            }
+            if (requestOver.get()) {
+              return;
+            }
+            if (msg.decoderResult().isFailure()) {
+              processException(msg.decoderResult().cause());
+              return;
+            }
+
+            try {
+              if (msg instanceof HttpResponse) {
+                final org.jboss.netty.handler.codec.http.HttpResponse httpResponse = Netty4Messages.toNetty3Response(
+                    (HttpResponse) msg
+                );
+                if (log.isDebugEnabled()) {
+                  log.debug("[%s] Got response: %s", requestDesc, httpResponse.getStatus());
+                }
+
+                if (handler instanceof StreamingResponseHandler) {
+                  response = ((StreamingResponseHandler<Intermediate, Final>) handler).handleResponse(
+                      httpResponse,
+                      trafficCop
+                  );
+                } else {
+                  response = handler.handleResponse(httpResponse);
+                }
+                if (response.isFinished()) {
+                  retVal.set((Final) response.getObj());
+                }
+              }
+
+              // A response with no body, or the last of one, may be both the response and its content.
+              if (msg instanceof HttpContent) {
+                final HttpContent httpContent = (HttpContent) msg;
+                final int bytes = httpContent.content().readableBytes();
+                if (bytes > 0) {
+                  responseBodyBytes += bytes;
+                  if (maxResponseBodySize > 0 && responseBodyBytes > maxResponseBodySize) {
+                    processException(new ResponseTooLargeException(maxResponseBodySize));
+                    return;
+                  }
+
+                  response = handler.handleChunk(response, Netty4Messages.toNetty3Chunk(httpContent));
+                  if (response.isFinished() && !retVal.isDone()) {
+                    retVal.set((Final) response.getObj());
+                  }
+                }
+
+                if (msg instanceof LastHttpContent) {
+                  finishRequest();
+                }
+              }
+            }
+            catch (Exception ex) {
+              log.warn(ex, "[%s] Exception thrown while processing message, closing channel.", requestDesc);
+
+              if (!retVal.isDone()) {
+                retVal.set(null);
+              }
+              requestOver.set(true);
+              removeHandlers();
+              channel.close();
+              trafficCop.close();
+              channelResourceContainer.returnResource();
+
+              // response is non-null if we received initial chunk and then exception occurs
+              if (response != null) {
+                handler.exceptionCaught(response, ex);
+              }
+            }
+          }
+
+          private void finishRequest()
+          {
+            ClientResponse<Final> finalResponse = handler.done(response);
+            if (!finalResponse.isFinished()) {
+              throw new IllegalStateException(
+                  String.format(
+                      "[%s] Didn't get a completed ClientResponse Object from [%s]",
+                      requestDesc,
+                      handler.getClass()
+                  )
+              );
+            }
+            if (!retVal.isDone()) {
+              retVal.set(finalResponse.getObj());
+            }
+            removeHandlers();
+            // Before closing the channel, which fails an unfinished write.
+            requestOver.set(true);
+            if (!requestWriteFuture.isSuccess()) {
+              // The server responded before reading the whole request. The rest of the request may still be on its
+              // way, or have failed part way, so the channel can't be reused.
+              log.debug("[%s] Response finished before request was fully written, closing channel.", requestDesc);
+              channel.close();
+            }
+            trafficCop.close();
+            channelResourceContainer.returnResource();
+          }
+
+          @Override
+          public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception
+          {
+            if (log.isDebugEnabled()) {
+              log.debug(cause, "[%s] Caught exception", requestDesc);
+            }
+            if (!requestOver.get()) {
+              processException(
+                  cause instanceof io.netty.handler.timeout.ReadTimeoutException ? new ReadTimeoutException() : cause
+              );
+            }
+          }
+
+          private void processException(Throwable cause)
+          {
+            requestOver.set(true);
+            retVal.setException(cause);
+            // response is non-null if we received initial chunk and then exception occurs
+            if (response != null) {
+              handler.exceptionCaught(response, cause);
+            }
+            removeHandlers();
+            try {
+              channel.close();
+            }
+            catch (Exception e) {
+              // ignore
+            }
+            finally {
+              trafficCop.close();
+              channelResourceContainer.returnResource();
+            }
+          }
+
+          @Override
+          public void channelInactive(ChannelHandlerContext ctx) throws Exception
+          {
+            if (log.isDebugEnabled()) {
+              log.debug("[%s] Channel disconnected", requestDesc);
+            }
+            if (!requestOver.getAndSet(true)) {
+              // response is non-null if we received initial chunk and then exception occurs
+              if (response != null) {
+                handler.exceptionCaught(response, new ChannelException("Channel disconnected"));
+              }
+              removeHandlers();
+              trafficCop.close();
+              channelResourceContainer.returnResource();
+              if (!retVal.isDone()) {
+                log.warn("[%s] Channel disconnected before response complete", requestDesc);
+                retVal.setException(new ChannelException("Channel disconnected"));
+              }
+            }
+            ctx.fireChannelInactive();
+          }
+
+          private void removeHandlers()
+          {
+            if (readTimeout > 0) {
+              channel.pipeline().remove(READ_TIMEOUT_HANDLER_NAME);
+            }
+            channel.pipeline().remove(LAST_HANDLER_NAME);
+          }
+        }
+    );
+
+    if (fileContent != null) {
+      final long offset = request.getFileContentOffset();
+      final long length = request.getStreamingContentLength();
+      channel.write(httpRequest);
+      if (channel.pipeline().get(SslHandler.class) == null) {
+        // Zero-copy transfer using sendfile. The region closes the file once it has been transferred.
+        channel.write(new DefaultFileRegion(fileContent.getChannel(), offset, length));
+        channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT, requestWriteFuture);
+      } else {
+        // The file has to be encrypted, so it must be read into a buffer a chunk at a time.
+        try {
+          channel.writeAndFlush(
+              new HttpChunkedInput(new ChunkedFile(fileContent, offset, length, STREAMING_CONTENT_CHUNK_SIZE)),
+              requestWriteFuture
+          );
+        }
+        catch (IOException e) {
+          CloseQuietly.close(fileContent);
+          requestWriteFuture.setFailure(e);
+        }
+      }
+    } else if (streamingContent == null) {
+      channel.writeAndFlush(httpRequest, requestWriteFuture);
+    } else {
+      // ChunkedWriteHandler only pulls the next chunk from the stream while the channel is writable, so at most a
+      // write buffer's worth of the body is held in memory.
+      channel.write(httpRequest);
+      channel.writeAndFlush(
+          new HttpChunkedInput(new ChunkedStream(streamingContent, STREAMING_CONTENT_CHUNK_SIZE)),
+          requestWriteFuture
+      );
+    }
+
+    requestWriteFuture.addListener(
+        new ChannelFutureListener()
+        {
+          @Override
+          public void operationComplete(ChannelFuture future) throws Exception
+          {
+            // Once the request is over, the response handler has dealt with the channel. Until then, it's still in
+            // the pipeline and cleans up when it sees the channel close.
+            if (!future.isSuccess() && !requestOver.get()) {
+              if (!retVal.isDone()) {
+                retVal.setException(
+                    new ChannelException(
+                        String.format("[%s] Failed to write request to channel", requestDesc),
+                        future.cause()
+                    )
+                );
+              }
+              channel.close();
+            }
+          }
+        }
+    );
+
+    return completionExecutor == null ? retVal : new ExecutorCompletedFuture<>(retVal, completionExecutor);
+  }
+
+  private long getReadTimeout(Duration requestReadTimeout)
+  {
+    if (requestReadTimeout != null) {
+      return requestReadTimeout.getMillis();
+    } else if (defaultReadTimeout != null) {
+      return defaultReadTimeout.getMillis();
+    } else {
+      return 0;
+    }
+  }
+}
@@ -18,24 +18,33 @@ package com.metamx.http.client;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.metamx.common.IAE;
+import com.metamx.common.guava.CloseQuietly;
 import com.metamx.common.lifecycle.LifecycleStart;
 import com.metamx.common.lifecycle.LifecycleStop;
 import com.metamx.common.logger.Logger;
+import com.metamx.http.client.io.ExactLengthInputStream;
+import com.metamx.http.client.netty.HttpChunkedInput;
+import com.metamx.http.client.netty.ResponseSizeLimitHandler;
 import com.metamx.http.client.pool.ResourceContainer;
 import com.metamx.http.client.pool.ResourcePool;
 import com.metamx.http.client.response.ClientResponse;
 import com.metamx.http.client.response.HttpResponseHandler;
+import com.metamx.http.client.response.StreamingResponseHandler;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelException;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultFileRegion;
+import org.jboss.netty.channel.DownstreamMessageEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
@@ -46,14 +55,22 @@ import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.stream.ChunkedFile;
+import org.jboss.netty.handler.stream.ChunkedStream;
 import org.jboss.netty.handler.timeout.ReadTimeoutHandler;
 import org.jboss.netty.util.Timer;
 import org.joda.time.Duration;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  */
@@ -62,35 +79,87 @@ public class NettyHttpClient extends AbstractHttpClient
   private static final Logger log = new Logger(NettyHttpClient.class);
 
   private static final String READ_TIMEOUT_HANDLER_NAME = "read-timeout";
+  private static final String RESPONSE_SIZE_LIMIT_HANDLER_NAME = "response-size-limit";
   private static final String LAST_HANDLER_NAME = "last-handler";
+  private static final int STREAMING_CONTENT_CHUNK_SIZE = 8192;
 
   private final Timer timer;
   private final ResourcePool<String, ChannelFuture> pool;
   private final HttpClientConfig.CompressionCodec compressionCodec;
   private final Duration defaultReadTimeout;
+  private final long defaultMaxResponseBodySize;
+  private final ResponseBufferBudget responseBufferBudget;
+  private final Executor completionExecutor;
+  private final Executor defaultHandlerExecutor;
+  private final int maxPendingHandlerCallbacks;
+  private final int pipeliningDepth;
+  private final Map<String, Integer> pipeliningDepthByKey;
+  private final Executor pipeliningRequeueExecutor;
+  private final HttpPipelines pipelines;
 
   public NettyHttpClient(
       ResourcePool<String, ChannelFuture> pool
   )
   {
-    this(pool, null, HttpClientConfig.DEFAULT_COMPRESSION_CODEC, null);
+    this(
+        pool,
+        null,
+        HttpClientConfig.DEFAULT_COMPRESSION_CODEC,
+        null,
+        0,
+        null,
+        null,
+        null,
+        HttpClientConfig.DEFAULT_MAX_PENDING_HANDLER_CALLBACKS,
+        HttpClientConfig.DEFAULT_PIPELINING_DEPTH,
+        ImmutableMap.<String, Integer>of(),
+        null
+    );
   }
 
   NettyHttpClient(
       ResourcePool<String, ChannelFuture> pool,
       Duration defaultReadTimeout,
       HttpClientConfig.CompressionCodec compressionCodec,
-      Timer timer
+      Timer timer,
+      long defaultMaxResponseBodySize,
+      ResponseBufferBudget responseBufferBudget,
+      Executor completionExecutor,
+      Executor defaultHandlerExecutor,
+      int maxPendingHandlerCallbacks,
+      int pipeliningDepth,
+      Map<String, Integer> pipeliningDepthByKey,
+      Executor pipeliningRequeueExecutor
   )
   {
     this.pool = Preconditions.checkNotNull(pool, "pool");
     this.defaultReadTimeout = defaultReadTimeout;
     this.compressionCodec = Preconditions.checkNotNull(compressionCodec);
     this.timer = timer;
+    this.defaultMaxResponseBodySize = defaultMaxResponseBodySize;
+    this.responseBufferBudget = responseBufferBudget;
+    this.completionExecutor = completionExecutor;
+    this.defaultHandlerExecutor = defaultHandlerExecutor;
+    this.maxPendingHandlerCallbacks = maxPendingHandlerCallbacks;
+    this.pipeliningDepth = pipeliningDepth;
+    this.pipeliningDepthByKey = pipeliningDepthByKey;
+    this.pipeliningRequeueExecutor = pipeliningRequeueExecutor;
 
     if (defaultReadTimeout != null && defaultReadTimeout.getMillis() > 0) {
       Preconditions.checkNotNull(timer, "timer");
     }
+
+    // Requests can only be sent again if there is somewhere to do it, so no executor means no pipelining.
+    this.pipelines = pipeliningRequeueExecutor == null ? null : new HttpPipelines(
+        pool,
+        compressionCodec,
+        timer,
+        getReadTimeout(null),
+        responseBufferBudget,
+        pipeliningDepth,
+        pipeliningDepthByKey,
+        pipeliningRequeueExecutor
+    );
   }
 
   @LifecycleStart
@@ -106,12 +175,38 @@ public class NettyHttpClient extends AbstractHttpClient
 
   public HttpClient withReadTimeout(Duration readTimeout)
   {
-    return new NettyHttpClient(pool, readTimeout, compressionCodec, timer);
+    return new NettyHttpClient(
+        pool,
+        readTimeout,
+        compressionCodec,
+        timer,
+        defaultMaxResponseBodySize,
+        responseBufferBudget,
+        completionExecutor,
+        defaultHandlerExecutor,
+        maxPendingHandlerCallbacks,
+        pipeliningDepth,
+        pipeliningDepthByKey,
+        pipeliningRequeueExecutor
+    );
   }
 
   public NettyHttpClient withTimer(Timer timer)
   {
-    return new NettyHttpClient(pool, defaultReadTimeout, compressionCodec, timer);
+    return new NettyHttpClient(
+        pool,
+        defaultReadTimeout,
+        compressionCodec,
+        timer,
+        defaultMaxResponseBodySize,
+        responseBufferBudget,
+        completionExecutor,
+        defaultHandlerExecutor,
+        maxPendingHandlerCallbacks,
+        pipeliningDepth,
+        pipeliningDepthByKey,
+        pipeliningRequeueExecutor
+    );
   }
 
   @Override
@@ -123,13 +218,52 @@ public class NettyHttpClient extends AbstractHttpClient
   {
     final HttpMethod method = request.getMethod();
     final URL url = request.getUrl();
-    final Multimap<String, String> headers = request.getHeaders();
 
     final String requestDesc = String.format("%s %s", method, url);
     if (log.isDebugEnabled()) {
       log.debug("[%s] starting", requestDesc);
     }
 
+    final long maxResponseBodySize = request.getMaxResponseBodySize() < 0
+                                     ? defaultMaxResponseBodySize
+                                     : request.getMaxResponseBodySize();
+
+    if (pipelines != null
+        && requestReadTimeout == null
+        && request.getHandlerExecutor() == null
+        && defaultHandlerExecutor == null
+        && pipelines.canPipeline(request)) {
+      final SettableFuture<Final> retVal = SettableFuture.create();
+      pipelines.submit(new HttpPipeline.Entry<>(request, handler, retVal, maxResponseBodySize));
+      return completionExecutor == null ? retVal : new ExecutorCompletedFuture<>(retVal, completionExecutor);
+    }
+
+    // Open streaming content before taking a channel, so a source that can't be read doesn't tie one up.
+    final RandomAccessFile fileContent;
+    final InputStream streamingContent;
+    if (request.hasFileContent()) {
+      try {
+        fileContent = new RandomAccessFile(request.getFileContent(), "r");
+      }
+      catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+      streamingContent = null;
+    } else if (request.hasStreamingContent()) {
+      fileContent = null;
+      try {
+        final InputStream in = request.getStreamingContent().openStream();
+        final long length = request.getStreamingContentLength();
+        streamingContent = length < 0 ? in : new ExactLengthInputStream(in, length);
+      }
+      catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+    } else {
+      fileContent = null;
+      streamingContent = null;
+    }
+
     // Block while acquiring a channel from the pool, then complete the request asynchronously.
     final Channel channel;
     final String hostKey = getPoolKey(url);
@@ -137,6 +271,8 @@ public class NettyHttpClient extends AbstractHttpClient
     final ChannelFuture channelFuture = channelResourceContainer.get().awaitUninterruptibly();
     if (!channelFuture.isSuccess()) {
       channelResourceContainer.returnResource(); // Some other poor sap will have to deal with it...
+      CloseQuietly.close(fileContent);
+      CloseQuietly.close(streamingContent);
       return Futures.immediateFailedFuture(
           new ChannelException(
               "Faulty channel in resource pool",
@@ -147,36 +283,29 @@ public class NettyHttpClient extends AbstractHttpClient
       channel = channelFuture.getChannel();
     }
 
-    final String urlFile = Strings.nullToEmpty(url.getFile());
-    final HttpRequest httpRequest = new DefaultHttpRequest(
-        HttpVersion.HTTP_1_1,
-        method,
-        urlFile.isEmpty() ? "/" : urlFile
-    );
-
-    if (!headers.containsKey(HttpHeaders.Names.HOST)) {
-      httpRequest.headers().add(HttpHeaders.Names.HOST, getHost(url));
-    }
-
-    // If Accept-Encoding is set in the Request, use that. Otherwise use the default from "compressionCodec".
-    if (!headers.containsKey(HttpHeaders.Names.ACCEPT_ENCODING)) {
-      httpRequest.headers().set(HttpHeaders.Names.ACCEPT_ENCODING, compressionCodec.getEncodingString());
-    }
-
-    for (Map.Entry<String, Collection<String>> entry : headers.asMap().entrySet()) {
-      String key = entry.getKey();
-
-      for (String obj : entry.getValue()) {
-        httpRequest.headers().add(key, obj);
-      }
-    }
-
-    if (request.hasContent()) {
-      httpRequest.setContent(request.getContent());
-    }
+    final HttpRequest httpRequest = toHttpRequest(request, compressionCodec);
 
     final long readTimeout = getReadTimeout(requestReadTimeout);
     final SettableFuture<Final> retVal = SettableFuture.create();
+    final ChannelTrafficCop trafficCop = new ChannelTrafficCop(
+        channel,
+        responseBufferBudget,
+        handler instanceof StreamingResponseHandler
+    );
+    final Executor handlerExecutor = request.getHandlerExecutor() == null
+                                     ? defaultHandlerExecutor
+                                     : request.getHandlerExecutor();
+    final HandlerCallbackQueue callbackQueue = handlerExecutor == null
+                                               ? null
+                                               : new HandlerCallbackQueue(
+                                                   handlerExecutor,
+                                                   maxPendingHandlerCallbacks,
+                                                   trafficCop
+                                               );
+
+    // Completes once the last of the request has been written. Created up front so the response handler can tell
+    // whether a server responded before reading the entire request.
+    final ChannelFuture requestWriteFuture = Channels.future(channel);
 
     if (readTimeout > 0) {
       channel.getPipeline().addLast(
@@ -185,6 +314,17 @@ public class NettyHttpClient extends AbstractHttpClient
       );
     }
 
+    if (maxResponseBodySize > 0) {
+      channel.getPipeline().addLast(
+          RESPONSE_SIZE_LIMIT_HANDLER_NAME,
+          new ResponseSizeLimitHandler(maxResponseBodySize)
+      );
+    }
+
+    // Set once the response handler has returned the channel to the pool, or is about to. Queued callbacks use it to
+    // skip events that come in after the request is over, and a failed write to leave the channel alone.
+    final AtomicBoolean requestOver = new AtomicBoolean(false);
+
     channel.getPipeline().addLast(
         LAST_HANDLER_NAME,
         new SimpleChannelUpstreamHandler()
@@ -197,8 +337,39 @@ public class NettyHttpClient extends AbstractHttpClient
             if (log.isDebugEnabled()) {
               log.debug("[%s] messageReceived: %s", requestDesc, e.getMessage());
             }
+            final Object msg = e.getMessage();
+            if (callbackQueue == null) {
+              processMessage(msg);
+            } else {
+              callbackQueue.submit(
+                  new Runnable()
+                  {
+                    @Override
+                    public void run()
+                    {
+                      if (requestOver.get()) {
+                        return;
+                      }
+                      try {
+                        processMessage(msg);
+                      }
+                      catch (Exception ex) {
+                        // processMessage has already closed the channel. There's no rethrowing from here, so tell the
+                        // handler what exceptionCaught would have.
+                        requestOver.set(true);
+                        if (response != null) {
+                          handler.exceptionCaught(response, ex);
+                        }
+                      }
+                    }
+                  }
+              );
+            }
+          }
+
+          private void processMessage(Object msg) throws Exception
+          {
             try {
-              Object msg = e.getMessage();
 
               if (msg instanceof HttpResponse) {
                 HttpResponse httpResponse = (HttpResponse) msg;
@@ -206,7 +377,17 @@ public class NettyHttpClient extends AbstractHttpClient
                   log.debug("[%s] Got response: %s", requestDesc, httpResponse.getStatus());
                 }
 
-                response = handler.handleResponse(httpResponse);
+                if (!httpResponse.isChunked()) {
+                  trafficCop.received(httpResponse.getContent().readableBytes());
+                }
+                if (handler instanceof StreamingResponseHandler) {
+                  response = ((StreamingResponseHandler<Intermediate, Final>) handler).handleResponse(
+                      httpResponse,
+                      trafficCop
+                  );
+                } else {
+                  response = handler.handleResponse(httpResponse);
+                }
                 if (response.isFinished()) {
                   retVal.set((Final) response.getObj());
                 }
@@ -228,6 +409,7 @@ public class NettyHttpClient extends AbstractHttpClient
                 if (httpChunk.isLast()) {
                   finishRequest();
                 } else {
+                  trafficCop.received(httpChunk.getContent().readableBytes());
                   response = handler.handleChunk(response, httpChunk);
                   if (response.isFinished() && !retVal.isDone()) {
                     retVal.set((Final) response.getObj());
@@ -243,7 +425,9 @@ public class NettyHttpClient extends AbstractHttpClient
               if (!retVal.isDone()) {
                 retVal.set(null);
               }
+              requestOver.set(true);
               channel.close();
+              trafficCop.close(true);
               channelResourceContainer.returnResource();
 
               throw ex;
@@ -266,14 +450,23 @@ public class NettyHttpClient extends AbstractHttpClient
               retVal.set(finalResponse.getObj());
             }
             removeHandlers();
+            // Before closing the channel, which fails an unfinished write.
+            requestOver.set(true);
+            if (!requestWriteFuture.isSuccess()) {
+              // The server responded before reading the whole request. The rest of the request may still be on its
+              // way, or have failed part way, so the channel can't be reused.
+              log.debug("[%s] Response finished before request was fully written, closing channel.", requestDesc);
+              channel.close();
+            }
+            trafficCop.close(false);
             channelResourceContainer.returnResource();
           }
 
           @Override
           public void exceptionCaught(ChannelHandlerContext context, ExceptionEvent event) throws Exception
           {
+            final Throwable cause = event.getCause();
             if (log.isDebugEnabled()) {
-              final Throwable cause = event.getCause();
               if (cause == null) {
                 log.debug("[%s] Caught exception", requestDesc);
               } else {
@@ -281,10 +474,36 @@ public class NettyHttpClient extends AbstractHttpClient
               }
             }
 
-            retVal.setException(event.getCause());
+            if (callbackQueue == null) {
+              processException(cause);
+            } else {
+              callbackQueue.submit(
+                  new Runnable()
+                  {
+                    @Override
+                    public void run()
+                    {
+                      if (!requestOver.get()) {
+                        processException(cause);
+                      }
+                    }
+                  }
+              );
+            }
+
+            context.sendUpstream(event);
+          }
+
+          private void processException(Throwable cause)
+          {
+            if (requestOver.getAndSet(true)) {
+              // Already closed and returned, for instance by a disconnect after a failed write.
+              return;
+            }
+            retVal.setException(cause);
             // response is non-null if we received initial chunk and then exception occurs
             if (response != null) {
-              handler.exceptionCaught(response, event.getCause());
+              handler.exceptionCaught(response, cause);
             }
             removeHandlers();
             try {
@@ -294,10 +513,9 @@ public class NettyHttpClient extends AbstractHttpClient
               // ignore
             }
             finally {
+              trafficCop.close(true);
               channelResourceContainer.returnResource();
             }
-
-            context.sendUpstream(event);
           }
 
           @Override
@@ -306,17 +524,43 @@ public class NettyHttpClient extends AbstractHttpClient
             if (log.isDebugEnabled()) {
               log.debug("[%s] Channel disconnected", requestDesc);
             }
+            if (callbackQueue == null) {
+              processDisconnect();
+            } else {
+              callbackQueue.submit(
+                  new Runnable()
+                  {
+                    @Override
+                    public void run()
+                    {
+                      if (!requestOver.get()) {
+                        processDisconnect();
+                      }
+                    }
+                  }
+              );
+            }
+            context.sendUpstream(event);
+          }
+
+          private void processDisconnect()
+          {
+            final boolean alreadyOver = requestOver.getAndSet(true);
             // response is non-null if we received initial chunk and then exception occurs
             if (response != null) {
               handler.exceptionCaught(response, new ChannelException("Channel disconnected"));
             }
+            if (alreadyOver) {
+              // Closed after the request ended, which has already returned the channel.
+              return;
+            }
             channel.close();
+            trafficCop.close(true);
             channelResourceContainer.returnResource();
             if (!retVal.isDone()) {
               log.warn("[%s] Channel disconnected before response complete", requestDesc);
               retVal.setException(new ChannelException("Channel disconnected"));
             }
-            context.sendUpstream(event);
           }
 
           private void removeHandlers()
@@ -324,20 +568,57 @@ public class NettyHttpClient extends AbstractHttpClient
             if (readTimeout > 0) {
               channel.getPipeline().remove(READ_TIMEOUT_HANDLER_NAME);
             }
+            if (maxResponseBodySize > 0) {
+              channel.getPipeline().remove(RESPONSE_SIZE_LIMIT_HANDLER_NAME);
+            }
             channel.getPipeline().remove(LAST_HANDLER_NAME);
           }
         }
     );
 
-    channel.write(httpRequest).addListener(
+    if (fileContent != null) {
+      final long offset = request.getFileContentOffset();
+      final long length = request.getStreamingContentLength();
+      channel.write(httpRequest);
+      if (channel.getPipeline().get(SslHandler.class) == null) {
+        // Zero-copy transfer using sendfile. The region closes the file once it has been transferred.
+        write(channel, new DefaultFileRegion(fileContent.getChannel(), offset, length, true), requestWriteFuture);
+      } else {
+        // The file has to be encrypted, so it must be read onto the heap a chunk at a time.
+        try {
+          write(
+              channel,
+              new HttpChunkedInput(new ChunkedFile(fileContent, offset, length, STREAMING_CONTENT_CHUNK_SIZE)),
+              requestWriteFuture
+          );
+        }
+        catch (IOException e) {
+          CloseQuietly.close(fileContent);
+          requestWriteFuture.setFailure(e);
+        }
+      }
+    } else if (streamingContent == null) {
+      write(channel, httpRequest, requestWriteFuture);
+    } else {
+      // ChunkedWriteHandler only pulls the next chunk from the stream while the channel is writable, so at most a
+      // write buffer's worth of the body is held in memory.
+      channel.write(httpRequest);
+      write(
+          channel,
+          new HttpChunkedInput(new ChunkedStream(streamingContent, STREAMING_CONTENT_CHUNK_SIZE)),
+          requestWriteFuture
+      );
+    }
+
+    requestWriteFuture.addListener(
         new ChannelFutureListener()
         {
           @Override
           public void operationComplete(ChannelFuture future) throws Exception
           {
-            if (!future.isSuccess()) {
-              channel.close();
-              channelResourceContainer.returnResource();
+            // Once the request is over, the response handler has dealt with the channel. Until then, it's still in
+            // the pipeline and cleans up when it sees the channel close.
+            if (!future.isSuccess() && !requestOver.get()) {
               if (!retVal.isDone()) {
                 retVal.setException(
                     new ChannelException(
@@ -346,12 +627,60 @@ public class NettyHttpClient extends AbstractHttpClient
                     )
                 );
               }
+              channel.close();
             }
           }
         }
     );
 
-    return retVal;
+    return completionExecutor == null ? retVal : new ExecutorCompletedFuture<>(retVal, completionExecutor);
+  }
+
+  /**
+   * The request line, headers and, if it is held in memory, the body of "request". Streaming bodies are marked as
+   * chunked, to be followed by HttpChunks.
+   */
+  static HttpRequest toHttpRequest(Request request, HttpClientConfig.CompressionCodec compressionCodec)
+  {
+    final URL url = request.getUrl();
+    final Multimap<String, String> headers = request.getHeaders();
+    final String urlFile = Strings.nullToEmpty(url.getFile());
+    final HttpRequest httpRequest = new DefaultHttpRequest(
+        HttpVersion.HTTP_1_1,
+        request.getMethod(),
+        urlFile.isEmpty() ? "/" : urlFile
+    );
+
+    if (!headers.containsKey(HttpHeaders.Names.HOST)) {
+      httpRequest.headers().add(HttpHeaders.Names.HOST, getHost(url));
+    }
+
+    // If Accept-Encoding is set in the Request, use that. Otherwise use the default from "compressionCodec".
+    if (!headers.containsKey(HttpHeaders.Names.ACCEPT_ENCODING)) {
+      httpRequest.headers().set(HttpHeaders.Names.ACCEPT_ENCODING, compressionCodec.getEncodingString());
+    }
+
+    for (Map.Entry<String, Collection<String>> entry : headers.asMap().entrySet()) {
+      String key = entry.getKey();
+
+      for (String obj : entry.getValue()) {
+        httpRequest.headers().add(key, obj);
+      }
+    }
+
+    if (request.hasContent()) {
+      httpRequest.setContent(request.getContent());
+    } else if (request.hasFileContent() || request.hasStreamingContent()) {
+      // The body follows as HttpChunks. The encoder only frames them if there is no Content-Length.
+      httpRequest.setChunked(true);
+    }
+
+    return httpRequest;
+  }
+
+  private static void write(Channel channel, Object message, ChannelFuture future)
+  {
+    channel.getPipeline().sendDownstream(new DownstreamMessageEvent(channel, future, message, null));
   }
 
   private long getReadTimeout(Duration requestReadTimeout)
@@ -373,7 +702,7 @@ public class NettyHttpClient extends AbstractHttpClient
     }
   }
 
-  private String getHost(URL url)
+  static String getHost(URL url)
   {
     int port = url.getPort();
 
@@ -392,7 +721,7 @@ public class NettyHttpClient extends AbstractHttpClient
     return String.format("%s:%s", url.getHost(), port);
   }
 
-  private String getPoolKey(URL url)
+  static String getPoolKey(URL url)
   {
     return String.format(
         "%s://%s:%s", url.getProtocol(), url.getHost(), url.getPort() == -1 ? url.getDefaultPort() : url.getPort()
@@ -17,11 +17,14 @@
 package com.metamx.http.client;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
 import com.metamx.http.client.response.HttpResponseHandler;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferFactory;
@@ -30,12 +33,18 @@ import org.jboss.netty.handler.codec.base64.Base64;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  */
@@ -56,6 +65,12 @@ public class Request
   );
 
   private ChannelBuffer content;
+  private ByteSource streamingContent;
+  private long streamingContentLength = -1;
+  private File fileContent;
+  private long fileContentOffset;
+  private long maxResponseBodySize = -1;
+  private Executor handlerExecutor;
 
   public Request(
       HttpMethod method,
@@ -91,10 +106,77 @@ public class Request
     return content;
   }
 
+  public boolean hasStreamingContent()
+  {
+    return streamingContent != null;
+  }
+
+  /**
+   * Source of a request body that is streamed to the server rather than held in memory. Opened once per request.
+   */
+  public ByteSource getStreamingContent()
+  {
+    return streamingContent;
+  }
+
+  /**
+   * Length of the streaming content, or -1 if it is not known up front, in which case the body is sent with
+   * "Transfer-Encoding: chunked".
+   */
+  public long getStreamingContentLength()
+  {
+    return streamingContentLength;
+  }
+
+  public boolean hasFileContent()
+  {
+    return fileContent != null;
+  }
+
+  /**
+   * File whose contents make up the request body. If set, {@link #getStreamingContent()} is a view of the same
+   * region of the file, for clients that can't send the file directly.
+   */
+  public File getFileContent()
+  {
+    return fileContent;
+  }
+
+  public long getFileContentOffset()
+  {
+    return fileContentOffset;
+  }
+
+  /**
+   * Limit on the decompressed size of the response body, or -1 to use the client's default. Zero means no limit.
+   */
+  public long getMaxResponseBodySize()
+  {
+    return maxResponseBodySize;
+  }
+
+  /**
+   * Executor to run the response handler's callbacks on, or null to use the client's default.
+   */
+  public Executor getHandlerExecutor()
+  {
+    return handlerExecutor;
+  }
+
+  /**
+   * Note that streaming content set from an InputStream or ReadableByteChannel can only be sent once, so it
+   * cannot be shared by the original and the copy.
+   */
   public Request copy() {
     Request retVal = new Request(method, url);
     retVal.headers.putAll(this.headers);
     retVal.content = content == null ? null : content.copy();
+    retVal.streamingContent = streamingContent;
+    retVal.streamingContentLength = streamingContentLength;
+    retVal.fileContent = fileContent;
+    retVal.fileContentOffset = fileContentOffset;
+    retVal.maxResponseBodySize = maxResponseBodySize;
+    retVal.handlerExecutor = handlerExecutor;
     return retVal;
   }
 
@@ -168,12 +250,125 @@ public class Request
     }
 
     this.content = content;
+    this.streamingContent = null;
+    this.streamingContentLength = -1;
+    this.fileContent = null;
+    this.fileContentOffset = 0;
 
+    headers.removeAll(HttpHeaders.Names.TRANSFER_ENCODING);
     setHeader(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(content.writerIndex()));
 
     return this;
   }
 
+  public Request setContent(String contentType, ByteSource source)
+  {
+    return setContent(contentType, source, -1);
+  }
+
+  /**
+   * Streams the request body from "source", which is opened when the request is sent. Only a buffer's worth of the
+   * body is in memory at a time, and writes are paced by the connection's write buffer watermarks.
+   *
+   * @param length length of the body if known, or -1 to send it with "Transfer-Encoding: chunked"
+   */
+  public Request setContent(String contentType, ByteSource source, long length)
+  {
+    Preconditions.checkNotNull(source, "source");
+
+    if (contentType != null) {
+      setHeader(HttpHeaders.Names.CONTENT_TYPE, contentType);
+    }
+
+    this.content = null;
+    this.streamingContent = source;
+    this.streamingContentLength = length < 0 ? -1 : length;
+    this.fileContent = null;
+    this.fileContentOffset = 0;
+
+    if (streamingContentLength < 0) {
+      headers.removeAll(HttpHeaders.Names.CONTENT_LENGTH);
+      setHeader(HttpHeaders.Names.TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
+    } else {
+      headers.removeAll(HttpHeaders.Names.TRANSFER_ENCODING);
+      setHeader(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(streamingContentLength));
+    }
+
+    return this;
+  }
+
+  public Request setContent(String contentType, InputStream in)
+  {
+    return setContent(contentType, in, -1);
+  }
+
+  /**
+   * Streams the request body from "in", which will be closed once the body has been sent.
+   *
+   * @param length length of the body if known, or -1 to send it with "Transfer-Encoding: chunked"
+   */
+  public Request setContent(String contentType, InputStream in, long length)
+  {
+    return setContent(contentType, new OneShotByteSource(Preconditions.checkNotNull(in, "in")), length);
+  }
+
+  public Request setContent(String contentType, ReadableByteChannel channel)
+  {
+    return setContent(contentType, channel, -1);
+  }
+
+  /**
+   * Streams the request body from "channel", which will be closed once the body has been sent.
+   *
+   * @param length length of the body if known, or -1 to send it with "Transfer-Encoding: chunked"
+   */
+  public Request setContent(String contentType, ReadableByteChannel channel, long length)
+  {
+    return setContent(contentType, Channels.newInputStream(Preconditions.checkNotNull(channel, "channel")), length);
+  }
+
+  public Request setContent(String contentType, File file)
+  {
+    return setContent(contentType, file, 0, file.length());
+  }
+
+  /**
+   * Sends "length" bytes of "file", starting at "offset", as the request body. Over plaintext connections the file is
+   * transferred straight from the page cache to the socket, without being copied onto the heap.
+   */
+  public Request setContent(String contentType, File file, long offset, long length)
+  {
+    Preconditions.checkArgument(offset >= 0 && length >= 0, "offset[%s] and length[%s] must be >= 0", offset, length);
+
+    setContent(contentType, Files.asByteSource(file).slice(offset, length), length);
+
+    this.fileContent = file;
+    this.fileContentOffset = offset;
+
+    return this;
+  }
+
+  /**
+   * Fails the request with a {@link ResponseTooLargeException} if its decompressed response body exceeds
+   * "maxResponseBodySize" bytes. Set to -1 to use the client's default, or zero for no limit.
+   */
+  public Request setMaxResponseBodySize(long maxResponseBodySize)
+  {
+    this.maxResponseBodySize = maxResponseBodySize;
+    return this;
+  }
+
+  /**
+   * Runs the response handler's callbacks on "handlerExecutor" rather than the client's I/O thread, one at a time and
+   * in order. Reads from the connection pause while too many callbacks are waiting. Overrides the client's default;
+   * see {@link HttpClientConfig.Builder#withHandlerExecutor(Executor)}.
+   */
+  public Request setHandlerExecutor(Executor handlerExecutor)
+  {
+    this.handlerExecutor = handlerExecutor;
+    return this;
+  }
+
   public Request setBasicAuthentication(String username, String password)
   {
     final String base64Value = base64Encode(String.format("%s:%s", username, password));
@@ -189,4 +384,26 @@ public class Request
         .encode(bufferFactory.getBuffer(ByteBuffer.wrap(value.getBytes(Charsets.UTF_8))), false)
         .toString(Charsets.UTF_8);
   }
-}
\ No newline at end of file
+
+  private static class OneShotByteSource extends ByteSource
+  {
+    private InputStream in;
+
+    private OneShotByteSource(InputStream in)
+    {
+      this.in = in;
+    }
+
+    @Override
+    public synchronized InputStream openStream() throws IOException
+    {
+      if (in == null) {
+        throw new IOException("Streaming content has already been sent, it cannot be sent again.");
+      }
+
+      final InputStream retVal = in;
+      in = null;
+      return retVal;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * Client-wide limit on the number of response bytes held in memory. Requests acquire bytes as content arrives and
+ * release them once their handlers no longer hold it. A request that can't acquire bytes stops reading from its
+ * connection until enough have been released.
+ *
+ * If every buffered response were paused waiting for the rest of its body, none could finish and release anything. To
+ * guarantee progress, one request at a time is allowed to keep reading past the limit.
+ */
+class ResponseBufferBudget
+{
+  private final long maxBytes;
+
+  private final Object lock = new Object();
+  private final List<Runnable> waiters = Lists.newArrayList();
+  private long usedBytes = 0;
+  private Object exemptHolder = null;
+
+  ResponseBufferBudget(long maxBytes)
+  {
+    Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Acquires "bytes", which are already in memory, so this always succeeds. Returns false if the budget is now
+   * exhausted, in which case the caller should stop reading until {@link #whenAvailable(Runnable)} says otherwise,
+   * unless it is {@link #exempt(Object)}.
+   */
+  boolean acquire(long bytes)
+  {
+    synchronized (lock) {
+      usedBytes += bytes;
+      return usedBytes <= maxBytes;
+    }
+  }
+
+  void release(long bytes)
+  {
+    final List<Runnable> toRun;
+    synchronized (lock) {
+      usedBytes -= bytes;
+      toRun = usedBytes < maxBytes ? drainWaiters() : ImmutableList.<Runnable>of();
+    }
+    run(toRun);
+  }
+
+  /**
+   * Tries to make "holder" the one request allowed to exceed the budget. Returns true if it is, or already was.
+   */
+  boolean exempt(Object holder)
+  {
+    synchronized (lock) {
+      if (exemptHolder == null) {
+        exemptHolder = holder;
+      }
+      return exemptHolder == holder;
+    }
+  }
+
+  void unexempt(Object holder)
+  {
+    final List<Runnable> toRun;
+    synchronized (lock) {
+      if (exemptHolder != holder) {
+        return;
+      }
+      exemptHolder = null;
+      // Let everyone waiting retry, so one of them can take over the exemption.
+      toRun = drainWaiters();
+    }
+    run(toRun);
+  }
+
+  /**
+   * Runs "runnable" once there is budget available or the exemption is up for grabs, which may be immediately.
+   */
+  void whenAvailable(Runnable runnable)
+  {
+    synchronized (lock) {
+      if (usedBytes >= maxBytes && exemptHolder != null) {
+        waiters.add(runnable);
+        return;
+      }
+    }
+    runnable.run();
+  }
+
+  long getUsedBytes()
+  {
+    synchronized (lock) {
+      return usedBytes;
+    }
+  }
+
+  private List<Runnable> drainWaiters()
+  {
+    if (waiters.isEmpty()) {
+      return ImmutableList.of();
+    }
+    final List<Runnable> retVal = ImmutableList.copyOf(waiters);
+    waiters.clear();
+    return retVal;
+  }
+
+  private static void run(List<Runnable> runnables)
+  {
+    for (Runnable runnable : runnables) {
+      runnable.run();
+    }
+  }
+}
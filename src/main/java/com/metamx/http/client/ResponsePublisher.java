@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.metamx.http.client.response.PublisherResponseHandler;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.joda.time.Duration;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+/**
+ * Reactive Streams view of a request's response content. Each subscriber gets a request of its own, sent when it
+ * subscribes, and reads from the connection follow its demand; see {@link PublisherResponseHandler}. Failures,
+ * including those before the response arrives, end the subscription with onError.
+ *
+ * The content is published whatever the response's status is. Callers that need the status or headers can use
+ * {@link PublisherResponseHandler} directly, whose result is the response.
+ */
+public class ResponsePublisher implements Publisher<ChannelBuffer>
+{
+  private final HttpClient client;
+  private final Request request;
+  private final Duration readTimeout;
+
+  public ResponsePublisher(HttpClient client, Request request)
+  {
+    this(client, request, null);
+  }
+
+  /**
+   * @param request     request to send; each subscriber sends a copy, so streaming request content can't be used
+   *                    with more than one subscriber
+   * @param readTimeout read timeout, or null for the client's default
+   */
+  public ResponsePublisher(HttpClient client, Request request, Duration readTimeout)
+  {
+    this.client = Preconditions.checkNotNull(client, "client");
+    this.request = Preconditions.checkNotNull(request, "request");
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * Sends the request from the calling thread, which blocks while the client's pool is exhausted.
+   */
+  @Override
+  public void subscribe(Subscriber<? super ChannelBuffer> subscriber)
+  {
+    final PublisherResponseHandler handler = new PublisherResponseHandler();
+    handler.subscribe(subscriber);
+
+    final ListenableFuture<HttpResponse> future;
+    try {
+      future = client.go(request.copy(), handler, readTimeout);
+    }
+    catch (Exception e) {
+      handler.exceptionCaught(null, e);
+      return;
+    }
+
+    Futures.addCallback(
+        future,
+        new FutureCallback<HttpResponse>()
+        {
+          @Override
+          public void onSuccess(HttpResponse response)
+          {
+            // Content, and any failure after the response arrived, are the handler's business.
+          }
+
+          @Override
+          public void onFailure(Throwable t)
+          {
+            handler.exceptionCaught(null, t);
+          }
+        }
+    );
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import org.jboss.netty.channel.ChannelException;
+
+/**
+ * Thrown when the decoded body of a response exceeds the limit set for its request. The connection is closed as soon
+ * as the limit is crossed, rather than after the rest of the response has been read.
+ */
+public class ResponseTooLargeException extends ChannelException
+{
+  private final long maxBytes;
+
+  public ResponseTooLargeException(long maxBytes)
+  {
+    super(String.format("Response body exceeded the maximum of %,d bytes", maxBytes));
+    this.maxBytes = maxBytes;
+  }
+
+  public long getMaxBytes()
+  {
+    return maxBytes;
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.metamx.common.logger.Logger;
+import com.metamx.http.client.response.ServerSentEventResponseHandler;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.joda.time.Duration;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a text/event-stream subscription going, reconnecting with Last-Event-ID whenever the response ends or fails,
+ * after the reconnection time the server last asked for. Events are dispatched on the client's I/O threads and
+ * reconnects are scheduled on a shared executor, so a stream has no thread of its own.
+ *
+ * The subscription ends once {@link #stop()} is called, or the server responds with anything but 200 OK.
+ */
+public class ServerSentEventStream
+{
+  private static final Logger log = new Logger(ServerSentEventStream.class);
+
+  private final HttpClient client;
+  private final Request request;
+  private final ServerSentEventResponseHandler.Listener listener;
+  private final ScheduledExecutorService exec;
+  private final Duration readTimeout;
+
+  private volatile long retryMillis;
+  private volatile String lastEventId = null;
+  private volatile ServerSentEventResponseHandler currentHandler = null;
+  private volatile boolean stopped = false;
+
+  /**
+   * @param request      request for the stream; each connection uses a copy
+   * @param exec         executor to schedule reconnects on; connecting blocks while the client's pool is exhausted,
+   *                     so this shouldn't be an I/O thread
+   * @param readTimeout  read timeout for the stream's connections, or null for the client's default. Servers often
+   *                     send comments periodically, to keep streams from timing out.
+   * @param defaultRetry time to wait before reconnecting, until the server asks for something else
+   */
+  public ServerSentEventStream(
+      HttpClient client,
+      Request request,
+      ServerSentEventResponseHandler.Listener listener,
+      ScheduledExecutorService exec,
+      Duration readTimeout,
+      Duration defaultRetry
+  )
+  {
+    this.client = Preconditions.checkNotNull(client, "client");
+    this.request = Preconditions.checkNotNull(request, "request");
+    this.listener = Preconditions.checkNotNull(listener, "listener");
+    this.exec = Preconditions.checkNotNull(exec, "exec");
+    this.readTimeout = readTimeout;
+    this.retryMillis = defaultRetry.getMillis();
+  }
+
+  public void start()
+  {
+    connect();
+  }
+
+  /**
+   * Stops reconnecting. The current connection is closed when it next receives content.
+   */
+  public void stop()
+  {
+    stopped = true;
+    final ServerSentEventResponseHandler handler = currentHandler;
+    if (handler != null) {
+      handler.stop();
+    }
+  }
+
+  public boolean isStopped()
+  {
+    return stopped;
+  }
+
+  public String getLastEventId()
+  {
+    return lastEventId;
+  }
+
+  private void connect()
+  {
+    if (stopped) {
+      return;
+    }
+
+    final Request connectionRequest = request.copy();
+    if (lastEventId != null) {
+      connectionRequest.setHeader("Last-Event-ID", lastEventId);
+    }
+    if (!connectionRequest.getHeaders().containsKey(HttpHeaders.Names.ACCEPT)) {
+      connectionRequest.setHeader(HttpHeaders.Names.ACCEPT, "text/event-stream");
+    }
+
+    final ServerSentEventResponseHandler handler = new ServerSentEventResponseHandler(listener, lastEventId);
+    currentHandler = handler;
+    if (stopped) {
+      // In case stop() missed it.
+      handler.stop();
+    }
+
+    try {
+      Futures.addCallback(
+          client.go(connectionRequest, handler, readTimeout),
+          new FutureCallback<Long>()
+          {
+            @Override
+            public void onSuccess(Long numEvents)
+            {
+              connectionOver(handler);
+              final HttpResponseStatus status = handler.getStatus();
+              if (status != null && !HttpResponseStatus.OK.equals(status)) {
+                log.warn("Event stream[%s] responded with[%s], not reconnecting.", request.getUrl(), status);
+                stopped = true;
+              } else {
+                reconnect();
+              }
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+              connectionOver(handler);
+              if (!stopped) {
+                log.warn(t, "Event stream[%s] failed, reconnecting.", request.getUrl());
+              }
+              reconnect();
+            }
+          }
+      );
+    }
+    catch (Exception e) {
+      log.warn(e, "Failed to connect to event stream[%s], retrying.", request.getUrl());
+      reconnect();
+    }
+  }
+
+  private void connectionOver(ServerSentEventResponseHandler handler)
+  {
+    lastEventId = handler.getLastEventId();
+    if (handler.getRetryMillis() >= 0) {
+      retryMillis = handler.getRetryMillis();
+    }
+  }
+
+  private void reconnect()
+  {
+    if (stopped) {
+      return;
+    }
+
+    exec.schedule(
+        new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            connect();
+          }
+        },
+        retryMillis,
+        TimeUnit.MILLISECONDS
+    );
+  }
+}
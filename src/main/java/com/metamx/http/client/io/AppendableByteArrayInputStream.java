@@ -14,195 +14,287 @@
  * limitations under the License.
  */
 
+
 package com.metamx.http.client.io;
 
-import com.metamx.common.logger.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * An InputStream that is fed from another thread. Added content is retained as-is and read straight into the
+ * caller's array, so each byte is copied only once.
+ *
+ * Content is passed from a single producer, which calls {@link #add}, {@link #done()} and
+ * {@link #exceptionCaught(Throwable)}, to a single reader through a linked queue without locks. Reads allocate nothing
+ * and only park the reader when there is nothing left to read.
  */
 public class AppendableByteArrayInputStream extends InputStream
 {
-  private static final Logger log = new Logger(AppendableByteArrayInputStream.class);
-
-  private final LinkedList<byte[]> bytes = new LinkedList<byte[]>();
-  private final SingleByteReaderDoer singleByteReaderDoer = new SingleByteReaderDoer();
-
+  // Written only by the producer
+  private Node tail = new Node(ChannelBuffers.EMPTY_BUFFER, 0, 0);
+  private volatile long addedBytes = 0;
   private volatile boolean done = false;
   private volatile Throwable throwable;
-  private volatile int available = 0;
 
-  private byte[] curr = new byte[]{};
+  // Written only by the reader, except by discard()
+  private Node head = tail;
   private int currIndex = 0;
+  private volatile long consumedBytes = 0;
+  private long reportedBytes = 0;
+  private volatile Thread waiter;
+  private volatile boolean closed = false;
 
   public void add(byte[] bytesToAdd) {
-    if (bytesToAdd.length == 0) {
+    add(ChannelBuffers.wrappedBuffer(bytesToAdd));
+  }
+
+  /**
+   * Adds the readable bytes of "buffer" without copying them. The buffer's indexes are left alone, but its content
+   * must not be modified afterwards.
+   */
+  public void add(ChannelBuffer buffer)
+  {
+    final int length = buffer.readableBytes();
+    if (length == 0) {
       return;
     }
+    if (closed) {
+      // Nobody is going to read it.
+      bytesConsumed(length);
+      return;
+    }
+
+    final Node node = new Node(buffer, buffer.readerIndex(), buffer.writerIndex());
+    addedBytes += length;
+    tail.next = node;
+    tail = node;
+    wakeReader();
 
-    synchronized (singleByteReaderDoer) {
-      bytes.addLast(bytesToAdd);
-      available += bytesToAdd.length;
-      singleByteReaderDoer.notify();
+    if (closed) {
+      // The stream was closed while this was being added, and may or may not have discarded it.
+      discard();
     }
   }
 
   public void done()
   {
-    synchronized (singleByteReaderDoer) {
-      done = true;
-      singleByteReaderDoer.notify();
-    }
+    done = true;
+    wakeReader();
   }
 
   public void exceptionCaught(Throwable t)
   {
-    synchronized (singleByteReaderDoer) {
-      done = true;
-      throwable = t;
-      singleByteReaderDoer.notify();
-    }
+    throwable = t;
+    done = true;
+    wakeReader();
   }
 
   @Override
   public int read() throws IOException
   {
-    if (scanThroughBytesAndDoSomething(1, singleByteReaderDoer) == 0) {
-      return -1;
+    while (currIndex >= head.endIndex) {
+      if (!advance()) {
+        return -1;
+      }
+    }
+
+    final int retVal = head.buffer.getByte(currIndex++) & 0xff;
+    consumedBytes++;
+    if (currIndex == head.endIndex) {
+      report();
     }
-    return singleByteReaderDoer.getRetVal();
+    return retVal;
   }
 
   @Override
   public int read(final byte[] b, final int off, int len) throws IOException
   {
     if (b == null) {
-   	    throw new NullPointerException();
-   	} else if (off < 0 || len < 0 || len > b.length - off) {
-   	    throw new IndexOutOfBoundsException();
-   	} else if (len == 0) {
-   	    return 0;
-   	}
-
-    final long retVal = scanThroughBytesAndDoSomething(
-        len,
-        new Doer()
-        {
-          int currOff = off;
-
-          @Override
-          public void doSomethingWithByteArray(int numRead)
-          {
-            System.arraycopy(curr, currIndex, b, currOff, numRead);
-            currOff += numRead;
-          }
-        }
-    );
+      throw new NullPointerException();
+    } else if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+
+    final long retVal = scan(b, off, len);
     return retVal == 0 ? -1 : (int) retVal;
   }
 
   @Override
   public long skip(long n) throws IOException
   {
-    return scanThroughBytesAndDoSomething(
-        n,
-        new Doer()
-        {
-          @Override
-          public void doSomethingWithByteArray(int numToScan)
-          {
-          }
-        }
-    );
+    return scan(null, 0, n);
   }
 
-  private long scanThroughBytesAndDoSomething(long numToScan, Doer doer) throws IOException
+  /**
+   * Copies up to "len" bytes into "dst", or skips them if "dst" is null, blocking until that many are available or
+   * the stream ends.
+   */
+  private long scan(byte[] dst, int off, long len) throws IOException
   {
     long numScanned = 0;
-    long numPulled = 0;
-
-    while (numToScan > numScanned) {
-      if (currIndex >= curr.length) {
-        synchronized (singleByteReaderDoer) {
-          if (bytes.isEmpty()) {
-            if (done) {
-              break;
-            }
-            try {
-              available -= numPulled;
-              numPulled = 0;
-              singleByteReaderDoer.wait();
-            }
-            catch (InterruptedException e) {
-              Thread.currentThread().interrupt();
-              throw new IOException("Interrupted!");
-            }
-          }
-
-          if (throwable != null) {
-            throw new IOException(throwable);
-          }
-
-          if (bytes.isEmpty()) {
-            if (done) {
-              break;
-            }
-            else {
-              log.debug("bytes was empty, but read thread was awakened without being done.  This shouldn't happen.");
-              continue;
-            }
-          }
-
-          curr = bytes.removeFirst();
-          currIndex = 0;
+
+    while (numScanned < len) {
+      final int remaining = head.endIndex - currIndex;
+      if (remaining == 0) {
+        if (advance()) {
+          continue;
+        } else {
+          break;
         }
       }
 
-      final long numToPullFromCurr = Math.min(curr.length - currIndex, numToScan - numScanned);
-      doer.doSomethingWithByteArray((int) numToPullFromCurr);
-      numScanned += numToPullFromCurr;
-      currIndex += numToPullFromCurr;
-      numPulled += numToPullFromCurr;
+      final int numToScan = (int) Math.min(remaining, len - numScanned);
+      if (dst != null) {
+        head.buffer.getBytes(currIndex, dst, off + (int) numScanned, numToScan);
+      }
+      currIndex += numToScan;
+      numScanned += numToScan;
+      consumedBytes += numToScan;
     }
 
-    synchronized (singleByteReaderDoer) {
-      available -= numPulled;
+    if (currIndex == head.endIndex) {
+      report();
     }
 
     return numScanned;
   }
 
+  /**
+   * Moves on to the next buffer, waiting for one to be added if necessary. Returns false if the stream has ended.
+   */
+  private boolean advance() throws IOException
+  {
+    report();
+
+    Node next;
+    while ((next = head.next) == null) {
+      if (throwable != null) {
+        throw new IOException(throwable);
+      }
+      if (done) {
+        // "next" is written before "done", so check it once more.
+        next = head.next;
+        if (next == null) {
+          return false;
+        }
+        break;
+      }
+      await();
+    }
+
+    if (throwable != null) {
+      throw new IOException(throwable);
+    }
+
+    head = next;
+    currIndex = next.startIndex;
+    return true;
+  }
+
+  private void await() throws IOException
+  {
+    waiter = Thread.currentThread();
+    try {
+      // The producer publishes before checking "waiter", and this checks after setting it, so wake-ups can't be missed.
+      while (head.next == null && !done) {
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted!");
+        }
+      }
+    }
+    finally {
+      waiter = null;
+    }
+  }
+
+  private void wakeReader()
+  {
+    final Thread reader = waiter;
+    if (reader != null) {
+      LockSupport.unpark(reader);
+    }
+  }
+
+  private void report()
+  {
+    final long consumed = consumedBytes;
+    if (consumed > reportedBytes) {
+      final long numBytes = consumed - reportedBytes;
+      reportedBytes = consumed;
+      bytesConsumed(numBytes);
+    }
+  }
+
   @Override
   public int available() throws IOException
   {
-    return available;
+    if (closed) {
+      return 0;
+    }
+    return (int) Math.min(addedBytes - consumedBytes, Integer.MAX_VALUE);
   }
 
-  private static interface Doer
+  /**
+   * Called whenever bytes have been read or skipped, or discarded by {@link #close()}. Bytes added after the stream was
+   * closed are reported here right away. Reads are reported a buffer at a time, and before the reader waits for more.
+   */
+  protected void bytesConsumed(long numBytes)
   {
-    public void doSomethingWithByteArray(int numToScan);
   }
 
-  private class SingleByteReaderDoer implements Doer
+  /**
+   * Discards everything buffered, and anything added from now on.
+   */
+  @Override
+  public void close() throws IOException
   {
-    private int retVal;
-
-    public SingleByteReaderDoer() {
+    if (closed) {
+      return;
     }
+    report();
+    closed = true;
+    done = true;
+    discard();
+  }
 
-    @Override
-    public void doSomethingWithByteArray(int numToScan)
-    {
-      retVal = curr[currIndex];
+  /**
+   * Skips the reader past everything added so far. Called by whichever of the reader and the producer might be the
+   * last to see something added to a closed stream; the lock keeps them from both discarding the same bytes.
+   */
+  private synchronized void discard()
+  {
+    long discarded = head.endIndex - currIndex;
+    Node next;
+    while ((next = head.next) != null) {
+      head = next;
+      discarded += next.endIndex - next.startIndex;
+    }
+    currIndex = head.endIndex;
+    if (discarded > 0) {
+      bytesConsumed(discarded);
     }
+  }
+
+  private static class Node
+  {
+    private final ChannelBuffer buffer;
+    private final int startIndex;
+    private final int endIndex;
+    private volatile Node next;
 
-    public int getRetVal()
+    private Node(ChannelBuffer buffer, int startIndex, int endIndex)
     {
-      return retVal;
+      this.buffer = buffer;
+      this.startIndex = startIndex;
+      this.endIndex = endIndex;
     }
   }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads exactly "length" bytes of another InputStream. Like {@link com.google.common.io.ByteStreams#limit}, it stops
+ * there, but it also throws if the stream ends sooner, so a request body that was sent with its Content-Length fails
+ * rather than leaving the server waiting for the rest.
+ */
+public class ExactLengthInputStream extends FilterInputStream
+{
+  private final long length;
+  private long remaining;
+
+  public ExactLengthInputStream(InputStream in, long length)
+  {
+    super(in);
+    this.length = length;
+    this.remaining = length;
+  }
+
+  @Override
+  public int read() throws IOException
+  {
+    if (remaining == 0) {
+      return -1;
+    }
+
+    final int b = in.read();
+    if (b < 0) {
+      throw prematureEnd();
+    }
+    remaining--;
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    if (remaining == 0) {
+      return -1;
+    }
+    if (len == 0) {
+      return 0;
+    }
+
+    final int n = in.read(b, off, (int) Math.min(len, remaining));
+    if (n < 0) {
+      throw prematureEnd();
+    }
+    remaining -= n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException
+  {
+    final long skipped = in.skip(Math.min(n, remaining));
+    remaining -= skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException
+  {
+    return (int) Math.min(in.available(), remaining);
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return false;
+  }
+
+  private IOException prematureEnd()
+  {
+    return new IOException(String.format("Stream ended after %,d of %,d bytes", length - remaining, length));
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.stream.ChunkedInput;
+
+/**
+ * Adapts a {@link ChunkedInput} that produces raw ChannelBuffers into one that produces HttpChunks, ending with
+ * {@link HttpChunk#LAST_CHUNK}, so it can follow a chunked HttpRequest through a ChunkedWriteHandler.
+ */
+public class HttpChunkedInput implements ChunkedInput
+{
+  private final ChunkedInput input;
+  private boolean sentLastChunk = false;
+
+  public HttpChunkedInput(ChunkedInput input)
+  {
+    this.input = input;
+  }
+
+  @Override
+  public boolean hasNextChunk() throws Exception
+  {
+    return !sentLastChunk;
+  }
+
+  @Override
+  public Object nextChunk() throws Exception
+  {
+    if (sentLastChunk) {
+      return null;
+    }
+
+    if (input.isEndOfInput()) {
+      sentLastChunk = true;
+      return HttpChunk.LAST_CHUNK;
+    }
+
+    final ChannelBuffer buffer = (ChannelBuffer) input.nextChunk();
+    if (buffer == null) {
+      // Either the input has nothing available right now, or it found out it has no more data.
+      if (input.isEndOfInput()) {
+        sentLastChunk = true;
+        return HttpChunk.LAST_CHUNK;
+      }
+      return null;
+    }
+
+    return new DefaultHttpChunk(buffer);
+  }
+
+  @Override
+  public boolean isEndOfInput() throws Exception
+  {
+    return sentLastChunk;
+  }
+
+  @Override
+  public void close() throws Exception
+  {
+    input.close();
+  }
+}
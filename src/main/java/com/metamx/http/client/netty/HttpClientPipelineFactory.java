@@ -21,6 +21,7 @@ import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.DefaultChannelPipeline;
 import org.jboss.netty.handler.codec.http.HttpClientCodec;
 import org.jboss.netty.handler.codec.http.HttpContentDecompressor;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 
 /**
  */
@@ -33,6 +34,7 @@ public class HttpClientPipelineFactory implements ChannelPipelineFactory
 
     pipeline.addLast("codec", new HttpClientCodec());
     pipeline.addLast("inflater", new HttpContentDecompressor());
+    pipeline.addLast("chunked-writer", new ChunkedWriteHandler());
 
     return pipeline;
   }
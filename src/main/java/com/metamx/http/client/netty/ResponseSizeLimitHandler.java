@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.netty;
+
+import com.metamx.http.client.ResponseTooLargeException;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * Fails a response with a {@link ResponseTooLargeException} once its body exceeds a number of bytes. Must sit after
+ * the content decompressor, so it limits the decoded size of the body rather than what came over the wire.
+ *
+ * Holds the state of a single response, so a new one is needed for each request.
+ */
+public class ResponseSizeLimitHandler extends SimpleChannelUpstreamHandler
+{
+  private final long maxBytes;
+
+  // Only touched from the I/O thread
+  private long bytes = 0;
+  private boolean exceeded = false;
+
+  public ResponseSizeLimitHandler(long maxBytes)
+  {
+    this.maxBytes = maxBytes;
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+  {
+    if (exceeded) {
+      // Anything still in flight after the limit was crossed gets dropped on its way to the closed channel.
+      return;
+    }
+
+    final Object msg = e.getMessage();
+    final ChannelBuffer content;
+    if (msg instanceof HttpResponse) {
+      content = ((HttpResponse) msg).getContent();
+    } else if (msg instanceof HttpChunk) {
+      content = ((HttpChunk) msg).getContent();
+    } else {
+      content = null;
+    }
+
+    if (content != null) {
+      bytes += content.readableBytes();
+      if (bytes > maxBytes) {
+        exceeded = true;
+        Channels.fireExceptionCaught(ctx, new ResponseTooLargeException(maxBytes));
+        return;
+      }
+    }
+
+    ctx.sendUpstream(e);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.netty4;
+
+import com.metamx.common.logger.Logger;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionAdapter;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+
+import javax.net.ssl.SSLContext;
+import java.util.Map;
+
+/**
+ * Creates the HTTP/2 connections used by {@link com.metamx.http.client.Http2HttpClient}, from a bootstrap made by
+ * {@link Netty4Transport#createHttp2Bootstrap}. Plain http connections speak HTTP/2 with prior knowledge (h2c), and
+ * https connections must negotiate h2 with ALPN; a server that only speaks HTTP/1.1 fails the handshake.
+ *
+ * Once a server has sent GOAWAY, the streams it already accepted carry on, but isGood reports the connection as bad so
+ * the pool replaces it rather than opening new streams on it. Closing such a connection waits for its last active
+ * stream to close.
+ */
+public class Http2ChannelResourceFactory extends Netty4ChannelResourceFactory
+{
+  private static final Logger log = new Logger(Http2ChannelResourceFactory.class);
+
+  public Http2ChannelResourceFactory(
+      Bootstrap bootstrap,
+      SSLContext sslContext,
+      long sslHandshakeTimeout,
+      Map<String, Map<String, Object>> channelOptionsByKey,
+      Map<String, String> unixDomainSocketsByKey
+  )
+  {
+    super(
+        bootstrap,
+        sslContext,
+        sslHandshakeTimeout,
+        channelOptionsByKey,
+        unixDomainSocketsByKey,
+        ApplicationProtocolNames.HTTP_2
+    );
+  }
+
+  @Override
+  public boolean isGood(ChannelFuture resource)
+  {
+    if (!super.isGood(resource)) {
+      return false;
+    }
+
+    final Http2FrameCodec codec = resource.channel().pipeline().get(Http2FrameCodec.class);
+    return codec != null && !codec.connection().goAwayReceived();
+  }
+
+  @Override
+  public void close(ChannelFuture resource)
+  {
+    final Channel channel = resource.awaitUninterruptibly().channel();
+    final Http2FrameCodec codec = channel.pipeline().get(Http2FrameCodec.class);
+    if (codec == null || !codec.connection().goAwayReceived()) {
+      super.close(resource);
+      return;
+    }
+
+    // The connection's streams are only touched on its event loop.
+    channel.eventLoop().execute(
+        new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            final Http2Connection connection = codec.connection();
+            if (connection.numActiveStreams() == 0) {
+              log.trace("Closing");
+              channel.close();
+              return;
+            }
+            connection.addListener(
+                new Http2ConnectionAdapter()
+                {
+                  @Override
+                  public void onStreamClosed(Http2Stream stream)
+                  {
+                    if (connection.numActiveStreams() == 0) {
+                      log.trace("Closing after last stream");
+                      channel.close();
+                    }
+                  }
+                }
+            );
+          }
+        }
+    );
+  }
+}
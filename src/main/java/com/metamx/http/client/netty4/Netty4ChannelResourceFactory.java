@@ -0,0 +1,306 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.netty4;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.metamx.common.logger.Logger;
+import com.metamx.http.client.pool.ResourceFactory;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.IdentityCipherSuiteFilter;
+import io.netty.handler.ssl.JdkSslContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import org.jboss.netty.channel.ChannelException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Netty 4 counterpart of {@link com.metamx.http.client.pool.ChannelResourceFactory}. Connect and handshake failures
+ * are reported with the same Netty 3 {@link ChannelException}s, so callers see the same errors from either client.
+ * Pool keys mapped to a Unix domain socket connect to it instead of to their host and port.
+ */
+public class Netty4ChannelResourceFactory implements ResourceFactory<String, ChannelFuture>
+{
+  private static final Logger log = new Logger(Netty4ChannelResourceFactory.class);
+
+  private static final long DEFAULT_SSL_HANDSHAKE_TIMEOUT = 10000L; /* 10 seconds */
+
+  // Per-key channel options are given by their Netty 3 names. These are the ones Netty 4 renamed.
+  private static final Map<String, ChannelOption<?>> NETTY3_OPTION_NAMES = ImmutableMap.<String, ChannelOption<?>>builder()
+      .put("keepAlive", ChannelOption.SO_KEEPALIVE)
+      .put("tcpNoDelay", ChannelOption.TCP_NODELAY)
+      .put("sendBufferSize", ChannelOption.SO_SNDBUF)
+      .put("receiveBufferSize", ChannelOption.SO_RCVBUF)
+      .put("connectTimeoutMillis", ChannelOption.CONNECT_TIMEOUT_MILLIS)
+      .put("soLinger", ChannelOption.SO_LINGER)
+      .put("reuseAddress", ChannelOption.SO_REUSEADDR)
+      .put("trafficClass", ChannelOption.IP_TOS)
+      .build();
+
+  private final Bootstrap bootstrap;
+  private final SSLContext sslContext;
+  private final String applicationProtocol;
+  private final SslContext alpnSslContext;
+  private final long sslHandshakeTimeout;
+  private final Map<String, Bootstrap> bootstrapsByKey;
+  private final Map<String, String> unixDomainSocketsByKey;
+
+  public Netty4ChannelResourceFactory(
+      Bootstrap bootstrap,
+      SSLContext sslContext,
+      long sslHandshakeTimeout,
+      Map<String, Map<String, Object>> channelOptionsByKey
+  )
+  {
+    this(bootstrap, sslContext, sslHandshakeTimeout, channelOptionsByKey, ImmutableMap.<String, String>of());
+  }
+
+  /**
+   * @param unixDomainSocketsByKey paths of the Unix domain sockets that pool keys connect to instead of TCP. Needs a
+   *                               bootstrap that uses the native transport if not empty.
+   */
+  public Netty4ChannelResourceFactory(
+      Bootstrap bootstrap,
+      SSLContext sslContext,
+      long sslHandshakeTimeout,
+      Map<String, Map<String, Object>> channelOptionsByKey,
+      Map<String, String> unixDomainSocketsByKey
+  )
+  {
+    this(bootstrap, sslContext, sslHandshakeTimeout, channelOptionsByKey, unixDomainSocketsByKey, null);
+  }
+
+  /**
+   * @param applicationProtocol protocol that https connections must negotiate with ALPN, or null to not use ALPN
+   */
+  protected Netty4ChannelResourceFactory(
+      Bootstrap bootstrap,
+      SSLContext sslContext,
+      long sslHandshakeTimeout,
+      Map<String, Map<String, Object>> channelOptionsByKey,
+      Map<String, String> unixDomainSocketsByKey,
+      String applicationProtocol
+  )
+  {
+    this.bootstrap = Preconditions.checkNotNull(bootstrap, "bootstrap");
+    this.sslContext = sslContext;
+    this.applicationProtocol = applicationProtocol;
+    if (sslContext != null && applicationProtocol != null) {
+      this.alpnSslContext = new JdkSslContext(
+          sslContext,
+          true,
+          null,
+          IdentityCipherSuiteFilter.INSTANCE,
+          new ApplicationProtocolConfig(
+              ApplicationProtocolConfig.Protocol.ALPN,
+              ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+              ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+              applicationProtocol
+          ),
+          ClientAuth.NONE,
+          null,
+          false
+      );
+    } else {
+      this.alpnSslContext = null;
+    }
+    this.sslHandshakeTimeout = sslHandshakeTimeout >= 0 ? sslHandshakeTimeout : DEFAULT_SSL_HANDSHAKE_TIMEOUT;
+
+    this.unixDomainSocketsByKey = ImmutableMap.copyOf(unixDomainSocketsByKey);
+
+    final Bootstrap domainSocketBootstrap = unixDomainSocketsByKey.isEmpty()
+                                            ? null
+                                            : Netty4Transport.createDomainSocketBootstrap(bootstrap);
+    final ImmutableMap.Builder<String, Bootstrap> bootstraps = ImmutableMap.builder();
+    for (String key : Sets.union(channelOptionsByKey.keySet(), unixDomainSocketsByKey.keySet())) {
+      final Bootstrap keyBootstrap = unixDomainSocketsByKey.containsKey(key)
+                                     ? domainSocketBootstrap.clone()
+                                     : bootstrap.clone();
+      if (channelOptionsByKey.containsKey(key)) {
+        for (Map.Entry<String, Object> option : channelOptionsByKey.get(key).entrySet()) {
+          final ChannelOption<Object> channelOption = channelOption(option.getKey());
+          if (channelOption == null) {
+            log.warn("Ignoring unknown channel option[%s] for key[%s]", option.getKey(), key);
+          } else {
+            keyBootstrap.option(channelOption, option.getValue());
+          }
+        }
+      }
+      bootstraps.put(key, keyBootstrap);
+    }
+    this.bootstrapsByKey = bootstraps.build();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ChannelOption<Object> channelOption(String name)
+  {
+    if (NETTY3_OPTION_NAMES.containsKey(name)) {
+      return (ChannelOption<Object>) NETTY3_OPTION_NAMES.get(name);
+    } else if (ChannelOption.exists(name)) {
+      return ChannelOption.valueOf(name);
+    } else {
+      return null;
+    }
+  }
+
+  @Override
+  public ChannelFuture generate(final String hostname)
+  {
+    log.info("Generating: %s", hostname);
+    URL url = null;
+    try {
+      url = new URL(hostname);
+    }
+    catch (MalformedURLException e) {
+      throw new RuntimeException(e);
+    }
+
+    final String host = url.getHost();
+    final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    final Bootstrap keyBootstrap = bootstrapsByKey.containsKey(hostname) ? bootstrapsByKey.get(hostname) : bootstrap;
+    final String domainSocketPath = unixDomainSocketsByKey.get(hostname);
+    final ChannelFuture connectFuture = domainSocketPath == null
+                                        ? keyBootstrap.connect(new InetSocketAddress(host, port))
+                                        : keyBootstrap.connect(new DomainSocketAddress(domainSocketPath));
+
+    if (!"https".equals(url.getProtocol())) {
+      return connectFuture;
+    }
+
+    if (sslContext == null) {
+      connectFuture.channel().close();
+      throw new IllegalStateException("No sslContext set, cannot do https");
+    }
+
+    final SSLEngine sslEngine;
+    final SSLParameters sslParameters;
+    if (alpnSslContext == null) {
+      sslEngine = sslContext.createSSLEngine(host, port);
+      sslParameters = new SSLParameters();
+    } else {
+      // Keeps the ALPN protocols the engine was created with.
+      sslEngine = alpnSslContext.newEngine(connectFuture.channel().alloc(), host, port);
+      sslParameters = sslEngine.getSSLParameters();
+    }
+    sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+    sslEngine.setSSLParameters(sslParameters);
+    sslEngine.setUseClientMode(true);
+    final SslHandler sslHandler = new SslHandler(sslEngine);
+    sslHandler.setHandshakeTimeoutMillis(sslHandshakeTimeout);
+
+    final Channel channel = connectFuture.channel();
+    channel.pipeline().addFirst("ssl", sslHandler);
+
+    // The handler starts the handshake once the channel is active.
+    final ChannelPromise handshakeFuture = channel.newPromise();
+    connectFuture.addListener(
+        new ChannelFutureListener()
+        {
+          @Override
+          public void operationComplete(ChannelFuture f) throws Exception
+          {
+            if (f.isSuccess()) {
+              sslHandler.handshakeFuture().addListener(
+                  new GenericFutureListener<Future<Channel>>()
+                  {
+                    @Override
+                    public void operationComplete(Future<Channel> f2) throws Exception
+                    {
+                      if (f2.isSuccess()) {
+                        if (applicationProtocol == null
+                            || applicationProtocol.equals(sslHandler.applicationProtocol())) {
+                          handshakeFuture.setSuccess();
+                        } else {
+                          channel.close();
+                          handshakeFuture.setFailure(
+                              new ChannelException(
+                                  String.format(
+                                      "Host[%s] did not negotiate protocol[%s]",
+                                      hostname,
+                                      applicationProtocol
+                                  )
+                              )
+                          );
+                        }
+                      } else {
+                        channel.close();
+                        handshakeFuture.setFailure(
+                            new ChannelException(
+                                String.format("Failed to handshake with host[%s]", hostname),
+                                f2.cause()
+                            )
+                        );
+                      }
+                    }
+                  }
+              );
+            } else {
+              handshakeFuture.setFailure(
+                  new ChannelException(
+                      String.format("Failed to connect to host[%s]", hostname),
+                      f.cause()
+                  )
+              );
+            }
+          }
+        }
+    );
+
+    return handshakeFuture;
+  }
+
+  @Override
+  public boolean isGood(ChannelFuture resource)
+  {
+    Channel channel = resource.awaitUninterruptibly().channel();
+
+    boolean isSuccess = resource.isSuccess();
+    boolean isActive = channel.isActive();
+    boolean isOpen = channel.isOpen();
+
+    if (log.isTraceEnabled()) {
+      log.trace("isGood = isSucess[%s] && isActive[%s] && isOpen[%s]", isSuccess, isActive, isOpen);
+    }
+
+    return isSuccess && isActive && isOpen;
+  }
+
+  @Override
+  public void close(ChannelFuture resource)
+  {
+    log.trace("Closing");
+    resource.awaitUninterruptibly().channel().close();
+  }
+}
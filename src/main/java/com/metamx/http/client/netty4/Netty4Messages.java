@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.netty4;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.Map;
+
+/**
+ * Converts between Netty 4 HTTP messages and the Netty 3 ones that {@link
+ * com.metamx.http.client.response.HttpResponseHandler}s work with.
+ */
+public class Netty4Messages
+{
+  /**
+   * Netty 4 version of a request built for the Netty 3 client. Requests with in-memory content become full requests;
+   * chunked ones are left for their body to follow.
+   */
+  public static HttpRequest toNetty4Request(org.jboss.netty.handler.codec.http.HttpRequest request)
+  {
+    final HttpMethod method = HttpMethod.valueOf(request.getMethod().getName());
+    final ChannelBuffer content = request.getContent();
+    final HttpRequest retVal;
+    if (request.isChunked()) {
+      retVal = new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, request.getUri());
+    } else {
+      retVal = new DefaultFullHttpRequest(
+          HttpVersion.HTTP_1_1,
+          method,
+          request.getUri(),
+          content.readable() ? Unpooled.wrappedBuffer(content.toByteBuffer()) : Unpooled.EMPTY_BUFFER
+      );
+    }
+
+    for (Map.Entry<String, String> header : request.headers()) {
+      retVal.headers().add(header.getKey(), header.getValue());
+    }
+
+    return retVal;
+  }
+
+  /**
+   * Netty 3 version of the status line and headers of "response". Its content always arrives separately as chunks,
+   * so it is marked as chunked and has none.
+   */
+  public static org.jboss.netty.handler.codec.http.HttpResponse toNetty3Response(HttpResponse response)
+  {
+    final org.jboss.netty.handler.codec.http.HttpResponse retVal = new DefaultHttpResponse(
+        org.jboss.netty.handler.codec.http.HttpVersion.valueOf(response.protocolVersion().text()),
+        new HttpResponseStatus(response.status().code(), response.status().reasonPhrase())
+    );
+
+    for (Map.Entry<String, String> header : response.headers()) {
+      retVal.headers().add(header.getKey(), header.getValue());
+    }
+    retVal.setChunked(true);
+
+    return retVal;
+  }
+
+  /**
+   * Netty 3 chunk with a copy of the content of "content". Handlers may keep chunks around after they have been
+   * handled, so the pooled buffer can't be handed to them directly; it is copied once into a heap array of exactly
+   * the right size.
+   */
+  public static HttpChunk toNetty3Chunk(HttpContent content)
+  {
+    return new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(ByteBufUtil.getBytes(content.content())));
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.netty4;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.metamx.common.lifecycle.Lifecycle;
+import com.metamx.common.logger.Logger;
+import com.metamx.http.client.HttpClientConfig;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.BootstrapConfig;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannelConfig;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the Netty 4 bootstraps used by {@link com.metamx.http.client.Netty4HttpClient} and {@link
+ * com.metamx.http.client.Http2HttpClient}. Channels read into pooled direct buffers from {@link
+ * PooledByteBufAllocator}, and HTTP/1.1 ones have the same pipeline as the Netty 3 client: codec, decompressor and
+ * chunked writer. They use the native epoll transport if the config asks for it, or maps any pool key to a Unix
+ * domain socket, and it is available; NIO otherwise.
+ */
+public class Netty4Transport
+{
+  private static final Logger log = new Logger(Netty4Transport.class);
+
+  // Netty 3's default, which is lower than Netty 4's.
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+  // Data on every stream of an HTTP/2 connection also counts against the connection's window, which only refills as
+  // each stream's data is consumed. A stream whose reads are paused can hold up to its own window (64K) of it, so the
+  // connection window is made large enough that a few paused streams don't stall all the others.
+  private static final int HTTP2_CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+
+  private static final List<ChannelOption<?>> TCP_OPTIONS = ImmutableList.<ChannelOption<?>>of(
+      ChannelOption.SO_KEEPALIVE,
+      ChannelOption.TCP_NODELAY,
+      ChannelOption.TCP_FASTOPEN_CONNECT,
+      EpollChannelOption.TCP_QUICKACK,
+      EpollChannelOption.SO_BUSY_POLL,
+      EpollChannelOption.TCP_USER_TIMEOUT
+  );
+
+  /**
+   * Creates a bootstrap with its own event loop group of {@link HttpClientConfig#getWorkerPoolSize()} threads, which
+   * is shut down when "lifecycle" stops.
+   */
+  public static Bootstrap createBootstrap(HttpClientConfig config, Lifecycle lifecycle)
+  {
+    return createBootstrap(
+        config,
+        lifecycle,
+        new ChannelInitializer<Channel>()
+        {
+          @Override
+          protected void initChannel(Channel channel)
+          {
+            channel.pipeline().addLast("codec", new HttpClientCodec());
+            channel.pipeline().addLast("inflater", new HttpContentDecompressor());
+            channel.pipeline().addLast("chunked-writer", new ChunkedWriteHandler());
+          }
+        }
+    );
+  }
+
+  /**
+   * Like {@link #createBootstrap(HttpClientConfig, Lifecycle)}, but for the HTTP/2 connections used by {@link
+   * com.metamx.http.client.Http2HttpClient}. Their pipelines speak HTTP/2 from the start (prior knowledge), and each
+   * request gets its own stream channel, whose pipeline has the codec, decompressor and chunked writer instead.
+   * Streams beyond the server's limit on concurrent streams wait in the connection until others finish.
+   */
+  public static Bootstrap createHttp2Bootstrap(HttpClientConfig config, Lifecycle lifecycle)
+  {
+    return createBootstrap(
+        config,
+        lifecycle,
+        new ChannelInitializer<Channel>()
+        {
+          @Override
+          protected void initChannel(Channel channel)
+          {
+            channel.pipeline().addLast(
+                "http2",
+                Http2FrameCodecBuilder.forClient()
+                                      .initialSettings(Http2Settings.defaultSettings().pushEnabled(false))
+                                      .encoderEnforceMaxConcurrentStreams(true)
+                                      .build()
+            );
+            channel.pipeline().addLast(
+                "connection-window",
+                new ChannelInboundHandlerAdapter()
+                {
+                  @Override
+                  public void channelActive(ChannelHandlerContext ctx) throws Exception
+                  {
+                    // The codec has written the connection preface by now, so this follows it.
+                    ctx.writeAndFlush(
+                        new DefaultHttp2WindowUpdateFrame(
+                            HTTP2_CONNECTION_WINDOW_SIZE - Http2CodecUtil.DEFAULT_WINDOW_SIZE
+                        )
+                    );
+                    ctx.pipeline().remove(this);
+                    super.channelActive(ctx);
+                  }
+                }
+            );
+            // Servers can't push, so there are no inbound streams to handle.
+            channel.pipeline().addLast("multiplex", new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+          }
+        }
+    );
+  }
+
+  private static Bootstrap createBootstrap(
+      HttpClientConfig config,
+      Lifecycle lifecycle,
+      ChannelInitializer<Channel> initializer
+  )
+  {
+    final boolean epoll = (config.isNativeTransport() || !config.getUnixDomainSocketsByKey().isEmpty())
+                          && isEpollAvailable();
+    final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("HttpClient-Netty4-Worker-%s")
+        .build();
+    final EventLoopGroup group = epoll
+                                 ? new EpollEventLoopGroup(config.getWorkerPoolSize(), threadFactory)
+                                 : new NioEventLoopGroup(config.getWorkerPoolSize(), threadFactory);
+
+    final Bootstrap bootstrap = new Bootstrap()
+        .group(group)
+        .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
+        .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS)
+        .option(ChannelOption.SO_KEEPALIVE, true)
+        .option(ChannelOption.TCP_NODELAY, config.isTcpNoDelay())
+        .option(
+            ChannelOption.RCVBUF_ALLOCATOR,
+            new AdaptiveRecvByteBufAllocator(
+                config.getReceiveBufferSizePredictorMin(),
+                config.getReceiveBufferSizePredictorInitial(),
+                config.getReceiveBufferSizePredictorMax()
+            )
+        )
+        .handler(initializer);
+
+    if (config.getSendBufferSize() > 0) {
+      bootstrap.option(ChannelOption.SO_SNDBUF, config.getSendBufferSize());
+    }
+    if (config.getReceiveBufferSize() > 0) {
+      bootstrap.option(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+    }
+    if (config.getWriteBufferHighWaterMark() > 0 && config.getWriteBufferLowWaterMark() > 0) {
+      bootstrap.option(
+          ChannelOption.WRITE_BUFFER_WATER_MARK,
+          new WriteBufferWaterMark(config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark())
+      );
+    }
+
+    if (epoll) {
+      setEpollOptions(bootstrap, config, initializer);
+    } else if (config.isTcpFastOpen()
+               || config.isTcpQuickAck()
+               || config.getBusyPollMicros() > 0
+               || config.getTcpUserTimeout() != null) {
+      log.warn("TCP_FASTOPEN, TCP_QUICKACK, SO_BUSY_POLL and TCP_USER_TIMEOUT need the native transport, ignoring them");
+    }
+
+    try {
+      lifecycle.addMaybeStartHandler(
+          new Lifecycle.Handler()
+          {
+            @Override
+            public void start() throws Exception
+            {
+            }
+
+            @Override
+            public void stop()
+            {
+              group.shutdownGracefully();
+            }
+          }
+      );
+    }
+    catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+
+    return bootstrap;
+  }
+
+  /**
+   * Copy of a bootstrap made by this class that connects to Unix domain sockets instead of over TCP, without the
+   * options that only apply to TCP. The bootstrap must use the native transport.
+   */
+  @SuppressWarnings("unchecked")
+  public static Bootstrap createDomainSocketBootstrap(Bootstrap bootstrap)
+  {
+    final BootstrapConfig config = bootstrap.config();
+    if (!(config.group() instanceof EpollEventLoopGroup)) {
+      throw new IllegalStateException("Unix domain sockets need the native transport, which is not available");
+    }
+
+    // A bootstrap's channel can't be changed once set, so this copies it rather than cloning it.
+    final Bootstrap retVal = new Bootstrap()
+        .group(config.group())
+        .channel(EpollDomainSocketChannel.class)
+        .handler(config.handler());
+    for (Map.Entry<ChannelOption<?>, Object> option : config.options().entrySet()) {
+      if (!TCP_OPTIONS.contains(option.getKey())) {
+        retVal.option((ChannelOption<Object>) option.getKey(), option.getValue());
+      }
+    }
+    return retVal;
+  }
+
+  private static boolean isEpollAvailable()
+  {
+    if (Epoll.isAvailable()) {
+      return true;
+    } else {
+      log.warn(Epoll.unavailabilityCause(), "Native transport is not available, using NIO instead");
+      return false;
+    }
+  }
+
+  private static void setEpollOptions(
+      Bootstrap bootstrap,
+      HttpClientConfig config,
+      final ChannelInitializer<Channel> initializer
+  )
+  {
+    bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+    if (config.isTcpFastOpen()) {
+      // Connections are opened ahead of their first request, so this uses the socket option rather than sendto(): the
+      // connect returns right away, and the first write goes out with the SYN.
+      bootstrap.option(ChannelOption.TCP_FASTOPEN_CONNECT, true);
+    }
+    if (config.isTcpQuickAck()) {
+      bootstrap.option(EpollChannelOption.TCP_QUICKACK, true);
+      bootstrap.handler(
+          new ChannelInitializer<Channel>()
+          {
+            @Override
+            protected void initChannel(Channel channel)
+            {
+              channel.pipeline().addLast("quickack", new QuickAckHandler());
+              channel.pipeline().addLast(initializer);
+            }
+          }
+      );
+    }
+    if (config.getBusyPollMicros() > 0) {
+      bootstrap.option(EpollChannelOption.SO_BUSY_POLL, config.getBusyPollMicros());
+    }
+    if (config.getTcpUserTimeout() != null) {
+      bootstrap.option(EpollChannelOption.TCP_USER_TIMEOUT, Ints.checkedCast(config.getTcpUserTimeout().getMillis()));
+    }
+  }
+
+  /**
+   * Linux clears TCP_QUICKACK whenever it goes back to delayed ACKs, so the option only lasts until the next ACK.
+   * This sets it again after every read.
+   */
+  private static class QuickAckHandler extends ChannelInboundHandlerAdapter
+  {
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception
+    {
+      // Domain socket copies of the bootstrap have this handler too, but no TCP options.
+      if (ctx.channel().config() instanceof EpollSocketChannelConfig) {
+        ((EpollSocketChannelConfig) ctx.channel().config()).setTcpQuickAck(true);
+      }
+      super.channelReadComplete(ctx);
+    }
+  }
+}
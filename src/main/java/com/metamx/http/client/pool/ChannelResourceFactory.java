@@ -17,6 +17,7 @@
 package com.metamx.http.client.pool;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.metamx.common.logger.Logger;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.Channel;
@@ -35,6 +36,7 @@ import javax.net.ssl.SSLParameters;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Map;
 
 /**
  */
@@ -48,6 +50,7 @@ public class ChannelResourceFactory implements ResourceFactory<String, ChannelFu
   private final SSLContext sslContext;
   private final Timer timer;
   private final long sslHandshakeTimeout;
+  private final Map<String, ClientBootstrap> bootstrapsByKey;
 
   public ChannelResourceFactory(
       ClientBootstrap bootstrap,
@@ -55,6 +58,17 @@ public class ChannelResourceFactory implements ResourceFactory<String, ChannelFu
       Timer timer,
       long sslHandshakeTimeout
   )
+  {
+    this(bootstrap, sslContext, timer, sslHandshakeTimeout, ImmutableMap.<String, Map<String, Object>>of());
+  }
+
+  public ChannelResourceFactory(
+      ClientBootstrap bootstrap,
+      SSLContext sslContext,
+      Timer timer,
+      long sslHandshakeTimeout,
+      Map<String, Map<String, Object>> channelOptionsByKey
+  )
   {
     this.bootstrap = Preconditions.checkNotNull(bootstrap, "bootstrap");
     this.sslContext = sslContext;
@@ -64,6 +78,20 @@ public class ChannelResourceFactory implements ResourceFactory<String, ChannelFu
     if (sslContext != null) {
       Preconditions.checkNotNull(timer, "timer is required when sslContext is present");
     }
+
+    // Keys with their own channel options get their own bootstrap, sharing the channel factory and pipeline factory,
+    // so the options are in place before the connection is initiated.
+    final ImmutableMap.Builder<String, ClientBootstrap> bootstraps = ImmutableMap.builder();
+    for (Map.Entry<String, Map<String, Object>> entry : channelOptionsByKey.entrySet()) {
+      final ClientBootstrap keyBootstrap = new ClientBootstrap(bootstrap.getFactory());
+      keyBootstrap.setPipelineFactory(bootstrap.getPipelineFactory());
+      keyBootstrap.setOptions(bootstrap.getOptions());
+      for (Map.Entry<String, Object> option : entry.getValue().entrySet()) {
+        keyBootstrap.setOption(option.getKey(), option.getValue());
+      }
+      bootstraps.put(entry.getKey(), keyBootstrap);
+    }
+    this.bootstrapsByKey = bootstraps.build();
   }
 
   @Override
@@ -81,7 +109,8 @@ public class ChannelResourceFactory implements ResourceFactory<String, ChannelFu
     final String host = url.getHost();
     final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
     final ChannelFuture retVal;
-    final ChannelFuture connectFuture = bootstrap.connect(new InetSocketAddress(host, port));
+    final ClientBootstrap keyBootstrap = bootstrapsByKey.containsKey(hostname) ? bootstrapsByKey.get(hostname) : bootstrap;
+    final ChannelFuture connectFuture = keyBootstrap.connect(new InetSocketAddress(host, port));
 
     if ("https".equals(url.getProtocol())) {
       if (sslContext == null) {
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * Returns the response's status, headers and content as a {@link BytesResponseHolder}. The content buffers are kept
+ * as they arrive and exposed as a composite view, so binary bodies are neither copied nor decoded.
+ */
+public class BytesResponseHandler implements HttpResponseHandler<BytesResponseHolder, BytesResponseHolder>
+{
+  @Override
+  public ClientResponse<BytesResponseHolder> handleResponse(HttpResponse response)
+  {
+    return ClientResponse.unfinished(new BytesResponseHolder(response));
+  }
+
+  @Override
+  public ClientResponse<BytesResponseHolder> handleChunk(
+      ClientResponse<BytesResponseHolder> response,
+      HttpChunk chunk
+  )
+  {
+    response.getObj().add(chunk.getContent());
+    return response;
+  }
+
+  @Override
+  public ClientResponse<BytesResponseHolder> done(ClientResponse<BytesResponseHolder> response)
+  {
+    response.getObj().done();
+    return ClientResponse.finished(response.getObj());
+  }
+
+  @Override
+  public void exceptionCaught(
+      ClientResponse<BytesResponseHolder> clientResponse, Throwable e
+  )
+  {
+    // Its safe to Ignore as the ClientResponse returned in handleChunk were unfinished
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.google.common.collect.Lists;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The status, headers and raw content of a response. The content is a view over the buffers it arrived in, so it is
+ * never copied or decoded.
+ */
+public class BytesResponseHolder
+{
+  private final HttpResponse response;
+  private List<ChannelBuffer> buffers = Lists.newArrayList();
+  private volatile ChannelBuffer content = null;
+
+  BytesResponseHolder(HttpResponse response)
+  {
+    this.response = response;
+    add(response.getContent());
+  }
+
+  void add(ChannelBuffer buffer)
+  {
+    if (buffer.readable()) {
+      buffers.add(buffer);
+    }
+  }
+
+  void done()
+  {
+    content = ChannelBuffers.unmodifiableBuffer(
+        ChannelBuffers.wrappedBuffer(buffers.toArray(new ChannelBuffer[buffers.size()]))
+    );
+    buffers = null;
+  }
+
+  public HttpResponseStatus getStatus()
+  {
+    return response.getStatus();
+  }
+
+  public HttpResponse getResponse()
+  {
+    return response;
+  }
+
+  public HttpHeaders getHeaders()
+  {
+    return response.headers();
+  }
+
+  /**
+   * The content, as a read-only composite of the buffers it arrived in. Each call returns a new view with its own
+   * indexes.
+   */
+  public ChannelBuffer getContent()
+  {
+    return content.duplicate();
+  }
+
+  /**
+   * The content as read-only NIO buffers, one per buffer it arrived in, without copying.
+   */
+  public ByteBuffer[] getByteBuffers()
+  {
+    return content.toByteBuffers();
+  }
+
+  public int getContentLength()
+  {
+    return content.readableBytes();
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+import java.nio.charset.Charset;
+
+/**
+ * Accumulates the raw bytes of a response's content, so handlers can decode it once the response is done. Decoding
+ * it all at once is cheaper than decoding each chunk, and can't split a multi-byte character across chunks.
+ *
+ * The buffer is presized from Content-Length when the response is chunked. Non-chunked responses arrive in one piece,
+ * so their content is kept without copying.
+ */
+public class ContentAccumulator
+{
+  private static final int DEFAULT_INITIAL_SIZE = 256;
+  // Don't trust Content-Length with more than this up front.
+  private static final int MAX_INITIAL_SIZE = 16 * 1024 * 1024;
+
+  private final HttpResponse response;
+  private ChannelBuffer content;
+  private boolean copied;
+
+  public ContentAccumulator(HttpResponse response)
+  {
+    this.response = response;
+
+    final ChannelBuffer initialContent = response.getContent();
+    if (response.isChunked()) {
+      final long contentLength = HttpHeaders.getContentLength(response, -1);
+      final int initialSize = contentLength > 0
+                              ? (int) Math.min(contentLength, MAX_INITIAL_SIZE)
+                              : DEFAULT_INITIAL_SIZE;
+      this.content = ChannelBuffers.dynamicBuffer(Math.max(initialSize, initialContent.readableBytes()));
+      this.content.writeBytes(initialContent, initialContent.readerIndex(), initialContent.readableBytes());
+      this.copied = true;
+    } else {
+      this.content = initialContent;
+      this.copied = false;
+    }
+  }
+
+  public HttpResponse getResponse()
+  {
+    return response;
+  }
+
+  public void append(ChannelBuffer buffer)
+  {
+    if (!buffer.readable()) {
+      return;
+    }
+
+    if (!copied) {
+      final ChannelBuffer newContent = ChannelBuffers.dynamicBuffer(content.readableBytes() + buffer.readableBytes());
+      newContent.writeBytes(content, content.readerIndex(), content.readableBytes());
+      content = newContent;
+      copied = true;
+    }
+    content.writeBytes(buffer, buffer.readerIndex(), buffer.readableBytes());
+  }
+
+  /**
+   * The content accumulated so far. The returned buffer must not be modified.
+   */
+  public ChannelBuffer getContent()
+  {
+    return content;
+  }
+
+  public String toString(Charset charset)
+  {
+    return content.toString(charset);
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+import java.util.List;
+
+/**
+ * Splits the response body into records on a delimiter byte, newline by default, and hands each record to a
+ * {@link Callback} on the I/O thread as soon as it has arrived. Suited to newline-delimited JSON and other
+ * line-oriented output. The result is the number of records.
+ *
+ * Records are slices of the buffers they arrived in, without the delimiter. When newline is the delimiter, a
+ * trailing carriage return is dropped too. A record that spans chunks is a composite of slices, so nothing is copied.
+ * A final record with no delimiter after it is delivered when the response is done, if it isn't empty.
+ *
+ * Instances hold per-request state and must not be reused.
+ */
+public class DelimitedRecordResponseHandler implements StreamingResponseHandler<Long, Long>
+{
+  public interface Callback
+  {
+    /**
+     * Called on the I/O thread for each record, in order. The record shares memory with the response and must not be
+     * modified. It stays valid after the call returns, but keeps the buffers it came from in memory while referenced.
+     */
+    public void record(ChannelBuffer record);
+  }
+
+  public static final int DEFAULT_MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+  private final byte delimiter;
+  private final int maxRecordLength;
+  private final Callback callback;
+
+  private TrafficCop trafficCop = TrafficCop.NOOP;
+  private long numRecords = 0;
+
+  // Parts of the current record from earlier chunks
+  private final List<ChannelBuffer> pending = Lists.newArrayList();
+  private int pendingLength = 0;
+
+  public DelimitedRecordResponseHandler(Callback callback)
+  {
+    this((byte) '\n', DEFAULT_MAX_RECORD_LENGTH, callback);
+  }
+
+  /**
+   * @param maxRecordLength records longer than this fail the request, so a missing delimiter can't make the handler
+   *                        hold the entire response
+   */
+  public DelimitedRecordResponseHandler(byte delimiter, int maxRecordLength, Callback callback)
+  {
+    Preconditions.checkArgument(maxRecordLength > 0, "maxRecordLength must be positive");
+    this.delimiter = delimiter;
+    this.maxRecordLength = maxRecordLength;
+    this.callback = Preconditions.checkNotNull(callback, "callback");
+  }
+
+  @Override
+  public ClientResponse<Long> handleResponse(HttpResponse response)
+  {
+    return handleResponse(response, TrafficCop.NOOP);
+  }
+
+  @Override
+  public ClientResponse<Long> handleResponse(HttpResponse response, TrafficCop trafficCop)
+  {
+    this.trafficCop = trafficCop;
+    scan(response.getContent());
+    return ClientResponse.unfinished(numRecords);
+  }
+
+  @Override
+  public ClientResponse<Long> handleChunk(ClientResponse<Long> clientResponse, HttpChunk chunk)
+  {
+    scan(chunk.getContent());
+    return ClientResponse.unfinished(numRecords);
+  }
+
+  @Override
+  public ClientResponse<Long> done(ClientResponse<Long> clientResponse)
+  {
+    if (pendingLength > 0) {
+      emit(takePending(null));
+    }
+    return ClientResponse.finished(numRecords);
+  }
+
+  @Override
+  public void exceptionCaught(ClientResponse<Long> clientResponse, Throwable e)
+  {
+    // Its safe to Ignore as the ClientResponse returned in handleChunk were unfinished
+  }
+
+  private void scan(ChannelBuffer buffer)
+  {
+    final int end = buffer.writerIndex();
+    int recordStart = buffer.readerIndex();
+    int delimiterIndex;
+    while ((delimiterIndex = buffer.indexOf(recordStart, end, delimiter)) >= 0) {
+      final ChannelBuffer tail = buffer.slice(recordStart, delimiterIndex - recordStart);
+      emit(pendingLength == 0 ? tail : takePending(tail));
+      recordStart = delimiterIndex + 1;
+    }
+
+    final int remaining = end - recordStart;
+    if (remaining > 0) {
+      if (pendingLength + remaining > maxRecordLength) {
+        throw new IllegalStateException(String.format("Record longer than %,d bytes", maxRecordLength));
+      }
+      pending.add(buffer.slice(recordStart, remaining));
+      pendingLength += remaining;
+    }
+
+    // What's pending is released once its record has been delivered.
+    trafficCop.release(buffer.readableBytes() - remaining);
+  }
+
+  private ChannelBuffer takePending(ChannelBuffer tail)
+  {
+    if (tail != null) {
+      pending.add(tail);
+    }
+    final ChannelBuffer retVal = ChannelBuffers.wrappedBuffer(pending.toArray(new ChannelBuffer[pending.size()]));
+    trafficCop.release(pendingLength);
+    pending.clear();
+    pendingLength = 0;
+    return retVal;
+  }
+
+  private void emit(ChannelBuffer record)
+  {
+    final int length = record.readableBytes();
+    if (delimiter == '\n' && length > 0 && record.getByte(record.readerIndex() + length - 1) == '\r') {
+      record = record.slice(record.readerIndex(), length - 1);
+    }
+    numRecords++;
+    callback.record(record);
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.google.common.base.Throwables;
+import com.metamx.common.guava.CloseQuietly;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * A HTTP response handler that writes the response body to a file as it arrives, returning the number of bytes
+ * written.
+ *
+ * Each chunk is written from its ChannelBuffer straight into a FileChannel on the I/O thread, so the body is never
+ * buffered on the heap and is copied only once. Instances hold per-request state and must not be reused.
+ *
+ * When constructed with a File, the file is created (or truncated), optionally preallocated to the response's
+ * Content-Length, and closed once the response is done. When constructed with a FileChannel, the body is written
+ * starting at the channel's current position and closing the channel is left to the caller.
+ *
+ * Content is released to the client's response buffer budget as soon as it has been written.
+ *
+ * Only 2xx responses are written. The content of any other response is most likely an error message rather than the
+ * download, so it's released without being written, the file isn't created or truncated, and the handler returns 0;
+ * see {@link #getStatus()}.
+ */
+public class FileChannelResponseHandler implements StreamingResponseHandler<FileChannel, Long>
+{
+  private final File file;
+  private final boolean preallocate;
+
+  private volatile HttpResponseStatus status = null;
+
+  private FileChannel channel;
+  private long startPosition;
+  private TrafficCop trafficCop = TrafficCop.NOOP;
+
+  public FileChannelResponseHandler(File file)
+  {
+    this(file, true);
+  }
+
+  public FileChannelResponseHandler(File file, boolean preallocate)
+  {
+    this.file = file;
+    this.preallocate = preallocate;
+  }
+
+  public FileChannelResponseHandler(FileChannel channel)
+  {
+    this.file = null;
+    this.preallocate = false;
+    this.channel = channel;
+  }
+
+  @Override
+  public ClientResponse<FileChannel> handleResponse(HttpResponse response)
+  {
+    return handleResponse(response, TrafficCop.NOOP);
+  }
+
+  @Override
+  public ClientResponse<FileChannel> handleResponse(HttpResponse response, TrafficCop trafficCop)
+  {
+    this.trafficCop = trafficCop;
+    status = response.getStatus();
+    if (!isSuccess()) {
+      trafficCop.release(response.getContent().readableBytes());
+      return ClientResponse.unfinished(channel);
+    }
+
+    try {
+      if (file != null) {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        // Closing the channel closes the file, so it doesn't leak if what follows fails.
+        channel = raf.getChannel();
+        final long contentLength = HttpHeaders.getContentLength(response, -1);
+        // Content-Length may not match the decompressed length, so this is only a hint. done() truncates the file to
+        // the number of bytes actually written.
+        raf.setLength(preallocate && contentLength > 0 ? contentLength : 0);
+      }
+      startPosition = channel.position();
+
+      write(response.getContent());
+    }
+    catch (IOException e) {
+      closeIfOwned();
+      throw Throwables.propagate(e);
+    }
+    return ClientResponse.unfinished(channel);
+  }
+
+  @Override
+  public ClientResponse<FileChannel> handleChunk(ClientResponse<FileChannel> clientResponse, HttpChunk chunk)
+  {
+    if (!isSuccess()) {
+      trafficCop.release(chunk.getContent().readableBytes());
+      return clientResponse;
+    }
+
+    try {
+      write(chunk.getContent());
+    }
+    catch (IOException e) {
+      closeIfOwned();
+      throw Throwables.propagate(e);
+    }
+    return clientResponse;
+  }
+
+  @Override
+  public ClientResponse<Long> done(ClientResponse<FileChannel> clientResponse)
+  {
+    if (!isSuccess()) {
+      return ClientResponse.finished(0L);
+    }
+
+    try {
+      final long position = channel.position();
+      if (file != null) {
+        channel.truncate(position);
+        channel.close();
+      }
+      return ClientResponse.finished(position - startPosition);
+    }
+    catch (IOException e) {
+      closeIfOwned();
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public void exceptionCaught(ClientResponse<FileChannel> clientResponse, Throwable e)
+  {
+    closeIfOwned();
+  }
+
+  /**
+   * The response's status, or null if it hasn't arrived yet.
+   */
+  public HttpResponseStatus getStatus()
+  {
+    return status;
+  }
+
+  private boolean isSuccess()
+  {
+    return status.getCode() / 100 == 2;
+  }
+
+  private void write(ChannelBuffer buffer) throws IOException
+  {
+    int index = buffer.readerIndex();
+    int remaining = buffer.readableBytes();
+    while (remaining > 0) {
+      final int written = buffer.getBytes(index, channel, remaining);
+      index += written;
+      remaining -= written;
+    }
+    trafficCop.release(buffer.readableBytes());
+  }
+
+  private void closeIfOwned()
+  {
+    if (file != null) {
+      CloseQuietly.close(channel);
+    }
+  }
+}
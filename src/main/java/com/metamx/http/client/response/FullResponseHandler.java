@@ -22,6 +22,7 @@ import org.jboss.netty.handler.codec.http.HttpResponse;
 import java.nio.charset.Charset;
 
 /**
+ * Content is accumulated as bytes and decoded once the response is done, so the holder's builder is empty until then.
  */
 public class FullResponseHandler implements HttpResponseHandler<FullResponseHolder, FullResponseHolder>
 {
@@ -35,13 +36,9 @@ public class FullResponseHandler implements HttpResponseHandler<FullResponseHold
   @Override
   public ClientResponse<FullResponseHolder> handleResponse(HttpResponse response)
   {
-    return ClientResponse.unfinished(
-        new FullResponseHolder(
-            response.getStatus(),
-            response,
-            new StringBuilder(response.getContent().toString(charset))
-        )
-    );
+    final FullResponseHolder holder = new FullResponseHolder(response.getStatus(), response, new StringBuilder());
+    holder.setAccumulator(new ContentAccumulator(response));
+    return ClientResponse.unfinished(holder);
   }
 
   @Override
@@ -50,20 +47,17 @@ public class FullResponseHandler implements HttpResponseHandler<FullResponseHold
       HttpChunk chunk
   )
   {
-    final StringBuilder builder = response.getObj().getBuilder();
-
-    if (builder == null) {
-      return ClientResponse.finished(null);
-    }
-
-    builder.append(chunk.getContent().toString(charset));
+    response.getObj().getAccumulator().append(chunk.getContent());
     return response;
   }
 
   @Override
   public ClientResponse<FullResponseHolder> done(ClientResponse<FullResponseHolder> response)
   {
-    return ClientResponse.finished(response.getObj());
+    final FullResponseHolder holder = response.getObj();
+    holder.getBuilder().append(holder.getAccumulator().toString(charset));
+    holder.setAccumulator(null);
+    return ClientResponse.finished(holder);
   }
 
   @Override
@@ -27,6 +27,9 @@ public class FullResponseHolder
   private final HttpResponse response;
   private final StringBuilder builder;
 
+  // Raw content while a handler is still receiving it, decoded into the builder when the response is done.
+  private ContentAccumulator accumulator;
+
   public FullResponseHolder(
       HttpResponseStatus status,
       HttpResponse response,
@@ -48,6 +51,16 @@ public class FullResponseHolder
     return response;
   }
 
+  ContentAccumulator getAccumulator()
+  {
+    return accumulator;
+  }
+
+  void setAccumulator(ContentAccumulator accumulator)
+  {
+    this.accumulator = accumulator;
+  }
+
   public StringBuilder getBuilder()
   {
     return builder;
@@ -18,21 +18,52 @@ package com.metamx.http.client.response;
 
 import com.google.common.base.Throwables;
 import com.metamx.http.client.io.AppendableByteArrayInputStream;
-import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 
 import java.io.InputStream;
 
 /**
+ * Content counts against the client's response buffer budget until it has been read from the stream, or the stream
+ * has been closed, so callers should always close it.
+ *
+ * Reads from the connection are paused while the stream holds more than a high watermark of unread content (4MB by
+ * default), and resumed once the reader has drained it to a low watermark (1MB by default).
  */
-public class InputStreamResponseHandler implements HttpResponseHandler<AppendableByteArrayInputStream, InputStream>
+public class InputStreamResponseHandler
+    implements StreamingResponseHandler<AppendableByteArrayInputStream, InputStream>
 {
+  private final long highWatermark;
+  private final long lowWatermark;
+
+  public InputStreamResponseHandler()
+  {
+    this(ReadThrottle.DEFAULT_HIGH_WATERMARK, ReadThrottle.DEFAULT_LOW_WATERMARK);
+  }
+
+  public InputStreamResponseHandler(long highWatermark, long lowWatermark)
+  {
+    ReadThrottle.checkWatermarks(highWatermark, lowWatermark);
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+  }
+
   @Override
   public ClientResponse<AppendableByteArrayInputStream> handleResponse(HttpResponse response)
   {
-    AppendableByteArrayInputStream in = new AppendableByteArrayInputStream();
-    in.add(getContentBytes(response.getContent()));
+    return handleResponse(response, TrafficCop.NOOP);
+  }
+
+  @Override
+  public ClientResponse<AppendableByteArrayInputStream> handleResponse(
+      HttpResponse response,
+      TrafficCop trafficCop
+  )
+  {
+    AppendableByteArrayInputStream in = new ThrottledInputStream(
+        new ReadThrottle(trafficCop, highWatermark, lowWatermark)
+    );
+    in.add(response.getContent());
     return ClientResponse.finished(in);
   }
 
@@ -41,7 +72,7 @@ public class InputStreamResponseHandler implements HttpResponseHandler<Appendabl
       ClientResponse<AppendableByteArrayInputStream> clientResponse, HttpChunk chunk
   )
   {
-    clientResponse.getObj().add(getContentBytes(chunk.getContent()));
+    clientResponse.getObj().add(chunk.getContent());
     return clientResponse;
   }
 
@@ -62,11 +93,4 @@ public class InputStreamResponseHandler implements HttpResponseHandler<Appendabl
     final AppendableByteArrayInputStream obj = clientResponse.getObj();
     obj.exceptionCaught(e);
   }
-
-  private byte[] getContentBytes(ChannelBuffer content)
-  {
-    byte[] contentBytes = new byte[content.readableBytes()];
-    content.readBytes(contentBytes);
-    return contentBytes;
-  }
 }
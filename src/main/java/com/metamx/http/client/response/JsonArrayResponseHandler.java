@@ -0,0 +1,284 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import java.io.IOException;
+
+/**
+ * Deserializes the elements of a response whose body is a JSON array, handing each one to a {@link Callback} as soon
+ * as it has arrived. Parsing overlaps with the download, and only one element's worth of content is held at a time.
+ * The result is the number of elements.
+ *
+ * The array is split into elements on the I/O thread by scanning for their boundaries, and each element is then
+ * deserialized with the ObjectMapper. The body must be UTF-8. Content of responses other than 2xx is ignored, as it's
+ * most likely an error message rather than the array; see {@link #getStatus()}.
+ *
+ * Instances hold per-request state and must not be reused.
+ */
+public class JsonArrayResponseHandler<T> implements StreamingResponseHandler<Long, Long>
+{
+  public interface Callback<T>
+  {
+    /**
+     * Called on the I/O thread for each element, in order.
+     */
+    public void element(T element);
+  }
+
+  private enum State
+  {
+    BEFORE_ARRAY, BEFORE_FIRST_ELEMENT, BEFORE_ELEMENT, IN_ELEMENT, AFTER_ELEMENT, AFTER_ARRAY
+  }
+
+  private final ObjectMapper mapper;
+  private final JavaType elementType;
+  private final Callback<T> callback;
+
+  private volatile HttpResponseStatus status = null;
+
+  private TrafficCop trafficCop = TrafficCop.NOOP;
+  private State state = State.BEFORE_ARRAY;
+  private long numElements = 0;
+
+  // Parts of the current element from earlier chunks
+  private final ChannelBuffer pending = ChannelBuffers.dynamicBuffer();
+  private int depth = 0;
+  private boolean scalar = false;
+  private boolean inString = false;
+  private boolean escaped = false;
+
+  public JsonArrayResponseHandler(ObjectMapper mapper, Class<T> elementClass, Callback<T> callback)
+  {
+    this(mapper, mapper.getTypeFactory().constructType(elementClass), callback);
+  }
+
+  public JsonArrayResponseHandler(ObjectMapper mapper, TypeReference<T> elementType, Callback<T> callback)
+  {
+    this(mapper, mapper.getTypeFactory().constructType(elementType), callback);
+  }
+
+  public JsonArrayResponseHandler(ObjectMapper mapper, JavaType elementType, Callback<T> callback)
+  {
+    this.mapper = mapper;
+    this.elementType = elementType;
+    this.callback = callback;
+  }
+
+  @Override
+  public ClientResponse<Long> handleResponse(HttpResponse response)
+  {
+    return handleResponse(response, TrafficCop.NOOP);
+  }
+
+  @Override
+  public ClientResponse<Long> handleResponse(HttpResponse response, TrafficCop trafficCop)
+  {
+    this.trafficCop = trafficCop;
+    status = response.getStatus();
+    if (isSuccess()) {
+      scan(response.getContent());
+    } else {
+      trafficCop.release(response.getContent().readableBytes());
+    }
+    return ClientResponse.unfinished(numElements);
+  }
+
+  @Override
+  public ClientResponse<Long> handleChunk(ClientResponse<Long> clientResponse, HttpChunk chunk)
+  {
+    if (isSuccess()) {
+      scan(chunk.getContent());
+    } else {
+      trafficCop.release(chunk.getContent().readableBytes());
+    }
+    return ClientResponse.unfinished(numElements);
+  }
+
+  @Override
+  public ClientResponse<Long> done(ClientResponse<Long> clientResponse)
+  {
+    if (isSuccess() && state != State.AFTER_ARRAY) {
+      throw new IllegalStateException("Response ended before the end of the JSON array");
+    }
+    return ClientResponse.finished(numElements);
+  }
+
+  @Override
+  public void exceptionCaught(ClientResponse<Long> clientResponse, Throwable e)
+  {
+    // Its safe to Ignore as the ClientResponse returned in handleChunk were unfinished
+  }
+
+  /**
+   * The response's status, or null if it hasn't arrived yet.
+   */
+  public HttpResponseStatus getStatus()
+  {
+    return status;
+  }
+
+  private boolean isSuccess()
+  {
+    return status.getCode() / 100 == 2;
+  }
+
+  private void scan(ChannelBuffer buffer)
+  {
+    final int length = buffer.readableBytes();
+    if (length == 0) {
+      return;
+    }
+
+    final byte[] array;
+    final int offset;
+    if (buffer.hasArray()) {
+      array = buffer.array();
+      offset = buffer.arrayOffset() + buffer.readerIndex();
+    } else {
+      array = new byte[length];
+      buffer.getBytes(buffer.readerIndex(), array);
+      offset = 0;
+    }
+
+    final int end = offset + length;
+    int elementStart = offset;
+    for (int i = offset; i < end; i++) {
+      final byte b = array[i];
+      switch (state) {
+        case BEFORE_ARRAY:
+          if (b == '[') {
+            state = State.BEFORE_FIRST_ELEMENT;
+          } else if (!isWhitespace(b)) {
+            throw new IllegalStateException("Expected a JSON array");
+          }
+          break;
+
+        case AFTER_ELEMENT:
+          if (b == ',') {
+            state = State.BEFORE_ELEMENT;
+          } else if (b == ']') {
+            state = State.AFTER_ARRAY;
+          } else if (!isWhitespace(b)) {
+            throw new IllegalStateException("Expected ',' or ']' after an element of the JSON array");
+          }
+          break;
+
+        case BEFORE_FIRST_ELEMENT:
+        case BEFORE_ELEMENT:
+          if (b == ']' && state == State.BEFORE_FIRST_ELEMENT) {
+            state = State.AFTER_ARRAY;
+          } else if (b == ',' || b == ']') {
+            throw new IllegalStateException("Empty element in the JSON array");
+          } else if (!isWhitespace(b)) {
+            state = State.IN_ELEMENT;
+            elementStart = i;
+            depth = 0;
+            inString = false;
+            escaped = false;
+            scalar = b != '{' && b != '[' && b != '"';
+            if (!scalar) {
+              // Re-scan this byte as part of the element
+              i--;
+            }
+          }
+          break;
+
+        case IN_ELEMENT:
+          if (scalar) {
+            if (b == ',' || b == ']' || isWhitespace(b)) {
+              finishElement(array, elementStart, i);
+              // The terminator still needs handling
+              i--;
+            }
+          } else if (inString) {
+            if (escaped) {
+              escaped = false;
+            } else if (b == '\\') {
+              escaped = true;
+            } else if (b == '"') {
+              inString = false;
+              if (depth == 0) {
+                finishElement(array, elementStart, i + 1);
+              }
+            }
+          } else if (b == '"') {
+            inString = true;
+          } else if (b == '{' || b == '[') {
+            depth++;
+          } else if (b == '}' || b == ']') {
+            if (--depth == 0) {
+              finishElement(array, elementStart, i + 1);
+            }
+          }
+          break;
+
+        case AFTER_ARRAY:
+          if (!isWhitespace(b)) {
+            throw new IllegalStateException("Unexpected content after the JSON array");
+          }
+          break;
+      }
+    }
+
+    if (state == State.IN_ELEMENT) {
+      pending.writeBytes(array, elementStart, end - elementStart);
+    }
+
+    // Everything still needed has been copied into "pending".
+    trafficCop.release(length);
+  }
+
+  private void finishElement(byte[] array, int elementStart, int elementEnd)
+  {
+    if (pending.readable()) {
+      pending.writeBytes(array, elementStart, elementEnd - elementStart);
+      emit(pending.array(), pending.arrayOffset() + pending.readerIndex(), pending.readableBytes());
+      pending.clear();
+    } else {
+      emit(array, elementStart, elementEnd - elementStart);
+    }
+    state = State.AFTER_ELEMENT;
+  }
+
+  private void emit(byte[] array, int offset, int length)
+  {
+    final T element;
+    try {
+      element = mapper.readValue(array, offset, length, elementType);
+    }
+    catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+    numElements++;
+    callback.element(element);
+  }
+
+  private static boolean isWhitespace(byte b)
+  {
+    return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+  }
+}
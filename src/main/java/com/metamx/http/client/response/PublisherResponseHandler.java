@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes response content to a single Reactive Streams {@link Subscriber}, reading from the connection only while
+ * the subscriber has outstanding demand. The result is the {@link HttpResponse}, which is available as soon as the
+ * headers arrive; the content follows through {@link #subscribe(Subscriber)}, whether the subscriber comes along
+ * before or after that.
+ *
+ * Cancelling the subscription drains the rest of the response so the connection can be reused, unless more than
+ * maxDrainBytes turn up, in which case the connection is closed instead.
+ *
+ * A failure before the response arrives shows up only in the client's future, not here;
+ * {@link com.metamx.http.client.ResponsePublisher} takes care of passing it on. Instances hold per-request state and
+ * must not be reused.
+ */
+public class PublisherResponseHandler
+    implements StreamingResponseHandler<HttpResponse, HttpResponse>, Publisher<ChannelBuffer>
+{
+  public static final long DEFAULT_MAX_DRAIN_BYTES = 64 * 1024;
+
+  private static final Subscription NOOP_SUBSCRIPTION = new Subscription()
+  {
+    @Override
+    public void request(long n)
+    {
+    }
+
+    @Override
+    public void cancel()
+    {
+    }
+  };
+
+  private final long maxDrainBytes;
+  private final AtomicBoolean subscribed = new AtomicBoolean(false);
+  private final Queue<ChannelBuffer> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicLong demand = new AtomicLong(0);
+  private final AtomicInteger wip = new AtomicInteger(0);
+
+  private volatile Subscriber<? super ChannelBuffer> subscriber = null;
+  private volatile TrafficCop trafficCop = TrafficCop.NOOP;
+  private volatile Throwable error = null;
+  private volatile boolean completed = false;
+  private volatile boolean cancelled = false;
+
+  // Only touched by whoever is in drain()
+  private boolean terminated = false;
+  private TrafficCop pausedTrafficCop = null;
+
+  // Only touched by the I/O thread
+  private long drainedBytes = 0;
+
+  public PublisherResponseHandler()
+  {
+    this(DEFAULT_MAX_DRAIN_BYTES);
+  }
+
+  /**
+   * @param maxDrainBytes how much content to read and throw away after the subscription is cancelled, before giving up
+   *                      on reusing the connection
+   */
+  public PublisherResponseHandler(long maxDrainBytes)
+  {
+    this.maxDrainBytes = maxDrainBytes;
+  }
+
+  @Override
+  public void subscribe(final Subscriber<? super ChannelBuffer> s)
+  {
+    if (s == null) {
+      throw new NullPointerException("subscriber");
+    }
+
+    if (!subscribed.compareAndSet(false, true)) {
+      s.onSubscribe(NOOP_SUBSCRIPTION);
+      s.onError(new IllegalStateException("Response content can only be subscribed to once"));
+      return;
+    }
+
+    s.onSubscribe(
+        new Subscription()
+        {
+          @Override
+          public void request(long n)
+          {
+            if (n <= 0) {
+              cancelWithError(new IllegalArgumentException(String.format("Requested %,d elements", n)));
+            } else {
+              addDemand(n);
+            }
+            drain();
+          }
+
+          @Override
+          public void cancel()
+          {
+            cancelled = true;
+            drain();
+          }
+        }
+    );
+
+    // Anything requested from within onSubscribe is delivered from here on.
+    subscriber = s;
+    drain();
+  }
+
+  @Override
+  public ClientResponse<HttpResponse> handleResponse(HttpResponse response)
+  {
+    return handleResponse(response, TrafficCop.NOOP);
+  }
+
+  @Override
+  public ClientResponse<HttpResponse> handleResponse(HttpResponse response, TrafficCop trafficCop)
+  {
+    this.trafficCop = trafficCop;
+    offer(response.getContent());
+    // Pauses reads, if there's no demand yet.
+    drain();
+    return ClientResponse.finished(response);
+  }
+
+  @Override
+  public ClientResponse<HttpResponse> handleChunk(ClientResponse<HttpResponse> clientResponse, HttpChunk chunk)
+  {
+    offer(chunk.getContent());
+    return clientResponse;
+  }
+
+  @Override
+  public ClientResponse<HttpResponse> done(ClientResponse<HttpResponse> clientResponse)
+  {
+    completed = true;
+    drain();
+    return ClientResponse.finished(clientResponse.getObj());
+  }
+
+  @Override
+  public void exceptionCaught(ClientResponse<HttpResponse> clientResponse, Throwable e)
+  {
+    if (!cancelled && error == null) {
+      error = e;
+    }
+    drain();
+  }
+
+  private void offer(ChannelBuffer content)
+  {
+    final int bytes = content.readableBytes();
+    if (cancelled) {
+      trafficCop.release(bytes);
+      drainedBytes += bytes;
+      if (drainedBytes > maxDrainBytes) {
+        // Failing the request closes the connection.
+        throw new CancellationException("Subscription cancelled");
+      }
+      return;
+    }
+
+    if (bytes > 0) {
+      queue.add(content);
+      drain();
+    }
+  }
+
+  private void cancelWithError(Throwable e)
+  {
+    if (error == null) {
+      error = e;
+    }
+    cancelled = true;
+  }
+
+  private void addDemand(long n)
+  {
+    long current;
+    long next;
+    do {
+      current = demand.get();
+      next = current + n;
+      if (next < 0) {
+        // Treated as unbounded
+        next = Long.MAX_VALUE;
+      }
+    } while (!demand.compareAndSet(current, next));
+  }
+
+  /**
+   * Delivers whatever can be delivered and pauses or resumes reads to match. Calls from different threads, and from
+   * within the subscriber, are serialized: whoever gets here first loops until nobody else has asked.
+   */
+  private void drain()
+  {
+    if (wip.getAndIncrement() != 0) {
+      return;
+    }
+
+    do {
+      final Subscriber<? super ChannelBuffer> s = subscriber;
+      if (terminated || (cancelled && error == null)) {
+        terminated = true;
+        subscriber = null;
+        discardQueued();
+      } else if (s != null) {
+        while (error == null && demand.get() > 0) {
+          final ChannelBuffer buffer = queue.poll();
+          if (buffer == null) {
+            break;
+          }
+          if (demand.get() != Long.MAX_VALUE) {
+            demand.decrementAndGet();
+          }
+          // The subscriber owns it now.
+          trafficCop.release(buffer.readableBytes());
+          s.onNext(buffer);
+        }
+
+        if (error != null) {
+          terminated = true;
+          subscriber = null;
+          discardQueued();
+          s.onError(error);
+        } else if (completed && queue.isEmpty()) {
+          terminated = true;
+          subscriber = null;
+          s.onComplete();
+        }
+      }
+
+      updateReads();
+    } while (wip.decrementAndGet() != 0);
+  }
+
+  private void updateReads()
+  {
+    final TrafficCop current = trafficCop;
+    final boolean shouldPause = !terminated && !cancelled && (subscriber == null || demand.get() == 0);
+    if (shouldPause) {
+      if (pausedTrafficCop != current) {
+        current.pause();
+        pausedTrafficCop = current;
+      }
+    } else if (pausedTrafficCop != null) {
+      pausedTrafficCop.resume();
+      pausedTrafficCop = null;
+    }
+  }
+
+  private void discardQueued()
+  {
+    ChannelBuffer buffer;
+    while ((buffer = queue.poll()) != null) {
+      trafficCop.release(buffer.readableBytes());
+    }
+  }
+}
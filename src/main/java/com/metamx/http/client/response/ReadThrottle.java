@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Tracks content a streaming handler has buffered for its consumer, pausing reads from the connection when it
+ * reaches a high watermark and resuming them once the consumer has drained it to a low watermark. Consumed content
+ * is also released to the {@link TrafficCop}.
+ */
+class ReadThrottle
+{
+  static final long DEFAULT_HIGH_WATERMARK = 4 * 1024 * 1024;
+  static final long DEFAULT_LOW_WATERMARK = 1024 * 1024;
+
+  private final TrafficCop trafficCop;
+  private final long highWatermark;
+  private final long lowWatermark;
+
+  // Guarded by "this"
+  private long bufferedBytes = 0;
+  private boolean paused = false;
+
+  ReadThrottle(TrafficCop trafficCop, long highWatermark, long lowWatermark)
+  {
+    this.trafficCop = trafficCop;
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+  }
+
+  static void checkWatermarks(long highWatermark, long lowWatermark)
+  {
+    Preconditions.checkArgument(highWatermark > 0, "highWatermark must be positive");
+    Preconditions.checkArgument(
+        lowWatermark >= 0 && lowWatermark < highWatermark,
+        "lowWatermark must be non-negative and less than highWatermark"
+    );
+  }
+
+  /**
+   * Called before "bytes" are handed to the consumer.
+   */
+  synchronized void buffered(long bytes)
+  {
+    bufferedBytes += bytes;
+    if (!paused && bufferedBytes >= highWatermark) {
+      paused = true;
+      trafficCop.pause();
+    }
+  }
+
+  /**
+   * Called once the consumer has read or discarded "bytes".
+   */
+  void consumed(long bytes)
+  {
+    if (bytes <= 0) {
+      return;
+    }
+    trafficCop.release(bytes);
+    synchronized (this) {
+      bufferedBytes -= bytes;
+      if (paused && bufferedBytes <= lowWatermark) {
+        paused = false;
+        trafficCop.resume();
+      }
+    }
+  }
+}
@@ -16,82 +16,66 @@
 
 package com.metamx.http.client.response;
 
-import com.google.common.base.Throwables;
-import com.google.common.io.ByteSource;
 import com.metamx.common.logger.Logger;
+import com.metamx.http.client.io.AppendableByteArrayInputStream;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferInputStream;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.SequenceInputStream;
-import java.util.Enumeration;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A HTTP response handler which uses sequence input streams to create a final InputStream.
+ * A HTTP response handler which streams the response body into a final InputStream as it arrives.
  * Any particular instance is encouraged to overwrite a method and call the super if they need extra handling of the
  * method parameters.
  *
- * This implementation uses a blocking queue to feed a SequenceInputStream that is terminated whenever the handler's Done
- * method is called or a throwable is detected.
+ * Content buffers are handed from the I/O thread to the reader through an {@link AppendableByteArrayInputStream}
+ * without locks or per-chunk wrappers. The stream is terminated whenever the handler's Done method is called or a
+ * throwable is detected.
  *
  * The resulting InputStream will attempt to terminate normally, but on exception in HttpResponseHandler
  * may end with an IOException upon read()
+ *
+ * Content counts against the client's response buffer budget until it has been read from the stream, or the stream
+ * has been closed, so callers should always close it.
+ *
+ * Reads from the connection are paused while the stream holds more than a high watermark of unread content (4MB by
+ * default), and resumed once the reader has drained it to a low watermark (1MB by default).
  */
-public class SequenceInputStreamResponseHandler implements HttpResponseHandler<InputStream, InputStream>
+public class SequenceInputStreamResponseHandler implements StreamingResponseHandler<InputStream, InputStream>
 {
   private static final Logger log = new Logger(SequenceInputStreamResponseHandler.class);
-  private final AtomicLong byteCount = new AtomicLong(0);
-  private final BlockingQueue<InputStream> queue = new LinkedBlockingQueue<>();
-  private final AtomicBoolean done = new AtomicBoolean(false);
+  private final long highWatermark;
+  private final long lowWatermark;
+
+  // Only written by the I/O thread
+  private volatile long byteCount = 0;
+  private AppendableByteArrayInputStream stream;
+
+  public SequenceInputStreamResponseHandler()
+  {
+    this(ReadThrottle.DEFAULT_HIGH_WATERMARK, ReadThrottle.DEFAULT_LOW_WATERMARK);
+  }
+
+  public SequenceInputStreamResponseHandler(long highWatermark, long lowWatermark)
+  {
+    ReadThrottle.checkWatermarks(highWatermark, lowWatermark);
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+  }
 
   @Override
   public ClientResponse<InputStream> handleResponse(HttpResponse response)
   {
-    try {
-      queue.put(new ChannelBufferInputStream(response.getContent()));
-    }
-    catch (InterruptedException e) {
-      log.error(e, "Queue appending interrupted");
-      Thread.currentThread().interrupt();
-      throw Throwables.propagate(e);
-    }
-    byteCount.addAndGet(response.getContent().readableBytes());
-    return ClientResponse.<InputStream>finished(
-        new SequenceInputStream(
-            new Enumeration<InputStream>()
-            {
-              @Override
-              public boolean hasMoreElements()
-              {
-                // Done is always true until the last stream has be put in the queue.
-                // Then the stream should be spouting good InputStreams.
-                synchronized (done) {
-                  return !done.get() || !queue.isEmpty();
-                }
-              }
+    return handleResponse(response, TrafficCop.NOOP);
+  }
 
-              @Override
-              public InputStream nextElement()
-              {
-                try {
-                  return queue.take();
-                }
-                catch (InterruptedException e) {
-                  log.warn(e, "Thread interrupted while taking from queue");
-                  Thread.currentThread().interrupt();
-                  throw Throwables.propagate(e);
-                }
-              }
-            }
-        )
-    );
+  @Override
+  public ClientResponse<InputStream> handleResponse(HttpResponse response, TrafficCop trafficCop)
+  {
+    stream = new ThrottledInputStream(new ReadThrottle(trafficCop, highWatermark, lowWatermark));
+    append(response.getContent());
+    return ClientResponse.<InputStream>finished(stream);
   }
 
   @Override
@@ -100,19 +84,8 @@ public class SequenceInputStreamResponseHandler implements HttpResponseHandler<I
   )
   {
     final ChannelBuffer channelBuffer = chunk.getContent();
-    final int bytes = channelBuffer.readableBytes();
-    if (bytes > 0) {
-      try {
-        queue.put(new ChannelBufferInputStream(channelBuffer));
-        // Queue.size() can be expensive in some implementations, but LinkedBlockingQueue.size is just an AtomicLong
-        log.debug("Added stream. Queue length %d", queue.size());
-      }
-      catch (InterruptedException e) {
-        log.warn(e, "Thread interrupted while adding to queue");
-        Thread.currentThread().interrupt();
-        throw Throwables.propagate(e);
-      }
-      byteCount.addAndGet(bytes);
+    if (channelBuffer.readable()) {
+      append(channelBuffer);
     } else {
       log.debug("Skipping zero length chunk");
     }
@@ -122,60 +95,27 @@ public class SequenceInputStreamResponseHandler implements HttpResponseHandler<I
   @Override
   public ClientResponse<InputStream> done(ClientResponse<InputStream> clientResponse)
   {
-    synchronized (done) {
-      try {
-        // An empty byte array is put at the end to give the SequenceInputStream.close() as something to close out
-        // after done is set to true, regardless of the rest of the stream's state.
-        queue.put(ByteSource.empty().openStream());
-        log.debug("Added terminal empty stream");
-      }
-      catch (InterruptedException e) {
-        log.warn(e, "Thread interrupted while adding to queue");
-        Thread.currentThread().interrupt();
-        throw Throwables.propagate(e);
-      }
-      catch (IOException e) {
-        // This should never happen
-        log.wtf(e, "The empty stream threw an IOException");
-        throw Throwables.propagate(e);
-      }
-      finally {
-        log.debug("Done after adding %d bytes of streams", byteCount.get());
-        done.set(true);
-      }
-    }
+    stream.done();
+    log.debug("Done after adding %d bytes of streams", byteCount);
     return ClientResponse.<InputStream>finished(clientResponse.getObj());
   }
 
   @Override
   public void exceptionCaught(final ClientResponse<InputStream> clientResponse, final Throwable e)
   {
-    // Don't wait for lock in case the lock had something to do with the error
-    synchronized (done) {
-      done.set(true);
-      // Make a best effort to put a zero length buffer into the queue in case something is waiting on the take()
-      // If nothing is waiting on take(), this will be closed out anyways.
-      final boolean accepted = queue.offer(
-          new InputStream()
-          {
-            @Override
-            public int read() throws IOException
-            {
-              throw new IOException(e);
-            }
-          }
-      );
-      if (!accepted) {
-        log.warn("Unable to place final IOException offer in queue");
-      } else {
-        log.debug("Placed IOException in queue");
-      }
-      log.debug(e, "Exception with queue length of %d and %d bytes available", queue.size(), byteCount.get());
-    }
+    stream.exceptionCaught(e);
+    log.debug(e, "Exception with %d bytes added", byteCount);
   }
 
   public final long getByteCount()
   {
-    return byteCount.get();
+    return byteCount;
+  }
+
+  private void append(ChannelBuffer buffer)
+  {
+    final int bytes = buffer.readableBytes();
+    stream.add(buffer);
+    byteCount += bytes;
   }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+/**
+ * An event received from a text/event-stream response.
+ */
+public class ServerSentEvent
+{
+  private final String id;
+  private final String event;
+  private final String data;
+
+  public ServerSentEvent(String id, String event, String data)
+  {
+    this.id = id;
+    this.event = event;
+    this.data = data;
+  }
+
+  /**
+   * The last event ID the server set as of this event, which may have been set by an earlier event, or null if it
+   * never set one.
+   */
+  public String getId()
+  {
+    return id;
+  }
+
+  /**
+   * The event type, "message" unless the server gave another.
+   */
+  public String getEvent()
+  {
+    return event;
+  }
+
+  public String getData()
+  {
+    return data;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "ServerSentEvent{" +
+           "id='" + id + '\'' +
+           ", event='" + event + '\'' +
+           ", data='" + data + '\'' +
+           '}';
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferIndexFinder;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Parses a text/event-stream response as it arrives and dispatches each event to a {@link Listener} on the I/O
+ * thread, so a long-lived stream doesn't need a thread of its own. The result is the number of events dispatched.
+ *
+ * Lines may end in LF, CRLF or CR, and a leading byte order mark is skipped. Content of responses other than 200 OK
+ * is ignored; see {@link #getStatus()}. The last event ID and reconnection time set by the server are available once
+ * the response is over, for reconnecting with Last-Event-ID; {@link com.metamx.http.client.ServerSentEventStream}
+ * does this. Like an event's data, its ID only counts once the event is dispatched, so a reconnect after a cut off
+ * event asks for that event again.
+ *
+ * Instances hold per-request state and must not be reused.
+ */
+public class ServerSentEventResponseHandler implements StreamingResponseHandler<Long, Long>
+{
+  public interface Listener
+  {
+    /**
+     * Called on the I/O thread for each event, in order.
+     */
+    public void onEvent(ServerSentEvent event);
+  }
+
+  private static final String DEFAULT_EVENT_TYPE = "message";
+  private static final int MAX_LINE_LENGTH = DelimitedRecordResponseHandler.DEFAULT_MAX_RECORD_LENGTH;
+
+  private final Listener listener;
+
+  private volatile HttpResponseStatus status = null;
+  private volatile String lastEventId;
+  private volatile long retryMillis = -1;
+  private volatile boolean stopped = false;
+
+  private TrafficCop trafficCop = TrafficCop.NOOP;
+  private final StringBuilder data = new StringBuilder();
+  private String eventType = null;
+  private String eventId;
+  private long numEvents = 0;
+
+  // Start of a line from earlier chunks
+  private final ChannelBuffer pendingLine = ChannelBuffers.dynamicBuffer();
+  private boolean afterCr = false;
+  private boolean firstLine = true;
+
+  public ServerSentEventResponseHandler(Listener listener)
+  {
+    this(listener, null);
+  }
+
+  /**
+   * @param lastEventId ID of the last event seen on an earlier connection to the same stream, or null
+   */
+  public ServerSentEventResponseHandler(Listener listener, String lastEventId)
+  {
+    this.listener = listener;
+    this.lastEventId = lastEventId;
+    this.eventId = lastEventId;
+  }
+
+  @Override
+  public ClientResponse<Long> handleResponse(HttpResponse response)
+  {
+    return handleResponse(response, TrafficCop.NOOP);
+  }
+
+  @Override
+  public ClientResponse<Long> handleResponse(HttpResponse response, TrafficCop trafficCop)
+  {
+    this.trafficCop = trafficCop;
+    status = response.getStatus();
+    if (HttpResponseStatus.OK.equals(status)) {
+      scan(response.getContent());
+    } else {
+      trafficCop.release(response.getContent().readableBytes());
+    }
+    return ClientResponse.unfinished(numEvents);
+  }
+
+  @Override
+  public ClientResponse<Long> handleChunk(ClientResponse<Long> clientResponse, HttpChunk chunk)
+  {
+    if (stopped) {
+      // Failing the request closes the connection.
+      throw new CancellationException("Stopped");
+    }
+    if (HttpResponseStatus.OK.equals(status)) {
+      scan(chunk.getContent());
+    } else {
+      trafficCop.release(chunk.getContent().readableBytes());
+    }
+    return ClientResponse.unfinished(numEvents);
+  }
+
+  @Override
+  public ClientResponse<Long> done(ClientResponse<Long> clientResponse)
+  {
+    // A line or event that wasn't terminated is incomplete, and dropped.
+    return ClientResponse.finished(numEvents);
+  }
+
+  @Override
+  public void exceptionCaught(ClientResponse<Long> clientResponse, Throwable e)
+  {
+    // Its safe to Ignore as the ClientResponse returned in handleChunk were unfinished
+  }
+
+  /**
+   * Closes the connection when the next content arrives, without dispatching any more events.
+   */
+  public void stop()
+  {
+    stopped = true;
+  }
+
+  /**
+   * The response's status, or null if it hasn't arrived yet.
+   */
+  public HttpResponseStatus getStatus()
+  {
+    return status;
+  }
+
+  public String getLastEventId()
+  {
+    return lastEventId;
+  }
+
+  /**
+   * The reconnection time the server asked for, in milliseconds, or -1 if it didn't.
+   */
+  public long getRetryMillis()
+  {
+    return retryMillis;
+  }
+
+  private void scan(ChannelBuffer buffer)
+  {
+    final int end = buffer.writerIndex();
+    int lineStart = buffer.readerIndex();
+    if (afterCr && lineStart < end && buffer.getByte(lineStart) == '\n') {
+      // The rest of a CRLF split between chunks
+      lineStart++;
+    }
+    afterCr = false;
+
+    int lineEnd;
+    while ((lineEnd = buffer.indexOf(lineStart, end, ChannelBufferIndexFinder.CRLF)) >= 0) {
+      if (pendingLine.readable()) {
+        pendingLine.writeBytes(buffer, lineStart, lineEnd - lineStart);
+        handleLine(pendingLine);
+        pendingLine.clear();
+      } else {
+        handleLine(buffer.slice(lineStart, lineEnd - lineStart));
+      }
+
+      lineStart = lineEnd + 1;
+      if (buffer.getByte(lineEnd) == '\r') {
+        if (lineStart == end) {
+          afterCr = true;
+        } else if (buffer.getByte(lineStart) == '\n') {
+          lineStart++;
+        }
+      }
+    }
+
+    if (pendingLine.readableBytes() + end - lineStart > MAX_LINE_LENGTH) {
+      throw new IllegalStateException(String.format("Line longer than %,d bytes", MAX_LINE_LENGTH));
+    }
+    pendingLine.writeBytes(buffer, lineStart, end - lineStart);
+    trafficCop.release(buffer.readableBytes());
+  }
+
+  private void handleLine(ChannelBuffer line)
+  {
+    if (firstLine) {
+      firstLine = false;
+      final int start = line.readerIndex();
+      if (line.readableBytes() >= 3
+          && line.getByte(start) == (byte) 0xEF
+          && line.getByte(start + 1) == (byte) 0xBB
+          && line.getByte(start + 2) == (byte) 0xBF) {
+        line = line.slice(start + 3, line.readableBytes() - 3);
+      }
+    }
+
+    if (stopped) {
+      return;
+    }
+
+    if (!line.readable()) {
+      dispatch();
+      return;
+    }
+
+    final int start = line.readerIndex();
+    if (line.getByte(start) == ':') {
+      // Comment
+      return;
+    }
+
+    final int colon = line.indexOf(start, line.writerIndex(), (byte) ':');
+    final String field;
+    final String value;
+    if (colon < 0) {
+      field = line.toString(Charsets.UTF_8);
+      value = "";
+    } else {
+      field = line.toString(start, colon - start, Charsets.UTF_8);
+      int valueStart = colon + 1;
+      if (valueStart < line.writerIndex() && line.getByte(valueStart) == ' ') {
+        valueStart++;
+      }
+      value = line.toString(valueStart, line.writerIndex() - valueStart, Charsets.UTF_8);
+    }
+
+    switch (field) {
+      case "data":
+        data.append(value).append('\n');
+        break;
+      case "event":
+        eventType = value;
+        break;
+      case "id":
+        if (value.indexOf('\0') < 0) {
+          eventId = value;
+        }
+        break;
+      case "retry":
+        if (value.matches("[0-9]{1,18}")) {
+          retryMillis = Long.parseLong(value);
+        }
+        break;
+      default:
+        // Unknown fields are ignored.
+    }
+  }
+
+  private void dispatch()
+  {
+    lastEventId = eventId;
+    if (data.length() == 0) {
+      eventType = null;
+      return;
+    }
+
+    data.setLength(data.length() - 1);
+    final ServerSentEvent event = new ServerSentEvent(
+        lastEventId,
+        eventType == null || eventType.isEmpty() ? DEFAULT_EVENT_TYPE : eventType,
+        data.toString()
+    );
+    data.setLength(0);
+    eventType = null;
+    numEvents++;
+    listener.onEvent(event);
+  }
+}
@@ -22,6 +22,7 @@ import org.jboss.netty.handler.codec.http.HttpResponse;
 import java.nio.charset.Charset;
 
 /**
+ * Content is accumulated as bytes and decoded once the response is done, so the holder's builder is empty until then.
  */
 public class StatusResponseHandler implements HttpResponseHandler<StatusResponseHolder, StatusResponseHolder>
 {
@@ -35,12 +36,9 @@ public class StatusResponseHandler implements HttpResponseHandler<StatusResponse
   @Override
   public ClientResponse<StatusResponseHolder> handleResponse(HttpResponse response)
   {
-    return ClientResponse.unfinished(
-        new StatusResponseHolder(
-            response.getStatus(),
-            new StringBuilder(response.getContent().toString(charset))
-        )
-    );
+    final StatusResponseHolder holder = new StatusResponseHolder(response.getStatus(), new StringBuilder());
+    holder.setAccumulator(new ContentAccumulator(response));
+    return ClientResponse.unfinished(holder);
   }
 
   @Override
@@ -49,20 +47,17 @@ public class StatusResponseHandler implements HttpResponseHandler<StatusResponse
       HttpChunk chunk
   )
   {
-    final StringBuilder builder = response.getObj().getBuilder();
-
-    if (builder == null) {
-      return ClientResponse.finished(null);
-    }
-
-    builder.append(chunk.getContent().toString(charset));
+    response.getObj().getAccumulator().append(chunk.getContent());
     return response;
   }
 
   @Override
   public ClientResponse<StatusResponseHolder> done(ClientResponse<StatusResponseHolder> response)
   {
-    return ClientResponse.finished(response.getObj());
+    final StatusResponseHolder holder = response.getObj();
+    holder.getBuilder().append(holder.getAccumulator().toString(charset));
+    holder.setAccumulator(null);
+    return ClientResponse.finished(holder);
   }
 
   @Override
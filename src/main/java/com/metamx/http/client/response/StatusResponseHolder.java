@@ -25,6 +25,9 @@ public class StatusResponseHolder
   private final HttpResponseStatus status;
   private final StringBuilder builder;
 
+  // Raw content while a handler is still receiving it, decoded into the builder when the response is done.
+  private ContentAccumulator accumulator;
+
   public StatusResponseHolder(
       HttpResponseStatus status,
       StringBuilder builder
@@ -39,6 +42,16 @@ public class StatusResponseHolder
     return status;
   }
 
+  ContentAccumulator getAccumulator()
+  {
+    return accumulator;
+  }
+
+  void setAccumulator(ContentAccumulator accumulator)
+  {
+    this.accumulator = accumulator;
+  }
+
   public StringBuilder getBuilder()
   {
     return builder;
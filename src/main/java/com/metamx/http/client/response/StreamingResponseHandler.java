@@ -0,0 +1,37 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * A handler whose results are consumed while the response is still arriving, such as an InputStream read by another
+ * thread, rather than after it is done.
+ *
+ * Content given to a regular {@link HttpResponseHandler} counts against the client's response buffer budget until the
+ * request is done. Content given to a StreamingResponseHandler counts against it until the handler reports, through
+ * the {@link TrafficCop}, that the content has been consumed or discarded. Every byte of content passed to the handler
+ * must eventually be released.
+ *
+ * Clients that support it call {@link #handleResponse(HttpResponse, TrafficCop)} instead of
+ * {@link #handleResponse(HttpResponse)}.
+ */
+public interface StreamingResponseHandler<IntermediateType, FinalType>
+    extends HttpResponseHandler<IntermediateType, FinalType>
+{
+  public ClientResponse<IntermediateType> handleResponse(HttpResponse response, TrafficCop trafficCop);
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.metamx.http.client.io.AppendableByteArrayInputStream;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * An {@link AppendableByteArrayInputStream} that reports what is added and consumed to a {@link ReadThrottle}.
+ */
+class ThrottledInputStream extends AppendableByteArrayInputStream
+{
+  private final ReadThrottle throttle;
+
+  ThrottledInputStream(ReadThrottle throttle)
+  {
+    this.throttle = throttle;
+  }
+
+  @Override
+  public void add(ChannelBuffer buffer)
+  {
+    throttle.buffered(buffer.readableBytes());
+    super.add(buffer);
+  }
+
+  @Override
+  protected void bytesConsumed(long numBytes)
+  {
+    throttle.consumed(numBytes);
+  }
+}
@@ -16,17 +16,37 @@
 
 package com.metamx.http.client.response;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
+ * Chunks are decoded into the StringBuilder as they arrive. A chunked response gets its own {@link CharsetDecoder},
+ * which holds on to the bytes of a character split across chunks until the rest of it arrives.
  */
 public class ToStringResponseHandler implements HttpResponseHandler<StringBuilder, String>
 {
+  private static final int DEFAULT_INITIAL_SIZE = 256;
+  // Don't trust Content-Length with more than this up front.
+  private static final int MAX_INITIAL_SIZE = 16 * 1024 * 1024;
+
   private final Charset charset;
 
+  // Handlers may be shared by concurrent requests, so decoders are looked up by the request's builder.
+  private final Map<StringBuilder, ChunkDecoder> decoders = Collections.synchronizedMap(
+      new WeakHashMap<StringBuilder, ChunkDecoder>()
+  );
+
   public ToStringResponseHandler(Charset charset)
   {
     this.charset = charset;
@@ -35,7 +55,18 @@ public class ToStringResponseHandler implements HttpResponseHandler<StringBuilde
   @Override
   public ClientResponse<StringBuilder> handleResponse(HttpResponse response)
   {
-    return ClientResponse.unfinished(new StringBuilder(response.getContent().toString(charset)));
+    if (!response.isChunked()) {
+      return ClientResponse.unfinished(new StringBuilder(response.getContent().toString(charset)));
+    }
+
+    final long contentLength = HttpHeaders.getContentLength(response, -1);
+    final StringBuilder builder = new StringBuilder(
+        contentLength > 0 ? (int) Math.min(contentLength, MAX_INITIAL_SIZE) : DEFAULT_INITIAL_SIZE
+    );
+    final ChunkDecoder decoder = new ChunkDecoder(charset);
+    decoder.decode(response.getContent(), builder);
+    decoders.put(builder, decoder);
+    return ClientResponse.unfinished(builder);
   }
 
   @Override
@@ -49,7 +80,12 @@ public class ToStringResponseHandler implements HttpResponseHandler<StringBuilde
       return ClientResponse.finished(null);
     }
 
-    builder.append(chunk.getContent().toString(charset));
+    final ChunkDecoder decoder = decoders.get(builder);
+    if (decoder == null) {
+      builder.append(chunk.getContent().toString(charset));
+    } else {
+      decoder.decode(chunk.getContent(), builder);
+    }
     return response;
   }
 
@@ -61,6 +97,11 @@ public class ToStringResponseHandler implements HttpResponseHandler<StringBuilde
       return ClientResponse.finished(null);
     }
 
+    final ChunkDecoder decoder = decoders.remove(builder);
+    if (decoder != null) {
+      // Anything left over is an incomplete character, which is decoded as a replacement.
+      decoder.finish(builder);
+    }
     return ClientResponse.finished(builder.toString());
   }
 
@@ -70,6 +111,54 @@ public class ToStringResponseHandler implements HttpResponseHandler<StringBuilde
   )
   {
     // Its safe to Ignore as the ClientResponse returned in handleChunk were unfinished
+    if (clientResponse != null && clientResponse.getObj() != null) {
+      decoders.remove(clientResponse.getObj());
+    }
   }
 
+  private static class ChunkDecoder
+  {
+    private final CharsetDecoder decoder;
+    // Bytes of a character whose remaining bytes haven't arrived yet.
+    private ByteBuffer leftover = null;
+
+    ChunkDecoder(Charset charset)
+    {
+      this.decoder = charset.newDecoder()
+                            .onMalformedInput(CodingErrorAction.REPLACE)
+                            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    void decode(ChannelBuffer content, StringBuilder builder)
+    {
+      ByteBuffer in = content.toByteBuffer();
+      if (leftover != null) {
+        final ByteBuffer joined = ByteBuffer.allocate(leftover.remaining() + in.remaining());
+        joined.put(leftover).put(in).flip();
+        in = joined;
+        leftover = null;
+      }
+
+      final CharBuffer out = CharBuffer.allocate((int) (in.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+      decoder.decode(in, out, false);
+      out.flip();
+      builder.append(out);
+
+      if (in.hasRemaining()) {
+        leftover = ByteBuffer.allocate(in.remaining());
+        leftover.put(in).flip();
+      }
+    }
+
+    void finish(StringBuilder builder)
+    {
+      final ByteBuffer in = leftover == null ? ByteBuffer.allocate(0) : leftover;
+      leftover = null;
+      final CharBuffer out = CharBuffer.allocate(in.remaining() + 2);
+      decoder.decode(in, out, true);
+      decoder.flush(out);
+      out.flip();
+      builder.append(out);
+    }
+  }
 }
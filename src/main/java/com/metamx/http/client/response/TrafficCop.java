@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+/**
+ * Handed to a {@link StreamingResponseHandler} along with the response, letting it tell the client what has happened
+ * to the content it was given. All methods are safe to call from any thread, including after the request has
+ * finished.
+ */
+public interface TrafficCop
+{
+  /**
+   * For handlers used with clients that don't support streaming handlers.
+   */
+  public static final TrafficCop NOOP = new TrafficCop()
+  {
+    @Override
+    public void release(long bytes)
+    {
+    }
+
+    @Override
+    public void pause()
+    {
+    }
+
+    @Override
+    public void resume()
+    {
+    }
+  };
+
+  /**
+   * Reports that "bytes" of the response content previously handed to the handler are no longer held in memory,
+   * returning them to the client's response buffer budget.
+   */
+  public void release(long bytes);
+
+  /**
+   * Stops reading from the connection until {@link #resume()} is called, so the server is pushed back on by TCP flow
+   * control. The connection's read timeout, if any, still applies while paused.
+   */
+  public void pause();
+
+  public void resume();
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.metamx.common.lifecycle.Lifecycle;
+import com.metamx.http.client.response.ClientResponse;
+import com.metamx.http.client.response.HttpResponseHandler;
+import com.metamx.http.client.response.StatusResponseHandler;
+import com.metamx.http.client.response.StatusResponseHolder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.timeout.ReadTimeoutException;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class BlockingHttpClientTest
+{
+  private Server server;
+  private URL baseUrl;
+  private ExecutorService exec;
+  private Lifecycle lifecycle;
+  private HttpClient client;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    server = new Server(0);
+    server.setHandler(
+        new AbstractHandler()
+        {
+          @Override
+          public void handle(
+              String target,
+              org.eclipse.jetty.server.Request baseRequest,
+              HttpServletRequest request,
+              HttpServletResponse response
+          ) throws IOException
+          {
+            baseRequest.setHandled(true);
+            response.setStatus(200);
+            if ("/echo".equals(target)) {
+              final byte[] body = ByteStreams.toByteArray(request.getInputStream());
+              response.setContentLength(body.length);
+              response.getOutputStream().write(body);
+            } else if ("/chunked".equals(target)) {
+              // No content length, so Jetty chunks it.
+              final OutputStream out = response.getOutputStream();
+              for (int i = 0; i < 3; i++) {
+                out.write(String.format("chunk%d", i).getBytes(Charsets.UTF_8));
+                out.flush();
+              }
+            } else {
+              final byte[] body = String.valueOf(request.getRemotePort()).getBytes(Charsets.UTF_8);
+              response.setContentLength(body.length);
+              response.getOutputStream().write(body);
+            }
+          }
+        }
+    );
+    server.start();
+    baseUrl = new URL(String.format("http://localhost:%d", ((ServerConnector) server.getConnectors()[0]).getLocalPort()));
+
+    exec = Executors.newCachedThreadPool();
+    lifecycle = new Lifecycle();
+    client = HttpClientInit.createBlockingClient(
+        HttpClientConfig.builder().withNumConnections(1).build(),
+        exec,
+        lifecycle
+    );
+  }
+
+  @After
+  public void tearDown() throws Exception
+  {
+    lifecycle.stop();
+    exec.shutdownNow();
+    server.stop();
+  }
+
+  @Test
+  public void testGetReusesConnection() throws Exception
+  {
+    final StatusResponseHolder first = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+    final StatusResponseHolder second = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+
+    Assert.assertEquals(200, first.getStatus().getCode());
+    // Same client port means the same connection.
+    Assert.assertEquals(first.getContent(), second.getContent());
+  }
+
+  @Test
+  public void testServerClosesIdleConnection() throws Exception
+  {
+    // The server closes connections that have been idle for 100ms, which the client only finds out by using one.
+    ((ServerConnector) server.getConnectors()[0]).setIdleTimeout(100);
+
+    final StatusResponseHolder first = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+    Thread.sleep(500);
+    final StatusResponseHolder second = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+
+    Assert.assertEquals(200, second.getStatus().getCode());
+    // Different client port means it was sent again on a new connection.
+    Assert.assertFalse(first.getContent().equals(second.getContent()));
+  }
+
+  @Test
+  public void testPostNotRetriedOnReusedConnection() throws Exception
+  {
+    final AtomicInteger posts = new AtomicInteger();
+    try (final ServerSocket serverSocket = new ServerSocket(0)) {
+      exec.submit(
+          new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              try {
+                while (true) {
+                  try (
+                      Socket clientSocket = serverSocket.accept();
+                      InputStream in = clientSocket.getInputStream();
+                      OutputStream out = clientSocket.getOutputStream()
+                  ) {
+                    // Answer GETs, then hang up on the first POST after reading it, as if the connection went stale.
+                    String head;
+                    while ((head = readRequest(in)) != null && head.startsWith("GET ")) {
+                      out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes(Charsets.UTF_8));
+                      out.flush();
+                    }
+                    if (head != null) {
+                      posts.incrementAndGet();
+                    }
+                  }
+                }
+              }
+              catch (Exception e) {
+                // Suppress
+              }
+            }
+          }
+      );
+
+      final URL url = new URL(String.format("http://localhost:%d/", serverSocket.getLocalPort()));
+      client.go(new Request(HttpMethod.GET, url), new StatusResponseHandler(Charsets.UTF_8)).get();
+
+      Throwable e = null;
+      try {
+        client.go(
+            new Request(HttpMethod.POST, url).setContent("text/plain", "hello".getBytes(Charsets.UTF_8)),
+            new StatusResponseHandler(Charsets.UTF_8)
+        ).get();
+      }
+      catch (ExecutionException e1) {
+        e = e1.getCause();
+      }
+      Assert.assertNotNull("POST failed", e);
+      Assert.assertEquals("POST sent once", 1, posts.get());
+    }
+  }
+
+  @Test
+  public void testPostStreamingContent() throws Exception
+  {
+    final byte[] body = new byte[100000];
+    Arrays.fill(body, (byte) 'a');
+    final StatusResponseHolder response = client.go(
+        new Request(HttpMethod.POST, new URL(baseUrl, "/echo")).setContent(
+            "text/plain",
+            ByteSource.wrap(body)
+        ),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+
+    Assert.assertEquals(200, response.getStatus().getCode());
+    Assert.assertEquals(new String(body, Charsets.UTF_8), response.getContent());
+  }
+
+  @Test
+  public void testChunkedResponse() throws Exception
+  {
+    final StatusResponseHolder response = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/chunked")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+
+    Assert.assertEquals("chunk0chunk1chunk2", response.getContent());
+  }
+
+  @Test
+  public void testHeadRequest() throws Exception
+  {
+    final StatusResponseHolder response = client.go(
+        new Request(HttpMethod.HEAD, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+
+    Assert.assertEquals(200, response.getStatus().getCode());
+    Assert.assertEquals("", response.getContent());
+  }
+
+  @Test
+  public void testHandlerException() throws Exception
+  {
+    final ListenableFuture<Object> future = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new HttpResponseHandler<Object, Object>()
+        {
+          @Override
+          public ClientResponse<Object> handleResponse(HttpResponse response)
+          {
+            throw new IllegalStateException("oops");
+          }
+
+          @Override
+          public ClientResponse<Object> handleChunk(ClientResponse<Object> clientResponse, HttpChunk chunk)
+          {
+            return clientResponse;
+          }
+
+          @Override
+          public ClientResponse<Object> done(ClientResponse<Object> clientResponse)
+          {
+            return ClientResponse.finished(clientResponse.getObj());
+          }
+
+          @Override
+          public void exceptionCaught(ClientResponse<Object> clientResponse, Throwable e)
+          {
+          }
+        }
+    );
+    Assert.assertNull(future.get());
+
+    // The connection was closed and replaced.
+    final StatusResponseHolder response = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+    Assert.assertEquals(HttpResponseStatus.OK, response.getStatus());
+  }
+
+  @Test
+  public void testSilentServerTimesOut() throws Exception
+  {
+    try (final ServerSocket silentServerSocket = new ServerSocket(0)) {
+      exec.submit(
+          new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              try (
+                  Socket clientSocket = silentServerSocket.accept();
+                  InputStream in = clientSocket.getInputStream()
+              ) {
+                while (in.read() != -1) {
+                }
+              }
+              catch (Exception e) {
+                // Suppress
+              }
+            }
+          }
+      );
+
+      final ListenableFuture<StatusResponseHolder> future = client.go(
+          new Request(HttpMethod.GET, new URL(String.format("http://localhost:%d/", silentServerSocket.getLocalPort()))),
+          new StatusResponseHandler(Charsets.UTF_8),
+          new Duration(100)
+      );
+
+      Throwable e = null;
+      try {
+        future.get();
+      }
+      catch (ExecutionException e1) {
+        e = e1.getCause();
+      }
+      Assert.assertTrue("ReadTimeoutException thrown by 'get'", e instanceof ReadTimeoutException);
+    }
+  }
+
+  /**
+   * Reads a request's head and skips its Content-Length body.
+   *
+   * @return the request head, or null at end of stream
+   */
+  private static String readRequest(InputStream in) throws IOException
+  {
+    final StringBuilder head = new StringBuilder();
+    int c;
+    while (!head.toString().endsWith("\r\n\r\n")) {
+      if ((c = in.read()) == -1) {
+        return null;
+      }
+      head.append((char) c);
+    }
+    final Matcher matcher = Pattern.compile("(?i)content-length: *(\\d+)").matcher(head);
+    if (matcher.find()) {
+      ByteStreams.skipFully(in, Long.parseLong(matcher.group(1)));
+    }
+    return head.toString();
+  }
+}
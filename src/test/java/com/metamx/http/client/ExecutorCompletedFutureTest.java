@@ -0,0 +1,106 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ExecutorCompletedFutureTest
+{
+  @Test
+  public void testListenersRunOnExecutor() throws Exception
+  {
+    final ExecutorService exec = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("completion-%s").build()
+    );
+    try {
+      final SettableFuture<String> original = SettableFuture.create();
+      final ExecutorCompletedFuture<String> future = new ExecutorCompletedFuture<>(original, exec);
+      final AtomicReference<String> listenerThread = new AtomicReference<>();
+      future.addListener(
+          new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              listenerThread.set(Thread.currentThread().getName());
+            }
+          },
+          MoreExecutors.sameThreadExecutor()
+      );
+
+      original.set("done");
+      Assert.assertEquals("done", future.get(10, TimeUnit.SECONDS));
+      exec.shutdown();
+      Assert.assertTrue(exec.awaitTermination(10, TimeUnit.SECONDS));
+      Assert.assertEquals("completion-0", listenerThread.get());
+    }
+    finally {
+      exec.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailureAndRejection() throws Exception
+  {
+    final Executor rejecting = new Executor()
+    {
+      @Override
+      public void execute(Runnable command)
+      {
+        throw new RejectedExecutionException();
+      }
+    };
+
+    final SettableFuture<String> original = SettableFuture.create();
+    final ExecutorCompletedFuture<String> future = new ExecutorCompletedFuture<>(original, rejecting);
+    final Exception e = new IllegalStateException("failed");
+    original.setException(e);
+
+    Assert.assertTrue("Completed inline", future.isDone());
+    try {
+      future.get();
+      Assert.fail("Expected ExecutionException");
+    }
+    catch (ExecutionException e1) {
+      Assert.assertSame(e, e1.getCause());
+    }
+  }
+
+  @Test
+  public void testCancel()
+  {
+    final SettableFuture<String> original = SettableFuture.create();
+    final ExecutorCompletedFuture<String> future = new ExecutorCompletedFuture<>(
+        original,
+        MoreExecutors.sameThreadExecutor()
+    );
+    Assert.assertTrue(future.cancel(false));
+    Assert.assertTrue(original.isCancelled());
+  }
+}
@@ -17,8 +17,18 @@
 package com.metamx.http.client;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.metamx.common.lifecycle.Lifecycle;
+import com.metamx.http.client.response.ClientResponse;
+import com.metamx.http.client.response.HttpResponseHandler;
+import com.metamx.http.client.response.SequenceInputStreamResponseHandler;
 import com.metamx.http.client.response.StatusResponseHandler;
 import com.metamx.http.client.response.StatusResponseHolder;
 import org.eclipse.jetty.server.Connector;
@@ -28,26 +38,46 @@ import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.channel.socket.nio.NioSocketChannelConfig;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.util.HashedWheelTimer;
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLHandshakeException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URL;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Tests with servers that are at least moderately well-behaving.
@@ -160,6 +190,658 @@ public class FriendlyServersTest
     }
   }
 
+  @Test
+  public void testSocketOptionsConfig() throws Exception
+  {
+    final ExecutorService exec = Executors.newSingleThreadExecutor();
+    final ServerSocket serverSocket = new ServerSocket(0);
+    exec.submit(
+        new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            while (!Thread.currentThread().isInterrupted()) {
+              try (
+                  Socket clientSocket = serverSocket.accept();
+                  BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                  OutputStream out = clientSocket.getOutputStream()
+              ) {
+                while (!in.readLine().equals("")); // skip lines
+                out.write("HTTP/1.1 200 OK\r\nContent-Length: 6\r\n\r\nhello!".getBytes(Charsets.UTF_8));
+              }
+              catch (Exception e) {
+                // Suppress
+              }
+            }
+          }
+        }
+    );
+
+    final Lifecycle lifecycle = new Lifecycle();
+    final HashedWheelTimer timer = new HashedWheelTimer();
+    try {
+      final HttpClientConfig config = HttpClientConfig.builder()
+                                                      .withTcpNoDelay(true)
+                                                      .withSendBufferSize(64 * 1024)
+                                                      .withReceiveBufferSize(256 * 1024)
+                                                      .withWriteBufferWaterMarks(16 * 1024, 32 * 1024)
+                                                      .withReceiveBufferSizePredictor(128, 4096, 4 * 1024 * 1024)
+                                                      .withChannelOptions(
+                                                          String.format("http://localhost:%d", serverSocket.getLocalPort()),
+                                                          ImmutableMap.<String, Object>of("tcpNoDelay", false)
+                                                      )
+                                                      .build();
+      final HttpClient client = HttpClientInit.createClient(config, lifecycle);
+      final StatusResponseHolder response = client
+          .go(
+              new Request(HttpMethod.GET, new URL(String.format("http://localhost:%d/", serverSocket.getLocalPort()))),
+              new StatusResponseHandler(Charsets.UTF_8)
+          ).get();
+
+      Assert.assertEquals(200, response.getStatus().getCode());
+      Assert.assertEquals("hello!", response.getContent());
+
+      // The options reach the bootstrap, and connections made with it.
+      final ClientBootstrap bootstrap = HttpClientInit.createBootstrap(lifecycle, timer, config);
+      Assert.assertEquals(64 * 1024, bootstrap.getOption("sendBufferSize"));
+      Assert.assertEquals(256 * 1024, bootstrap.getOption("receiveBufferSize"));
+      Assert.assertEquals(16 * 1024, bootstrap.getOption("writeBufferLowWaterMark"));
+      Assert.assertEquals(32 * 1024, bootstrap.getOption("writeBufferHighWaterMark"));
+
+      final Channel channel = bootstrap.connect(new InetSocketAddress("localhost", serverSocket.getLocalPort()))
+                                       .awaitUninterruptibly()
+                                       .getChannel();
+      try {
+        final NioSocketChannelConfig channelConfig = (NioSocketChannelConfig) channel.getConfig();
+        // The kernel may round buffer sizes up, Linux doubles them.
+        Assert.assertTrue(channelConfig.getSendBufferSize() >= 64 * 1024);
+        Assert.assertTrue(channelConfig.getReceiveBufferSize() >= 256 * 1024);
+        Assert.assertEquals(16 * 1024, channelConfig.getWriteBufferLowWaterMark());
+        Assert.assertEquals(32 * 1024, channelConfig.getWriteBufferHighWaterMark());
+      }
+      finally {
+        channel.close().awaitUninterruptibly();
+      }
+    }
+    finally {
+      exec.shutdownNow();
+      serverSocket.close();
+      lifecycle.stop();
+      timer.stop();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testHalfConfiguredWaterMarks()
+  {
+    HttpClientConfig.builder().withWriteBufferWaterMarks(0, 32 * 1024);
+  }
+
+  @Test
+  public void testStreamingRequestContent() throws Exception
+  {
+    final Lifecycle lifecycle = new Lifecycle();
+    final Server server = new Server(0);
+    server.setHandler(new ChecksumHandler());
+    server.start();
+
+    try {
+      final HttpClient client = HttpClientInit.createClient(HttpClientConfig.builder().build(), lifecycle);
+      final URL url = new URL(String.format("http://localhost:%d/", ((ServerConnector) server.getConnectors()[0]).getLocalPort()));
+      final byte[] bytes = new byte[1 << 20];
+      new Random(12345).nextBytes(bytes);
+      long checksum = 0;
+      for (byte b : bytes) {
+        checksum += b & 0xff;
+      }
+
+      // Unknown length: chunked transfer encoding
+      final StatusResponseHolder chunked = client.go(
+          new Request(HttpMethod.POST, url).setContent("application/octet-stream", new ByteArrayInputStream(bytes)),
+          new StatusResponseHandler(Charsets.UTF_8)
+      ).get();
+      Assert.assertEquals(200, chunked.getStatus().getCode());
+      Assert.assertEquals(String.format("chunked %d %d", bytes.length, checksum), chunked.getContent());
+
+      // Known length
+      final StatusResponseHolder sized = client.go(
+          new Request(HttpMethod.POST, url).setContent("application/octet-stream", ByteSource.wrap(bytes), bytes.length),
+          new StatusResponseHandler(Charsets.UTF_8)
+      ).get();
+      Assert.assertEquals(200, sized.getStatus().getCode());
+      Assert.assertEquals(String.format("null %d %d", bytes.length, checksum), sized.getContent());
+
+      // Shorter than its stated length
+      final ListenableFuture<StatusResponseHolder> truncated = client.go(
+          new Request(HttpMethod.POST, url)
+              .setContent("application/octet-stream", ByteSource.wrap(bytes), bytes.length + 1),
+          new StatusResponseHandler(Charsets.UTF_8)
+      );
+      Throwable e = null;
+      try {
+        truncated.get(10, TimeUnit.SECONDS);
+      }
+      catch (ExecutionException e1) {
+        e = e1.getCause();
+      }
+      Assert.assertNotNull("Short stream failed the request", e);
+    }
+    finally {
+      lifecycle.stop();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testFileRequestContent() throws Exception
+  {
+    final Lifecycle lifecycle = new Lifecycle();
+    final String keyStorePath = getClass().getClassLoader().getResource("keystore.jks").getFile();
+    final Server server = new Server();
+
+    final SslContextFactory sslContextFactory = new SslContextFactory();
+    sslContextFactory.setKeyStorePath(keyStorePath);
+    sslContextFactory.setKeyStorePassword("abc123");
+    sslContextFactory.setKeyManagerPassword("abc123");
+
+    final ServerConnector connector = new ServerConnector(server);
+    final ServerConnector sslConnector = new ServerConnector(
+        server,
+        new SslConnectionFactory(sslContextFactory, "http/1.1"),
+        new HttpConnectionFactory(new HttpConfiguration())
+    );
+    server.setConnectors(new Connector[]{connector, sslConnector});
+    server.setHandler(new ChecksumHandler());
+    server.start();
+
+    final File file = File.createTempFile("upload", ".bin");
+    try {
+      final byte[] bytes = new byte[1 << 20];
+      new Random(54321).nextBytes(bytes);
+      Files.write(bytes, file);
+
+      final int offset = 1000;
+      final int length = bytes.length - 2000;
+      long checksum = 0;
+      for (int i = offset; i < offset + length; i++) {
+        checksum += bytes[i] & 0xff;
+      }
+
+      final HttpClientConfig config = HttpClientConfig.builder()
+                                                      .withSslContext(keyStorePath, "abc123")
+                                                      .build();
+      final HttpClient client = HttpClientInit.createClient(config, lifecycle);
+
+      for (String url : new String[]{
+          String.format("http://localhost:%d/", connector.getLocalPort()),
+          String.format("https://localhost:%d/", sslConnector.getLocalPort())
+      }) {
+        final StatusResponseHolder response = client.go(
+            new Request(HttpMethod.POST, new URL(url)).setContent("application/octet-stream", file, offset, length),
+            new StatusResponseHandler(Charsets.UTF_8)
+        ).get();
+        Assert.assertEquals(200, response.getStatus().getCode());
+        Assert.assertEquals(String.format("null %d %d", length, checksum), response.getContent());
+      }
+    }
+    finally {
+      file.delete();
+      lifecycle.stop();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testResponseBodySizeLimit() throws Exception
+  {
+    // 8MB of zeros compresses down to a few KB.
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+      gzip.write(new byte[8 * 1024 * 1024]);
+    }
+    final byte[] compressedBytes = compressed.toByteArray();
+
+    final ExecutorService exec = Executors.newSingleThreadExecutor();
+    final ServerSocket serverSocket = new ServerSocket(0);
+    exec.submit(
+        new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            while (!Thread.currentThread().isInterrupted()) {
+              try (
+                  Socket clientSocket = serverSocket.accept();
+                  BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                  OutputStream out = clientSocket.getOutputStream()
+              ) {
+                while (!in.readLine().equals("")); // skip lines
+                out.write(
+                    String.format(
+                        "HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: %d\r\n\r\n",
+                        compressedBytes.length
+                    ).getBytes(Charsets.UTF_8)
+                );
+                out.write(compressedBytes);
+              }
+              catch (Exception e) {
+                // Suppress
+              }
+            }
+          }
+        }
+    );
+
+    final Lifecycle lifecycle = new Lifecycle();
+    try {
+      final HttpClientConfig config = HttpClientConfig.builder().withMaxResponseBodySize(1024 * 1024).build();
+      final HttpClient client = HttpClientInit.createClient(config, lifecycle);
+      final URL url = new URL(String.format("http://localhost:%d/", serverSocket.getLocalPort()));
+
+      Throwable e = null;
+      try {
+        client.go(new Request(HttpMethod.GET, url), new StatusResponseHandler(Charsets.UTF_8)).get();
+      }
+      catch (ExecutionException e1) {
+        e = e1.getCause();
+      }
+      Assert.assertTrue("ResponseTooLargeException thrown by 'get'", e instanceof ResponseTooLargeException);
+
+      final StatusResponseHolder response = client.go(
+          new Request(HttpMethod.GET, url).setMaxResponseBodySize(16 * 1024 * 1024),
+          new StatusResponseHandler(Charsets.UTF_8)
+      ).get();
+      Assert.assertEquals(200, response.getStatus().getCode());
+      Assert.assertEquals(8 * 1024 * 1024, response.getContent().length());
+    }
+    finally {
+      exec.shutdownNow();
+      serverSocket.close();
+      lifecycle.stop();
+    }
+  }
+
+  @Test
+  public void testResponseBufferBudget() throws Exception
+  {
+    final int responseSize = 1 << 20;
+    final int numRequests = 4;
+    final Lifecycle lifecycle = new Lifecycle();
+    final Server server = new Server(0);
+    server.setHandler(
+        new AbstractHandler()
+        {
+          @Override
+          public void handle(
+              String target,
+              org.eclipse.jetty.server.Request baseRequest,
+              HttpServletRequest request,
+              HttpServletResponse response
+          ) throws IOException
+          {
+            baseRequest.setHandled(true);
+            response.setStatus(200);
+            final OutputStream out = response.getOutputStream();
+            final byte[] buf = new byte[8192];
+            for (int i = 0; i < responseSize / buf.length; i++) {
+              out.write(buf);
+            }
+          }
+        }
+    );
+    server.start();
+
+    try {
+      // The budget is much smaller than a single response, and all the responses arrive at once.
+      final HttpClientConfig config = HttpClientConfig.builder()
+                                                      .withNumConnections(numRequests)
+                                                      .withMaxBufferedResponseBytes(64 * 1024)
+                                                      .build();
+      final HttpClient client = HttpClientInit.createClient(config, lifecycle);
+      final URL url = new URL(String.format("http://localhost:%d/", ((ServerConnector) server.getConnectors()[0]).getLocalPort()));
+
+      final List<ListenableFuture<InputStream>> futures = Lists.newArrayList();
+      for (int i = 0; i < numRequests; i++) {
+        futures.add(client.go(new Request(HttpMethod.GET, url), new SequenceInputStreamResponseHandler()));
+      }
+
+      // Read them back to front, so the ones read first may well be the ones paused.
+      for (ListenableFuture<InputStream> future : Lists.reverse(futures)) {
+        try (InputStream in = future.get()) {
+          Assert.assertEquals(responseSize, ByteStreams.toByteArray(in).length);
+        }
+      }
+    }
+    finally {
+      lifecycle.stop();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testHandlerExecutor() throws Exception
+  {
+    final int slowResponseSize = 256 * 1024;
+    final Lifecycle lifecycle = new Lifecycle();
+    final Server server = new Server(0);
+    server.setHandler(
+        new AbstractHandler()
+        {
+          @Override
+          public void handle(
+              String target,
+              org.eclipse.jetty.server.Request baseRequest,
+              HttpServletRequest request,
+              HttpServletResponse response
+          ) throws IOException
+          {
+            baseRequest.setHandled(true);
+            response.setStatus(200);
+            final OutputStream out = response.getOutputStream();
+            if ("/slow".equals(target)) {
+              final byte[] buf = new byte[8192];
+              for (int i = 0; i < slowResponseSize / buf.length; i++) {
+                out.write(buf);
+                out.flush();
+              }
+            } else {
+              out.write("hello".getBytes(Charsets.UTF_8));
+            }
+          }
+        }
+    );
+    server.start();
+
+    final ExecutorService handlerExec = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("handler-%s").build()
+    );
+    try {
+      // A single I/O thread serves both requests.
+      final HttpClientConfig config = HttpClientConfig.builder()
+                                                      .withNumConnections(2)
+                                                      .withWorkerCount(1)
+                                                      .withHandlerExecutor(handlerExec)
+                                                      .withMaxPendingHandlerCallbacks(2)
+                                                      .build();
+      final HttpClient client = HttpClientInit.createClient(config, lifecycle);
+      final int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+      final CountDownLatch unblock = new CountDownLatch(1);
+      final AtomicBoolean wrongThread = new AtomicBoolean(false);
+      final ListenableFuture<Long> slowFuture = client.go(
+          new Request(HttpMethod.GET, new URL(String.format("http://localhost:%d/slow", port))),
+          new HttpResponseHandler<Long, Long>()
+          {
+            @Override
+            public ClientResponse<Long> handleResponse(HttpResponse response)
+            {
+              checkThread();
+              return ClientResponse.unfinished((long) response.getContent().readableBytes());
+            }
+
+            @Override
+            public ClientResponse<Long> handleChunk(ClientResponse<Long> clientResponse, HttpChunk chunk)
+            {
+              checkThread();
+              Uninterruptibles.awaitUninterruptibly(unblock, 10, TimeUnit.SECONDS);
+              return ClientResponse.unfinished(clientResponse.getObj() + chunk.getContent().readableBytes());
+            }
+
+            @Override
+            public ClientResponse<Long> done(ClientResponse<Long> clientResponse)
+            {
+              checkThread();
+              return ClientResponse.finished(clientResponse.getObj());
+            }
+
+            @Override
+            public void exceptionCaught(ClientResponse<Long> clientResponse, Throwable e)
+            {
+            }
+
+            private void checkThread()
+            {
+              if (!Thread.currentThread().getName().startsWith("handler-")) {
+                wrongThread.set(true);
+              }
+            }
+          }
+      );
+
+      // The slow handler is stuck, but the I/O thread isn't.
+      final StatusResponseHolder fastResponse = client.go(
+          new Request(HttpMethod.GET, new URL(String.format("http://localhost:%d/fast", port))),
+          new StatusResponseHandler(Charsets.UTF_8)
+      ).get(5, TimeUnit.SECONDS);
+      Assert.assertEquals("hello", fastResponse.getContent());
+      Assert.assertFalse(slowFuture.isDone());
+
+      unblock.countDown();
+      Assert.assertEquals(slowResponseSize, (long) slowFuture.get(10, TimeUnit.SECONDS));
+      Assert.assertFalse(wrongThread.get());
+    }
+    finally {
+      handlerExec.shutdownNow();
+      lifecycle.stop();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testPipelining() throws Exception
+  {
+    final ExecutorService exec = Executors.newSingleThreadExecutor();
+    final ServerSocket serverSocket = new ServerSocket(0);
+    final AtomicBoolean allRequestsBeforeResponses = new AtomicBoolean(false);
+    exec.submit(
+        new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            while (!Thread.currentThread().isInterrupted()) {
+              try (
+                  Socket clientSocket = serverSocket.accept();
+                  BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                  OutputStream out = clientSocket.getOutputStream()
+              ) {
+                // Only answers once all four requests are in, which they can't be without pipelining.
+                final List<String> paths = Lists.newArrayList();
+                clientSocket.setSoTimeout(5000);
+                try {
+                  while (paths.size() < 4) {
+                    paths.add(in.readLine().split(" ")[1]);
+                    while (!in.readLine().equals("")); // skip headers
+                  }
+                  allRequestsBeforeResponses.set(true);
+                }
+                catch (IOException e) {
+                  // Timed out
+                }
+                for (String path : paths) {
+                  out.write(
+                      String.format("HTTP/1.1 200 OK\r\nContent-Length: %d\r\n\r\n%s", path.length(), path)
+                            .getBytes(Charsets.UTF_8)
+                  );
+                }
+                out.flush();
+                while (in.readLine() != null); // wait for the client to hang up
+              }
+              catch (Exception e) {
+                // Suppress
+              }
+            }
+          }
+        }
+    );
+
+    final Lifecycle lifecycle = new Lifecycle();
+    try {
+      final HttpClientConfig config = HttpClientConfig.builder()
+                                                      .withNumConnections(1)
+                                                      .withPipeliningDepth(4)
+                                                      .build();
+      final HttpClient client = HttpClientInit.createClient(config, lifecycle);
+      final List<ListenableFuture<StatusResponseHolder>> futures = Lists.newArrayList();
+      for (int i = 0; i < 4; i++) {
+        futures.add(
+            client.go(
+                new Request(
+                    HttpMethod.GET,
+                    new URL(String.format("http://localhost:%d/%d", serverSocket.getLocalPort(), i))
+                ),
+                new StatusResponseHandler(Charsets.UTF_8)
+            )
+        );
+      }
+
+      for (int i = 0; i < 4; i++) {
+        Assert.assertEquals(String.format("/%d", i), futures.get(i).get().getContent());
+      }
+      Assert.assertTrue("Requests were pipelined", allRequestsBeforeResponses.get());
+    }
+    finally {
+      exec.shutdownNow();
+      serverSocket.close();
+      lifecycle.stop();
+    }
+  }
+
+  @Test
+  public void testPipeliningFileContent() throws Exception
+  {
+    final Lifecycle lifecycle = new Lifecycle();
+    final Server server = new Server(0);
+    server.setHandler(
+        new AbstractHandler()
+        {
+          @Override
+          public void handle(
+              String target,
+              org.eclipse.jetty.server.Request baseRequest,
+              HttpServletRequest request,
+              HttpServletResponse response
+          ) throws IOException
+          {
+            baseRequest.setHandled(true);
+            response.setStatus(200);
+            final byte[] body = ByteStreams.toByteArray(request.getInputStream());
+            response.getOutputStream().write(body.length == 0 ? target.getBytes(Charsets.UTF_8) : body);
+          }
+        }
+    );
+    server.start();
+
+    final File file = File.createTempFile("friendly-servers-test", ".txt");
+    try {
+      Files.write("0123456789", file, Charsets.UTF_8);
+      final HttpClientConfig config = HttpClientConfig.builder()
+                                                      .withNumConnections(1)
+                                                      .withPipeliningDepth(4)
+                                                      .build();
+      final HttpClient client = HttpClientInit.createClient(config, lifecycle);
+      final int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+      // The PUT's file body can't go on a pipeline, so it gets a connection of its own between the GETs.
+      final ListenableFuture<StatusResponseHolder> before = client.go(
+          new Request(HttpMethod.GET, new URL(String.format("http://localhost:%d/before", port))),
+          new StatusResponseHandler(Charsets.UTF_8)
+      );
+      final ListenableFuture<StatusResponseHolder> put = client.go(
+          new Request(HttpMethod.PUT, new URL(String.format("http://localhost:%d/put", port)))
+              .setContent("text/plain", file, 2, 5),
+          new StatusResponseHandler(Charsets.UTF_8)
+      );
+      final ListenableFuture<StatusResponseHolder> after = client.go(
+          new Request(HttpMethod.GET, new URL(String.format("http://localhost:%d/after", port))),
+          new StatusResponseHandler(Charsets.UTF_8)
+      );
+
+      Assert.assertEquals("/before", before.get(10, TimeUnit.SECONDS).getContent());
+      Assert.assertEquals("23456", put.get(10, TimeUnit.SECONDS).getContent());
+      Assert.assertEquals("/after", after.get(10, TimeUnit.SECONDS).getContent());
+    }
+    finally {
+      file.delete();
+      lifecycle.stop();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testPipeliningConnectionClose() throws Exception
+  {
+    final ExecutorService exec = Executors.newSingleThreadExecutor();
+    final ServerSocket serverSocket = new ServerSocket(0);
+    exec.submit(
+        new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            while (!Thread.currentThread().isInterrupted()) {
+              try (
+                  Socket clientSocket = serverSocket.accept();
+                  BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                  OutputStream out = clientSocket.getOutputStream()
+              ) {
+                // Answers one request per connection, dropping any pipelined behind it.
+                final String line = in.readLine();
+                if (line == null) {
+                  continue;
+                }
+                final String path = line.split(" ")[1];
+                while (!in.readLine().equals("")); // skip headers
+                Thread.sleep(50);
+                out.write(
+                    String.format(
+                        "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: %d\r\n\r\n%s",
+                        path.length(),
+                        path
+                    ).getBytes(Charsets.UTF_8)
+                );
+              }
+              catch (Exception e) {
+                // Suppress
+              }
+            }
+          }
+        }
+    );
+
+    final Lifecycle lifecycle = new Lifecycle();
+    try {
+      final HttpClientConfig config = HttpClientConfig.builder()
+                                                      .withNumConnections(1)
+                                                      .withPipeliningDepth(4)
+                                                      .build();
+      final HttpClient client = HttpClientInit.createClient(config, lifecycle);
+      final List<ListenableFuture<StatusResponseHolder>> futures = Lists.newArrayList();
+      for (int i = 0; i < 4; i++) {
+        futures.add(
+            client.go(
+                new Request(
+                    HttpMethod.GET,
+                    new URL(String.format("http://localhost:%d/%d", serverSocket.getLocalPort(), i))
+                ),
+                new StatusResponseHandler(Charsets.UTF_8)
+            )
+        );
+      }
+
+      // Requests behind each closed connection are sent again, however many times that takes.
+      for (int i = 0; i < 4; i++) {
+        Assert.assertEquals(String.format("/%d", i), futures.get(i).get().getContent());
+      }
+    }
+    finally {
+      exec.shutdownNow();
+      serverSocket.close();
+      lifecycle.stop();
+    }
+  }
+
   @Test
   public void testFriendlySelfSignedHttpsServer() throws Exception
   {
@@ -289,4 +971,33 @@ public class FriendlyServersTest
       lifecycle.stop();
     }
   }
+
+  /**
+   * Responds with the request's Transfer-Encoding, length, and the sum of its bytes.
+   */
+  private static class ChecksumHandler extends AbstractHandler
+  {
+    @Override
+    public void handle(
+        String target,
+        org.eclipse.jetty.server.Request baseRequest,
+        HttpServletRequest request,
+        HttpServletResponse response
+    ) throws IOException
+    {
+      long count = 0;
+      long checksum = 0;
+      final InputStream in = request.getInputStream();
+      int b;
+      while ((b = in.read()) != -1) {
+        count++;
+        checksum += b;
+      }
+      response.setStatus(200);
+      response.getWriter().print(
+          String.format("%s %d %d", request.getHeader("Transfer-Encoding"), count, checksum)
+      );
+      baseRequest.setHandled(true);
+    }
+  }
 }
@@ -0,0 +1,455 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.metamx.common.lifecycle.Lifecycle;
+import com.metamx.http.client.response.ClientResponse;
+import com.metamx.http.client.response.StatusResponseHandler;
+import com.metamx.http.client.response.StatusResponseHolder;
+import com.metamx.http.client.response.StreamingResponseHandler;
+import com.metamx.http.client.response.TrafficCop;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2GoAwayFrame;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class Http2HttpClientTest
+{
+  private static final String KEY_STORE_PASSWORD = "abc123";
+  private static final int BIG_RESPONSE_SIZE = 1 << 20;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  private final CountDownLatch goAwaySent = new CountDownLatch(1);
+
+  private EventLoopGroup serverGroup;
+  private Lifecycle lifecycle;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    serverGroup = new NioEventLoopGroup(1);
+    lifecycle = new Lifecycle();
+  }
+
+  @After
+  public void tearDown() throws Exception
+  {
+    lifecycle.stop();
+    serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+  }
+
+  @Test
+  public void testMultiplexesOverOneConnection() throws Exception
+  {
+    final URL baseUrl = startServer(null);
+    final HttpClient client = HttpClientInit.createHttp2Client(
+        HttpClientConfig.builder().withNumConnections(1).build(),
+        lifecycle
+    );
+
+    final List<ListenableFuture<StatusResponseHolder>> futures = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      futures.add(
+          client.go(
+              new Request(HttpMethod.GET, new URL(baseUrl, "/slow")),
+              new StatusResponseHandler(Charsets.UTF_8)
+          )
+      );
+    }
+
+    final Set<String> clientPorts = Sets.newHashSet();
+    for (ListenableFuture<StatusResponseHolder> future : futures) {
+      final StatusResponseHolder response = future.get();
+      Assert.assertEquals(200, response.getStatus().getCode());
+      clientPorts.add(response.getContent());
+    }
+    Assert.assertEquals("One connection", 1, clientPorts.size());
+    Assert.assertTrue("Concurrent streams", maxInFlight.get() > 1);
+  }
+
+  @Test
+  public void testGoAwayLetsActiveStreamFinish() throws Exception
+  {
+    final URL baseUrl = startServer(null);
+    final HttpClient client = HttpClientInit.createHttp2Client(
+        HttpClientConfig.builder().withNumConnections(1).build(),
+        lifecycle
+    );
+
+    final ListenableFuture<StatusResponseHolder> goAwayFuture = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/goaway")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    );
+    Assert.assertTrue(goAwaySent.await(5, TimeUnit.SECONDS));
+    Thread.sleep(50);
+
+    // The pool drops the connection that got GOAWAY and opens another, while the first stream is still going.
+    final StatusResponseHolder response = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+    Assert.assertEquals(200, response.getStatus().getCode());
+    Assert.assertFalse(goAwayFuture.isDone());
+
+    final StatusResponseHolder goAwayResponse = goAwayFuture.get();
+    Assert.assertEquals(200, goAwayResponse.getStatus().getCode());
+    Assert.assertFalse("New connection", goAwayResponse.getContent().equals(response.getContent()));
+  }
+
+  @Test
+  public void testPostContent() throws Exception
+  {
+    final URL baseUrl = startServer(null);
+    final HttpClient client = HttpClientInit.createHttp2Client(HttpClientConfig.builder().build(), lifecycle);
+
+    final StatusResponseHolder response = client.go(
+        new Request(HttpMethod.POST, new URL(baseUrl, "/echo")).setContent("text/plain", new byte[]{'h', 'i'}),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+    Assert.assertEquals("hi", response.getContent());
+
+    // Bigger than the initial flow control window
+    final byte[] body = new byte[100000];
+    Arrays.fill(body, (byte) 'a');
+    final StatusResponseHolder streamingResponse = client.go(
+        new Request(HttpMethod.POST, new URL(baseUrl, "/echo")).setContent("text/plain", ByteSource.wrap(body)),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+    Assert.assertEquals(new String(body, Charsets.UTF_8), streamingResponse.getContent());
+  }
+
+  @Test
+  public void testPausedStreamDoesNotBlockOthers() throws Exception
+  {
+    final URL baseUrl = startServer(null);
+    final HttpClient client = HttpClientInit.createHttp2Client(
+        HttpClientConfig.builder().withNumConnections(1).build(),
+        lifecycle
+    );
+
+    final AtomicReference<TrafficCop> trafficCop = new AtomicReference<>();
+    final AtomicLong bytesRead = new AtomicLong();
+    final CountDownLatch paused = new CountDownLatch(1);
+    final ListenableFuture<Long> bigFuture = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/big")),
+        new StreamingResponseHandler<Long, Long>()
+        {
+          @Override
+          public ClientResponse<Long> handleResponse(HttpResponse response, TrafficCop cop)
+          {
+            trafficCop.set(cop);
+            cop.pause();
+            paused.countDown();
+            return ClientResponse.unfinished(0L);
+          }
+
+          @Override
+          public ClientResponse<Long> handleResponse(HttpResponse response)
+          {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public ClientResponse<Long> handleChunk(ClientResponse<Long> clientResponse, HttpChunk chunk)
+          {
+            bytesRead.addAndGet(chunk.getContent().readableBytes());
+            return ClientResponse.unfinished(clientResponse.getObj() + chunk.getContent().readableBytes());
+          }
+
+          @Override
+          public ClientResponse<Long> done(ClientResponse<Long> clientResponse)
+          {
+            return ClientResponse.finished(clientResponse.getObj());
+          }
+
+          @Override
+          public void exceptionCaught(ClientResponse<Long> clientResponse, Throwable e)
+          {
+          }
+        }
+    );
+    Assert.assertTrue(paused.await(5, TimeUnit.SECONDS));
+
+    // Another stream on the same connection goes ahead while the big response is stuck.
+    final StatusResponseHolder response = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+    Assert.assertEquals(200, response.getStatus().getCode());
+    Assert.assertFalse(bigFuture.isDone());
+    Assert.assertTrue("Held back by flow control", bytesRead.get() < BIG_RESPONSE_SIZE);
+
+    trafficCop.get().resume();
+    Assert.assertEquals(BIG_RESPONSE_SIZE, bigFuture.get().longValue());
+  }
+
+  @Test
+  public void testH2OverTls() throws Exception
+  {
+    final String keyStorePath = getClass().getClassLoader().getResource("keystore.jks").getFile();
+    final URL baseUrl = startServer(serverSslContext(keyStorePath, "h2"));
+    final HttpClient client = HttpClientInit.createHttp2Client(
+        HttpClientConfig.builder()
+                        .withSslContext(HttpClientInit.sslContextWithTrustedKeyStore(keyStorePath, KEY_STORE_PASSWORD))
+                        .build(),
+        lifecycle
+    );
+
+    final StatusResponseHolder response = client.go(
+        new Request(HttpMethod.POST, new URL(baseUrl, "/echo")).setContent("text/plain", new byte[]{'h', 'i'}),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+    Assert.assertEquals("hi", response.getContent());
+  }
+
+  @Test
+  public void testTlsWithoutH2() throws Exception
+  {
+    final String keyStorePath = getClass().getClassLoader().getResource("keystore.jks").getFile();
+    final URL baseUrl = startServer(serverSslContext(keyStorePath, "http/1.1"));
+    final HttpClient client = HttpClientInit.createHttp2Client(
+        HttpClientConfig.builder()
+                        .withSslContext(HttpClientInit.sslContextWithTrustedKeyStore(keyStorePath, KEY_STORE_PASSWORD))
+                        .build(),
+        lifecycle
+    );
+
+    final ListenableFuture<StatusResponseHolder> future = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    );
+
+    Throwable e = null;
+    try {
+      future.get();
+    }
+    catch (ExecutionException e1) {
+      e = e1.getCause();
+    }
+    Assert.assertTrue("ChannelException thrown by 'get'", e instanceof ChannelException);
+  }
+
+  private static SslContext serverSslContext(String keyStorePath, String protocol) throws Exception
+  {
+    final KeyStore keyStore = KeyStore.getInstance("JKS");
+    try (InputStream in = new FileInputStream(keyStorePath)) {
+      keyStore.load(in, KEY_STORE_PASSWORD.toCharArray());
+    }
+    final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore, KEY_STORE_PASSWORD.toCharArray());
+
+    return SslContextBuilder.forServer(keyManagerFactory)
+                            .sslProvider(SslProvider.JDK)
+                            .applicationProtocolConfig(
+                                new ApplicationProtocolConfig(
+                                    ApplicationProtocolConfig.Protocol.ALPN,
+                                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                                    protocol
+                                )
+                            )
+                            .build();
+  }
+
+  /**
+   * Starts an HTTP/2 server that answers "/echo" with the request body, "/big" with a large body, and anything else
+   * with the client's port, after a delay for "/slow". "/goaway" sends GOAWAY before its delayed response.
+   */
+  private URL startServer(final SslContext sslContext) throws Exception
+  {
+    final Channel serverChannel = new ServerBootstrap()
+        .group(serverGroup)
+        .channel(NioServerSocketChannel.class)
+        .childHandler(
+            new ChannelInitializer<Channel>()
+            {
+              @Override
+              protected void initChannel(Channel channel)
+              {
+                if (sslContext != null) {
+                  channel.pipeline().addLast(sslContext.newHandler(channel.alloc()));
+                }
+                channel.pipeline().addLast(Http2FrameCodecBuilder.forServer().build());
+                channel.pipeline().addLast(
+                    new Http2MultiplexHandler(
+                        new ChannelInitializer<Channel>()
+                        {
+                          @Override
+                          protected void initChannel(Channel stream)
+                          {
+                            stream.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
+                            stream.pipeline().addLast(new HttpObjectAggregator(1 << 20));
+                            stream.pipeline().addLast(new ServerHandler());
+                          }
+                        }
+                    )
+                );
+              }
+            }
+        )
+        .bind(0)
+        .syncUninterruptibly()
+        .channel();
+
+    return new URL(
+        String.format(
+            "%s://localhost:%d",
+            sslContext == null ? "http" : "https",
+            ((InetSocketAddress) serverChannel.localAddress()).getPort()
+        )
+    );
+  }
+
+  private class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>
+  {
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, FullHttpRequest request)
+    {
+      final int n = inFlight.incrementAndGet();
+      while (maxInFlight.get() < n && !maxInFlight.compareAndSet(maxInFlight.get(), n)) {
+        // Retry
+      }
+
+      final ByteBuf body;
+      if ("/echo".equals(request.uri())) {
+        body = Unpooled.copiedBuffer(request.content());
+      } else if ("/big".equals(request.uri())) {
+        body = Unpooled.wrappedBuffer(new byte[BIG_RESPONSE_SIZE]);
+      } else {
+        final Channel connection = ((Http2StreamChannel) ctx.channel()).parent();
+        body = Unpooled.copiedBuffer(
+            String.valueOf(((InetSocketAddress) connection.remoteAddress()).getPort()),
+            Charsets.UTF_8
+        );
+      }
+
+      final FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body);
+      response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+      final Runnable respond = new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          inFlight.decrementAndGet();
+          ctx.writeAndFlush(response);
+        }
+      };
+      if ("/goaway".equals(request.uri())) {
+        ((Http2StreamChannel) ctx.channel()).parent().writeAndFlush(new DefaultHttp2GoAwayFrame(Http2Error.NO_ERROR));
+        goAwaySent.countDown();
+        ctx.executor().schedule(respond, 500, TimeUnit.MILLISECONDS);
+      } else if ("/slow".equals(request.uri())) {
+        ctx.executor().schedule(respond, 200, TimeUnit.MILLISECONDS);
+      } else {
+        respond.run();
+      }
+    }
+  }
+
+  @Test
+  public void testUnsupportedOptionsRejected() throws Exception
+  {
+    try {
+      HttpClientInit.createHttp2Client(
+          HttpClientConfig.builder().withMaxBufferedResponseBytes(1024).build(),
+          lifecycle
+      );
+      Assert.fail("buffer budget accepted");
+    }
+    catch (IllegalArgumentException e) {
+      // Expected
+    }
+    try {
+      HttpClientInit.createHttp2Client(
+          HttpClientConfig.builder().withHandlerExecutor(MoreExecutors.sameThreadExecutor()).build(),
+          lifecycle
+      );
+      Assert.fail("handler executor accepted");
+    }
+    catch (IllegalArgumentException e) {
+      // Expected
+    }
+
+    final URL baseUrl = startServer(null);
+    final HttpClient client = HttpClientInit.createHttp2Client(HttpClientConfig.builder().build(), lifecycle);
+    try {
+      client.go(
+          new Request(HttpMethod.GET, new URL(baseUrl, "/"))
+              .setHandlerExecutor(MoreExecutors.sameThreadExecutor()),
+          new StatusResponseHandler(Charsets.UTF_8)
+      );
+      Assert.fail("request handler executor accepted");
+    }
+    catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+}
@@ -40,6 +40,7 @@ import java.net.URL;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests with a bunch of goofy not-actually-http servers.
@@ -196,6 +197,85 @@ public class JankyServersTest
     }
   }
 
+  @Test
+  public void testHttpSilentServerWithFineGrainedTimer() throws Throwable
+  {
+    final Lifecycle lifecycle = new Lifecycle();
+    try {
+      final HttpClientConfig config = HttpClientConfig.builder()
+                                                      .withReadTimeout(new Duration(20))
+                                                      .withTimerTickDuration(new Duration(1))
+                                                      .withTimerTicksPerWheel(1024)
+                                                      .build();
+      final HttpClient client = HttpClientInit.createClient(config, lifecycle);
+      final ListenableFuture<StatusResponseHolder> future = client
+          .go(
+              new Request(HttpMethod.GET, new URL(String.format("http://localhost:%d/", silentServerSocket.getLocalPort()))),
+              new StatusResponseHandler(Charsets.UTF_8)
+          );
+
+      Throwable e = null;
+      try {
+        future.get();
+      }
+      catch (ExecutionException e1) {
+        e = e1.getCause();
+      }
+
+      Assert.assertTrue("ReadTimeoutException thrown by 'get'", e instanceof ReadTimeoutException);
+    }
+    finally {
+      lifecycle.stop();
+    }
+  }
+
+  @Test
+  public void testFineGrainedTimerAccuracy() throws Throwable
+  {
+    final long readTimeout = 50;
+    final long tick = 5;
+    final Lifecycle lifecycle = new Lifecycle();
+    try {
+      final HttpClientConfig config = HttpClientConfig.builder()
+                                                      .withReadTimeout(new Duration(readTimeout))
+                                                      .withTimerTickDuration(new Duration(tick))
+                                                      .build();
+      final HttpClient client = HttpClientInit.createClient(config, lifecycle);
+      final URL url = new URL(String.format("http://localhost:%d/", silentServerSocket.getLocalPort()));
+
+      // The first request warms up the timer thread and the client, so it isn't timed. The fastest of the rest is
+      // checked, so a slow test machine doesn't fail this.
+      long fastest = Long.MAX_VALUE;
+      for (int i = 0; i < 4; i++) {
+        final long start = System.nanoTime();
+        final ListenableFuture<StatusResponseHolder> future = client.go(
+            new Request(HttpMethod.GET, url),
+            new StatusResponseHandler(Charsets.UTF_8)
+        );
+
+        Throwable e = null;
+        try {
+          future.get();
+        }
+        catch (ExecutionException e1) {
+          e = e1.getCause();
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("ReadTimeoutException thrown by 'get'", e instanceof ReadTimeoutException);
+        Assert.assertTrue(String.format("Timed out early, after %,dms", elapsed), elapsed >= readTimeout);
+        if (i > 0) {
+          fastest = Math.min(fastest, elapsed);
+        }
+      }
+
+      // With the default 100ms tick, this timeout fires anywhere up to a whole tick late.
+      Assert.assertTrue(String.format("Timed out after %,dms", fastest), fastest < readTimeout + 5 * tick);
+    }
+    finally {
+      lifecycle.stop();
+    }
+  }
+
   @Test
   public void testHttpsSilentServer() throws Throwable
   {
@@ -0,0 +1,598 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.metamx.common.lifecycle.Lifecycle;
+import com.metamx.http.client.netty4.Netty4Transport;
+import com.metamx.http.client.response.ClientResponse;
+import com.metamx.http.client.response.HttpResponseHandler;
+import com.metamx.http.client.response.StatusResponseHandler;
+import com.metamx.http.client.response.StatusResponseHolder;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannelConfig;
+import io.netty.channel.socket.SocketChannelConfig;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.timeout.ReadTimeoutException;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class Netty4HttpClientTest
+{
+  private Server server;
+  private URL baseUrl;
+  private ExecutorService exec;
+  private Lifecycle lifecycle;
+  private HttpClient client;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    server = new Server(0);
+    server.setHandler(
+        new AbstractHandler()
+        {
+          @Override
+          public void handle(
+              String target,
+              org.eclipse.jetty.server.Request baseRequest,
+              HttpServletRequest request,
+              HttpServletResponse response
+          ) throws IOException
+          {
+            baseRequest.setHandled(true);
+            response.setStatus(200);
+            if ("/echo".equals(target)) {
+              final byte[] body = ByteStreams.toByteArray(request.getInputStream());
+              response.setContentLength(body.length);
+              response.getOutputStream().write(body);
+            } else if ("/chunked".equals(target)) {
+              // No content length, so Jetty chunks it.
+              final OutputStream out = response.getOutputStream();
+              for (int i = 0; i < 3; i++) {
+                out.write(String.format("chunk%d", i).getBytes(Charsets.UTF_8));
+                out.flush();
+              }
+            } else {
+              final byte[] body = String.valueOf(request.getRemotePort()).getBytes(Charsets.UTF_8);
+              response.setContentLength(body.length);
+              response.getOutputStream().write(body);
+            }
+          }
+        }
+    );
+    server.start();
+    baseUrl = new URL(String.format("http://localhost:%d", ((ServerConnector) server.getConnectors()[0]).getLocalPort()));
+
+    exec = Executors.newCachedThreadPool();
+    lifecycle = new Lifecycle();
+    client = HttpClientInit.createNetty4Client(HttpClientConfig.builder().withNumConnections(1).build(), lifecycle);
+  }
+
+  @After
+  public void tearDown() throws Exception
+  {
+    lifecycle.stop();
+    exec.shutdownNow();
+    server.stop();
+  }
+
+  @Test
+  public void testGetReusesConnection() throws Exception
+  {
+    final StatusResponseHolder first = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+    final StatusResponseHolder second = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+
+    Assert.assertEquals(200, first.getStatus().getCode());
+    // Same client port means the same connection.
+    Assert.assertEquals(first.getContent(), second.getContent());
+  }
+
+  @Test
+  public void testSocketOptionsConfig() throws Exception
+  {
+    final HttpClientConfig config = HttpClientConfig.builder()
+                                                    .withSendBufferSize(64 * 1024)
+                                                    .withReceiveBufferSize(256 * 1024)
+                                                    .withWriteBufferWaterMarks(16 * 1024, 32 * 1024)
+                                                    .build();
+    final Bootstrap bootstrap = Netty4Transport.createBootstrap(config, lifecycle);
+    final Map<ChannelOption<?>, Object> options = bootstrap.config().options();
+    Assert.assertEquals(64 * 1024, options.get(ChannelOption.SO_SNDBUF));
+    Assert.assertEquals(256 * 1024, options.get(ChannelOption.SO_RCVBUF));
+
+    final Channel channel = bootstrap.connect(baseUrl.getHost(), baseUrl.getPort()).syncUninterruptibly().channel();
+    try {
+      final SocketChannelConfig channelConfig = (SocketChannelConfig) channel.config();
+      // The kernel may round buffer sizes up, Linux doubles them.
+      Assert.assertTrue(channelConfig.getSendBufferSize() >= 64 * 1024);
+      Assert.assertTrue(channelConfig.getReceiveBufferSize() >= 256 * 1024);
+      Assert.assertEquals(16 * 1024, channelConfig.getWriteBufferLowWaterMark());
+      Assert.assertEquals(32 * 1024, channelConfig.getWriteBufferHighWaterMark());
+    }
+    finally {
+      channel.close().syncUninterruptibly();
+    }
+  }
+
+  @Test
+  public void testNativeTransport() throws Exception
+  {
+    // Falls back to NIO where epoll isn't available, so this passes either way.
+    final Lifecycle nativeLifecycle = new Lifecycle();
+    try {
+      final HttpClient nativeClient = HttpClientInit.createNetty4Client(
+          HttpClientConfig.builder()
+                          .withNativeTransport(true)
+                          .withTcpFastOpen(true)
+                          .withTcpQuickAck(true)
+                          .withBusyPollMicros(50)
+                          .withTcpUserTimeout(new Duration(10000))
+                          .build(),
+          nativeLifecycle
+      );
+      for (int i = 0; i < 2; i++) {
+        final StatusResponseHolder response = nativeClient.go(
+            new Request(HttpMethod.POST, new URL(baseUrl, "/echo")).setContent("text/plain", new byte[]{'h', 'i'}),
+            new StatusResponseHandler(Charsets.UTF_8)
+        ).get();
+        Assert.assertEquals("hi", response.getContent());
+      }
+    }
+    finally {
+      nativeLifecycle.stop();
+    }
+  }
+
+  @Test
+  public void testQuickAckReappliedAfterReads() throws Exception
+  {
+    Assume.assumeTrue(Epoll.isAvailable());
+
+    final Bootstrap bootstrap = Netty4Transport.createBootstrap(
+        HttpClientConfig.builder().withNativeTransport(true).withTcpQuickAck(true).build(),
+        lifecycle
+    );
+    final Channel channel = bootstrap.connect(baseUrl.getHost(), baseUrl.getPort()).syncUninterruptibly().channel();
+    try {
+      final CountDownLatch responded = new CountDownLatch(1);
+      channel.pipeline().addLast(
+          new SimpleChannelInboundHandler<LastHttpContent>()
+          {
+            private boolean done = false;
+
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, LastHttpContent msg)
+            {
+              done = true;
+            }
+
+            @Override
+            public void channelReadComplete(ChannelHandlerContext ctx)
+            {
+              // After the quick ack handler, which is earlier in the pipeline.
+              if (done) {
+                responded.countDown();
+              }
+            }
+          }
+      );
+
+      // The kernel would clear it once it delays an ACK.
+      final EpollSocketChannelConfig channelConfig = (EpollSocketChannelConfig) channel.config();
+      channelConfig.setTcpQuickAck(false);
+      final DefaultFullHttpRequest request = new DefaultFullHttpRequest(
+          HttpVersion.HTTP_1_1,
+          io.netty.handler.codec.http.HttpMethod.GET,
+          "/"
+      );
+      request.headers().set(HttpHeaderNames.HOST, baseUrl.getHost());
+      channel.writeAndFlush(request);
+
+      Assert.assertTrue(responded.await(10, TimeUnit.SECONDS));
+      Assert.assertTrue(channelConfig.isTcpQuickAck());
+    }
+    finally {
+      channel.close().syncUninterruptibly();
+    }
+  }
+
+  @Test
+  public void testUnixDomainSocket() throws Exception
+  {
+    Assume.assumeTrue(Epoll.isAvailable());
+
+    final File socketDir = Files.createTempDir();
+    final File socketFile = new File(socketDir, "sidecar.sock");
+    final EventLoopGroup serverGroup = new EpollEventLoopGroup(1);
+    final Lifecycle domainSocketLifecycle = new Lifecycle();
+    try {
+      new ServerBootstrap()
+          .group(serverGroup)
+          .channel(EpollServerDomainSocketChannel.class)
+          .childHandler(
+              new ChannelInitializer<Channel>()
+              {
+                @Override
+                protected void initChannel(Channel channel)
+                {
+                  channel.pipeline().addLast(new HttpServerCodec());
+                  channel.pipeline().addLast(new HttpObjectAggregator(1024));
+                  channel.pipeline().addLast(
+                      new SimpleChannelInboundHandler<FullHttpRequest>()
+                      {
+                        @Override
+                        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request)
+                        {
+                          // Answers with the Host header, which is sent just as it would be over TCP.
+                          final FullHttpResponse response = new DefaultFullHttpResponse(
+                              HttpVersion.HTTP_1_1,
+                              io.netty.handler.codec.http.HttpResponseStatus.OK,
+                              Unpooled.copiedBuffer(request.headers().get(HttpHeaderNames.HOST), Charsets.UTF_8)
+                          );
+                          HttpUtil.setContentLength(response, response.content().readableBytes());
+                          ctx.writeAndFlush(response);
+                        }
+                      }
+                  );
+                }
+              }
+          )
+          .bind(new DomainSocketAddress(socketFile))
+          .syncUninterruptibly();
+
+      final HttpClient domainSocketClient = HttpClientInit.createNetty4Client(
+          HttpClientConfig.builder().withUnixDomainSocket("http://sidecar:8080", socketFile.getPath()).build(),
+          domainSocketLifecycle
+      );
+      for (int i = 0; i < 2; i++) {
+        final StatusResponseHolder response = domainSocketClient.go(
+            new Request(HttpMethod.GET, new URL("http://sidecar:8080/")),
+            new StatusResponseHandler(Charsets.UTF_8)
+        ).get();
+        Assert.assertEquals("sidecar:8080", response.getContent());
+      }
+
+      // Other keys still connect over TCP.
+      final StatusResponseHolder response = domainSocketClient.go(
+          new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+          new StatusResponseHandler(Charsets.UTF_8)
+      ).get();
+      Assert.assertEquals(200, response.getStatus().getCode());
+    }
+    finally {
+      domainSocketLifecycle.stop();
+      serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+      socketFile.delete();
+      socketDir.delete();
+    }
+  }
+
+  @Test
+  public void testPostStreamingContent() throws Exception
+  {
+    final byte[] body = new byte[100000];
+    Arrays.fill(body, (byte) 'a');
+    final StatusResponseHolder response = client.go(
+        new Request(HttpMethod.POST, new URL(baseUrl, "/echo")).setContent(
+            "text/plain",
+            ByteSource.wrap(body)
+        ),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+
+    Assert.assertEquals(200, response.getStatus().getCode());
+    Assert.assertEquals(new String(body, Charsets.UTF_8), response.getContent());
+  }
+
+  @Test
+  public void testPostShortStreamingContent() throws Exception
+  {
+    final ListenableFuture<StatusResponseHolder> future = client.go(
+        new Request(HttpMethod.POST, new URL(baseUrl, "/echo")).setContent(
+            "text/plain",
+            ByteSource.wrap(new byte[]{'h', 'i'}),
+            3
+        ),
+        new StatusResponseHandler(Charsets.UTF_8)
+    );
+
+    Throwable e = null;
+    try {
+      future.get(10, TimeUnit.SECONDS);
+    }
+    catch (ExecutionException e1) {
+      e = e1.getCause();
+    }
+    Assert.assertNotNull("Short stream failed the request", e);
+  }
+
+  @Test
+  public void testPostFileContent() throws Exception
+  {
+    final File file = File.createTempFile("netty4-http-client-test", ".txt");
+    try {
+      Files.write("0123456789", file, Charsets.UTF_8);
+      final StatusResponseHolder response = client.go(
+          new Request(HttpMethod.POST, new URL(baseUrl, "/echo")).setContent("text/plain", file, 2, 5),
+          new StatusResponseHandler(Charsets.UTF_8)
+      ).get();
+
+      Assert.assertEquals("23456", response.getContent());
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testChunkedResponse() throws Exception
+  {
+    final StatusResponseHolder response = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/chunked")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+
+    Assert.assertEquals("chunk0chunk1chunk2", response.getContent());
+  }
+
+  @Test
+  public void testHeadRequest() throws Exception
+  {
+    final StatusResponseHolder response = client.go(
+        new Request(HttpMethod.HEAD, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+
+    Assert.assertEquals(200, response.getStatus().getCode());
+    Assert.assertEquals("", response.getContent());
+  }
+
+  @Test
+  public void testHandlerException() throws Exception
+  {
+    final ListenableFuture<Object> future = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new HttpResponseHandler<Object, Object>()
+        {
+          @Override
+          public ClientResponse<Object> handleResponse(HttpResponse response)
+          {
+            throw new IllegalStateException("oops");
+          }
+
+          @Override
+          public ClientResponse<Object> handleChunk(ClientResponse<Object> clientResponse, HttpChunk chunk)
+          {
+            return clientResponse;
+          }
+
+          @Override
+          public ClientResponse<Object> done(ClientResponse<Object> clientResponse)
+          {
+            return ClientResponse.finished(clientResponse.getObj());
+          }
+
+          @Override
+          public void exceptionCaught(ClientResponse<Object> clientResponse, Throwable e)
+          {
+          }
+        }
+    );
+    Assert.assertNull(future.get());
+
+    // The connection was closed and replaced.
+    final StatusResponseHolder response = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/")),
+        new StatusResponseHandler(Charsets.UTF_8)
+    ).get();
+    Assert.assertEquals(HttpResponseStatus.OK, response.getStatus());
+  }
+
+  @Test
+  public void testResponseTooLarge() throws Exception
+  {
+    final ListenableFuture<StatusResponseHolder> future = client.go(
+        new Request(HttpMethod.GET, new URL(baseUrl, "/chunked")).setMaxResponseBodySize(10),
+        new StatusResponseHandler(Charsets.UTF_8)
+    );
+
+    Throwable e = null;
+    try {
+      future.get();
+    }
+    catch (ExecutionException e1) {
+      e = e1.getCause();
+    }
+    Assert.assertTrue("ResponseTooLargeException thrown by 'get'", e instanceof ResponseTooLargeException);
+  }
+
+  @Test
+  public void testNotHttp() throws Exception
+  {
+    try (final ServerSocket echoServerSocket = new ServerSocket(0)) {
+      exec.submit(
+          new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              try (
+                  Socket clientSocket = echoServerSocket.accept();
+                  OutputStream out = clientSocket.getOutputStream();
+                  InputStream in = clientSocket.getInputStream()
+              ) {
+                int b;
+                while ((b = in.read()) != -1) {
+                  out.write(b);
+                }
+              }
+              catch (Exception e) {
+                // Suppress
+              }
+            }
+          }
+      );
+
+      final ListenableFuture<StatusResponseHolder> future = client.go(
+          new Request(HttpMethod.GET, new URL(String.format("http://localhost:%d/", echoServerSocket.getLocalPort()))),
+          new StatusResponseHandler(Charsets.UTF_8)
+      );
+
+      Throwable e = null;
+      try {
+        future.get();
+      }
+      catch (ExecutionException e1) {
+        e = e1.getCause();
+      }
+      Assert.assertTrue("IllegalArgumentException thrown by 'get'", e instanceof IllegalArgumentException);
+    }
+  }
+
+  @Test
+  public void testSilentServerTimesOut() throws Exception
+  {
+    try (final ServerSocket silentServerSocket = new ServerSocket(0)) {
+      exec.submit(
+          new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              try (
+                  Socket clientSocket = silentServerSocket.accept();
+                  InputStream in = clientSocket.getInputStream()
+              ) {
+                while (in.read() != -1) {
+                }
+              }
+              catch (Exception e) {
+                // Suppress
+              }
+            }
+          }
+      );
+
+      final ListenableFuture<StatusResponseHolder> future = client.go(
+          new Request(HttpMethod.GET, new URL(String.format("http://localhost:%d/", silentServerSocket.getLocalPort()))),
+          new StatusResponseHandler(Charsets.UTF_8),
+          new Duration(100)
+      );
+
+      Throwable e = null;
+      try {
+        future.get();
+      }
+      catch (ExecutionException e1) {
+        e = e1.getCause();
+      }
+      Assert.assertTrue("ReadTimeoutException thrown by 'get'", e instanceof ReadTimeoutException);
+    }
+  }
+
+  @Test
+  public void testUnsupportedOptionsRejected() throws Exception
+  {
+    try {
+      HttpClientInit.createNetty4Client(
+          HttpClientConfig.builder().withMaxBufferedResponseBytes(1024).build(),
+          lifecycle
+      );
+      Assert.fail("buffer budget accepted");
+    }
+    catch (IllegalArgumentException e) {
+      // Expected
+    }
+    try {
+      HttpClientInit.createNetty4Client(HttpClientConfig.builder().withHandlerExecutor(exec).build(), lifecycle);
+      Assert.fail("handler executor accepted");
+    }
+    catch (IllegalArgumentException e) {
+      // Expected
+    }
+    try {
+      client.go(
+          new Request(HttpMethod.GET, new URL(baseUrl, "/")).setHandlerExecutor(exec),
+          new StatusResponseHandler(Charsets.UTF_8)
+      );
+      Assert.fail("request handler executor accepted");
+    }
+    catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ResponseBufferBudgetTest
+{
+  @Test
+  public void testAcquireAndRelease()
+  {
+    final ResponseBufferBudget budget = new ResponseBufferBudget(100);
+    Assert.assertTrue(budget.acquire(60));
+    Assert.assertTrue(budget.acquire(40));
+    Assert.assertFalse(budget.acquire(1));
+    Assert.assertEquals(101, budget.getUsedBytes());
+
+    budget.release(101);
+    Assert.assertEquals(0, budget.getUsedBytes());
+  }
+
+  @Test
+  public void testOneExemptHolder()
+  {
+    final ResponseBufferBudget budget = new ResponseBufferBudget(100);
+    final Object holder1 = new Object();
+    final Object holder2 = new Object();
+
+    Assert.assertTrue(budget.exempt(holder1));
+    Assert.assertTrue(budget.exempt(holder1));
+    Assert.assertFalse(budget.exempt(holder2));
+
+    budget.unexempt(holder2);
+    Assert.assertFalse(budget.exempt(holder2));
+
+    budget.unexempt(holder1);
+    Assert.assertTrue(budget.exempt(holder2));
+  }
+
+  @Test
+  public void testWaitersRunWhenBytesReleased()
+  {
+    final ResponseBufferBudget budget = new ResponseBufferBudget(100);
+    final AtomicInteger runs = new AtomicInteger();
+    final Runnable waiter = new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        runs.incrementAndGet();
+      }
+    };
+
+    // Under budget, runs right away.
+    budget.whenAvailable(waiter);
+    Assert.assertEquals(1, runs.get());
+
+    // Over budget but nobody is exempt, so the waiter can take the exemption.
+    budget.acquire(150);
+    budget.whenAvailable(waiter);
+    Assert.assertEquals(2, runs.get());
+
+    // Over budget with someone exempt, so it has to wait.
+    final Object holder = new Object();
+    budget.exempt(holder);
+    budget.whenAvailable(waiter);
+    Assert.assertEquals(2, runs.get());
+
+    // Still over budget.
+    budget.release(50);
+    Assert.assertEquals(2, runs.get());
+
+    budget.release(1);
+    Assert.assertEquals(3, runs.get());
+
+    // Waiters only run once.
+    budget.release(99);
+    Assert.assertEquals(3, runs.get());
+  }
+
+  @Test
+  public void testWaitersRunWhenUnexempted()
+  {
+    final ResponseBufferBudget budget = new ResponseBufferBudget(100);
+    final AtomicInteger runs = new AtomicInteger();
+    final Object holder = new Object();
+
+    budget.acquire(150);
+    budget.exempt(holder);
+    budget.whenAvailable(
+        new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            runs.incrementAndGet();
+          }
+        }
+    );
+    Assert.assertEquals(0, runs.get());
+
+    budget.unexempt(holder);
+    Assert.assertEquals(1, runs.get());
+  }
+}
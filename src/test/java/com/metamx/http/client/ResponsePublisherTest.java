@@ -0,0 +1,183 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.base.Charsets;
+import com.metamx.common.lifecycle.Lifecycle;
+import com.metamx.http.client.response.StatusResponseHandler;
+import com.metamx.http.client.response.StatusResponseHolder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ResponsePublisherTest
+{
+  private static final int RESPONSE_SIZE = 1 << 20;
+
+  @Test
+  public void testSlowSubscriberAndCancel() throws Exception
+  {
+    final Server server = new Server(0);
+    server.setHandler(
+        new AbstractHandler()
+        {
+          @Override
+          public void handle(
+              String target,
+              org.eclipse.jetty.server.Request baseRequest,
+              HttpServletRequest request,
+              HttpServletResponse response
+          ) throws IOException
+          {
+            baseRequest.setHandled(true);
+            response.setStatus(200);
+            final OutputStream out = response.getOutputStream();
+            final byte[] buf = new byte[8192];
+            for (int i = 0; i < RESPONSE_SIZE / buf.length; i++) {
+              out.write(buf);
+            }
+          }
+        }
+    );
+    server.start();
+
+    final Lifecycle lifecycle = new Lifecycle();
+    final ExecutorService exec = Executors.newSingleThreadExecutor();
+    try {
+      final HttpClientConfig config = HttpClientConfig.builder().withNumConnections(1).build();
+      final HttpClient client = HttpClientInit.createClient(config, lifecycle);
+      final URL url = new URL(String.format("http://localhost:%d/", ((ServerConnector) server.getConnectors()[0]).getLocalPort()));
+      final ResponsePublisher publisher = new ResponsePublisher(client, new Request(HttpMethod.GET, url));
+
+      // Asks for one buffer at a time, from another thread.
+      final AtomicLong bytes = new AtomicLong(0);
+      final AtomicReference<Throwable> error = new AtomicReference<>();
+      final CountDownLatch completed = new CountDownLatch(1);
+      publisher.subscribe(
+          new Subscriber<ChannelBuffer>()
+          {
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(Subscription subscription)
+            {
+              this.subscription = subscription;
+              requestLater();
+            }
+
+            @Override
+            public void onNext(ChannelBuffer buffer)
+            {
+              bytes.addAndGet(buffer.readableBytes());
+              requestLater();
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+              error.set(t);
+              completed.countDown();
+            }
+
+            @Override
+            public void onComplete()
+            {
+              completed.countDown();
+            }
+
+            private void requestLater()
+            {
+              exec.submit(
+                  new Runnable()
+                  {
+                    @Override
+                    public void run()
+                    {
+                      subscription.request(1);
+                    }
+                  }
+              );
+            }
+          }
+      );
+
+      Assert.assertTrue(completed.await(10, TimeUnit.SECONDS));
+      Assert.assertNull(error.get());
+      Assert.assertEquals(RESPONSE_SIZE, bytes.get());
+
+      // Cancelling gives up the connection, so the pool's only connection is free for the next request.
+      final CountDownLatch received = new CountDownLatch(1);
+      publisher.subscribe(
+          new Subscriber<ChannelBuffer>()
+          {
+            @Override
+            public void onSubscribe(Subscription subscription)
+            {
+              subscription.request(1);
+            }
+
+            @Override
+            public void onNext(ChannelBuffer buffer)
+            {
+              received.countDown();
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+            }
+
+            @Override
+            public void onComplete()
+            {
+            }
+          }
+      );
+      Assert.assertTrue(received.await(10, TimeUnit.SECONDS));
+      Assert.assertEquals(
+          HttpResponseStatus.OK,
+          client.go(new Request(HttpMethod.GET, url), new StatusResponseHandler(Charsets.UTF_8))
+                .get(10, TimeUnit.SECONDS)
+                .getStatus()
+      );
+    }
+    finally {
+      exec.shutdownNow();
+      lifecycle.stop();
+      server.stop();
+    }
+  }
+}
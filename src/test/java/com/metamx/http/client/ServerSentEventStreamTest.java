@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.metamx.common.lifecycle.Lifecycle;
+import com.metamx.http.client.response.ServerSentEvent;
+import com.metamx.http.client.response.ServerSentEventResponseHandler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.joda.time.Duration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class ServerSentEventStreamTest
+{
+  @Test
+  public void testReconnectWithLastEventId() throws Exception
+  {
+    final List<String> lastEventIds = Collections.synchronizedList(Lists.<String>newArrayList());
+    final Server server = new Server(0);
+    server.setHandler(
+        new AbstractHandler()
+        {
+          @Override
+          public void handle(
+              String target,
+              org.eclipse.jetty.server.Request baseRequest,
+              HttpServletRequest request,
+              HttpServletResponse response
+          ) throws IOException
+          {
+            baseRequest.setHandled(true);
+            final String lastEventId = request.getHeader("Last-Event-ID");
+            lastEventIds.add(lastEventId);
+            final int next = lastEventId == null ? 1 : Integer.parseInt(lastEventId) + 1;
+            if (next > 3) {
+              // No more events
+              response.setStatus(204);
+              return;
+            }
+
+            // One event per connection, then hang up.
+            response.setStatus(200);
+            response.setContentType("text/event-stream");
+            final PrintWriter writer = response.getWriter();
+            writer.printf("retry: 10\nid: %d\ndata: event %d\n\n", next, next);
+            writer.flush();
+          }
+        }
+    );
+    server.start();
+
+    final Lifecycle lifecycle = new Lifecycle();
+    final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor();
+    try {
+      final HttpClient client = HttpClientInit.createClient(HttpClientConfig.builder().build(), lifecycle);
+      final URL url = new URL(String.format("http://localhost:%d/", ((ServerConnector) server.getConnectors()[0]).getLocalPort()));
+
+      final List<String> events = Collections.synchronizedList(Lists.<String>newArrayList());
+      final CountDownLatch latch = new CountDownLatch(3);
+      final ServerSentEventStream stream = new ServerSentEventStream(
+          client,
+          new Request(HttpMethod.GET, url),
+          new ServerSentEventResponseHandler.Listener()
+          {
+            @Override
+            public void onEvent(ServerSentEvent event)
+            {
+              events.add(event.getData());
+              latch.countDown();
+            }
+          },
+          exec,
+          null,
+          new Duration(10000)
+      );
+      stream.start();
+
+      Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+      Assert.assertEquals(ImmutableList.of("event 1", "event 2", "event 3"), events);
+
+      // The 204 ends the subscription.
+      for (int i = 0; i < 100 && !stream.isStopped(); i++) {
+        Thread.sleep(50);
+      }
+      Assert.assertTrue(stream.isStopped());
+      Assert.assertEquals("3", stream.getLastEventId());
+      Assert.assertEquals(Lists.newArrayList(null, "1", "2", "3"), lastEventIds);
+    }
+    finally {
+      exec.shutdownNow();
+      lifecycle.stop();
+      server.stop();
+    }
+  }
+}
@@ -17,15 +17,19 @@
 package com.metamx.http.client.io;
 
 import com.metamx.common.logger.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -105,6 +109,28 @@ public class AppendableByteArrayInputStreamTest
     Assert.assertArrayEquals(new byte[]{3, 4, 5, 6, 7}, readBytes);
   }
 
+  @Test
+  public void testChannelBuffers() throws Exception
+  {
+    AppendableByteArrayInputStream in = new AppendableByteArrayInputStream();
+
+    final ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(new byte[]{9, 0, 1, 2, 9});
+    buffer.setIndex(1, 4);
+    in.add(buffer);
+    in.add(ChannelBuffers.EMPTY_BUFFER);
+    in.add(ChannelBuffers.wrappedBuffer(new byte[]{3, 4}));
+    in.done();
+
+    // Added buffers are left alone.
+    Assert.assertEquals(1, buffer.readerIndex());
+    Assert.assertEquals(3, buffer.readableBytes());
+
+    byte[] readBytes = new byte[6];
+    Assert.assertEquals(5, in.read(readBytes));
+    Assert.assertArrayEquals(new byte[]{0, 1, 2, 3, 4, 0}, readBytes);
+    Assert.assertEquals(-1, in.read(readBytes));
+  }
+
   @Test
   public void testReadLessThanWritten() throws Exception
   {
@@ -253,4 +279,93 @@ public class AppendableByteArrayInputStreamTest
     }
 
   }
+
+  @Test
+  public void testConcurrentReadsAndWrites() throws Exception
+  {
+    final int numBytes = 1 << 20;
+    final AtomicLong consumed = new AtomicLong();
+    final AppendableByteArrayInputStream in = new AppendableByteArrayInputStream()
+    {
+      @Override
+      protected void bytesConsumed(long numBytes)
+      {
+        consumed.addAndGet(numBytes);
+      }
+    };
+
+    final Future<?> producer = Executors.newSingleThreadExecutor().submit(
+        new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            final Random random = new Random(1234);
+            int written = 0;
+            while (written < numBytes) {
+              final byte[] bytes = new byte[Math.min(random.nextInt(1000), numBytes - written)];
+              for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) (written + i);
+              }
+              in.add(bytes);
+              written += bytes.length;
+            }
+            in.done();
+          }
+        }
+    );
+
+    final Random random = new Random(5678);
+    final byte[] buf = new byte[4096];
+    int read = 0;
+    while (true) {
+      if (random.nextBoolean()) {
+        final int b = in.read();
+        if (b == -1) {
+          break;
+        }
+        Assert.assertEquals((byte) read, (byte) b);
+        read++;
+      } else {
+        final int n = in.read(buf, 0, 1 + random.nextInt(buf.length));
+        if (n == -1) {
+          break;
+        }
+        for (int i = 0; i < n; i++) {
+          Assert.assertEquals((byte) (read + i), buf[i]);
+        }
+        read += n;
+      }
+    }
+
+    producer.get();
+    Assert.assertEquals(numBytes, read);
+    Assert.assertEquals(numBytes, consumed.get());
+  }
+
+  @Test
+  public void testCloseDiscards() throws Exception
+  {
+    final AtomicLong consumed = new AtomicLong();
+    final AppendableByteArrayInputStream in = new AppendableByteArrayInputStream()
+    {
+      @Override
+      protected void bytesConsumed(long numBytes)
+      {
+        consumed.addAndGet(numBytes);
+      }
+    };
+
+    in.add(new byte[]{0, 1, 2});
+    in.add(new byte[]{3, 4});
+    Assert.assertEquals(0, in.read());
+    in.close();
+    Assert.assertEquals(5, consumed.get());
+    Assert.assertEquals(0, in.available());
+    Assert.assertEquals(-1, in.read());
+
+    in.add(new byte[]{5, 6});
+    Assert.assertEquals(7, consumed.get());
+    Assert.assertEquals(-1, in.read());
+  }
 }
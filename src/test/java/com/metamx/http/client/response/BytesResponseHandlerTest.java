@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BytesResponseHandlerTest
+{
+  @Test
+  public void testChunkedResponse()
+  {
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setChunked(true);
+    response.headers().set("X-Test", "yes");
+
+    final byte[] chunk1 = new byte[]{0, 1, 2};
+    final byte[] chunk2 = new byte[]{3, 4};
+
+    final BytesResponseHandler handler = new BytesResponseHandler();
+    ClientResponse<BytesResponseHolder> clientResponse = handler.handleResponse(response);
+    clientResponse = handler.handleChunk(clientResponse, new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(chunk1)));
+    clientResponse = handler.handleChunk(clientResponse, new DefaultHttpChunk(ChannelBuffers.EMPTY_BUFFER));
+    clientResponse = handler.handleChunk(clientResponse, new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(chunk2)));
+    final BytesResponseHolder holder = handler.done(clientResponse).getObj();
+
+    Assert.assertEquals(HttpResponseStatus.OK, holder.getStatus());
+    Assert.assertEquals("yes", holder.getHeaders().get("X-Test"));
+    Assert.assertEquals(5, holder.getContentLength());
+
+    final ChannelBuffer content = holder.getContent();
+    final byte[] bytes = new byte[content.readableBytes()];
+    content.readBytes(bytes);
+    Assert.assertArrayEquals(new byte[]{0, 1, 2, 3, 4}, bytes);
+    // Each call gets its own indexes.
+    Assert.assertEquals(5, holder.getContent().readableBytes());
+
+    // The views share memory with the chunks.
+    final ByteBuffer[] byteBuffers = holder.getByteBuffers();
+    Assert.assertEquals(2, byteBuffers.length);
+    Assert.assertTrue(byteBuffers[0].isReadOnly());
+    chunk2[0] = 9;
+    Assert.assertEquals(9, byteBuffers[1].get(0));
+    Assert.assertEquals(9, holder.getContent().getByte(3));
+  }
+
+  @Test
+  public void testUnchunkedResponse()
+  {
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setContent(ChannelBuffers.copiedBuffer("hello", Charsets.UTF_8));
+
+    final BytesResponseHandler handler = new BytesResponseHandler();
+    final BytesResponseHolder holder = handler.done(handler.handleResponse(response)).getObj();
+    Assert.assertEquals("hello", holder.getContent().toString(Charsets.UTF_8));
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DelimitedRecordResponseHandlerTest
+{
+  @Test
+  public void testEverySplit()
+  {
+    final byte[] bytes = "{\"a\":1}\n\nsecond line\r\nthird\nlast".getBytes(Charsets.UTF_8);
+    final List<String> expected = ImmutableList.of("{\"a\":1}", "", "second line", "third", "last");
+
+    for (int i = 0; i <= bytes.length; i++) {
+      for (int j = i; j <= bytes.length; j += 3) {
+        Assert.assertEquals(
+            expected,
+            parse(
+                Arrays.copyOfRange(bytes, 0, i),
+                Arrays.copyOfRange(bytes, i, j),
+                Arrays.copyOfRange(bytes, j, bytes.length)
+            )
+        );
+      }
+    }
+  }
+
+  @Test
+  public void testTrailingDelimiter()
+  {
+    Assert.assertEquals(ImmutableList.of("a", "b"), parse("a\nb\n".getBytes(Charsets.UTF_8)));
+  }
+
+  @Test
+  public void testEverythingReleased()
+  {
+    final AtomicLong released = new AtomicLong();
+    final DelimitedRecordResponseHandler handler = new DelimitedRecordResponseHandler(
+        new DelimitedRecordResponseHandler.Callback()
+        {
+          @Override
+          public void record(ChannelBuffer record)
+          {
+          }
+        }
+    );
+
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setChunked(true);
+    ClientResponse<Long> clientResponse = handler.handleResponse(response, new TrafficCop()
+    {
+      @Override
+      public void release(long bytes)
+      {
+        released.addAndGet(bytes);
+      }
+
+      @Override
+      public void pause()
+      {
+      }
+
+      @Override
+      public void resume()
+      {
+      }
+    });
+    clientResponse = handler.handleChunk(clientResponse, chunk("abc\nde"));
+    Assert.assertEquals(4, released.get());
+    clientResponse = handler.handleChunk(clientResponse, chunk("f\ng"));
+    Assert.assertEquals(8, released.get());
+    Assert.assertEquals(3L, (long) handler.done(clientResponse).getObj());
+    Assert.assertEquals(9, released.get());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testRecordTooLong()
+  {
+    final DelimitedRecordResponseHandler handler = new DelimitedRecordResponseHandler(
+        (byte) '\n',
+        4,
+        new DelimitedRecordResponseHandler.Callback()
+        {
+          @Override
+          public void record(ChannelBuffer record)
+          {
+          }
+        }
+    );
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setChunked(true);
+    ClientResponse<Long> clientResponse = handler.handleResponse(response);
+    clientResponse = handler.handleChunk(clientResponse, chunk("abcd\nab"));
+    handler.handleChunk(clientResponse, chunk("cde"));
+  }
+
+  private static DefaultHttpChunk chunk(String content)
+  {
+    return new DefaultHttpChunk(ChannelBuffers.copiedBuffer(content, Charsets.UTF_8));
+  }
+
+  private static List<String> parse(byte[]... chunks)
+  {
+    final List<String> records = Lists.newArrayList();
+    final DelimitedRecordResponseHandler handler = new DelimitedRecordResponseHandler(
+        new DelimitedRecordResponseHandler.Callback()
+        {
+          @Override
+          public void record(ChannelBuffer record)
+          {
+            records.add(record.toString(Charsets.UTF_8));
+          }
+        }
+    );
+
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setChunked(true);
+    ClientResponse<Long> clientResponse = handler.handleResponse(response);
+    for (byte[] chunk : chunks) {
+      clientResponse = handler.handleChunk(clientResponse, new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(chunk)));
+    }
+    final long numRecords = handler.done(clientResponse).getObj();
+    Assert.assertEquals(records.size(), numRecords);
+    return records;
+  }
+}
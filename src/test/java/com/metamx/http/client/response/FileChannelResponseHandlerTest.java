@@ -0,0 +1,148 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FileChannelResponseHandlerTest
+{
+  private File file;
+  private byte[] bytes;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    file = File.createTempFile("download", ".bin");
+    bytes = new byte[100000];
+    new Random(1234L).nextBytes(bytes);
+  }
+
+  @After
+  public void tearDown()
+  {
+    file.delete();
+  }
+
+  @Test
+  public void testChunkedToFile() throws Exception
+  {
+    final FileChannelResponseHandler handler = new FileChannelResponseHandler(file);
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setChunked(true);
+    // Overstated Content-Length: the preallocated file should be truncated to what was actually written.
+    HttpHeaders.setContentLength(response, bytes.length * 2);
+
+    ClientResponse<FileChannel> clientResponse = handler.handleResponse(response);
+    for (int i = 0; i < bytes.length; i += 7919) {
+      final int len = Math.min(7919, bytes.length - i);
+      clientResponse = handler.handleChunk(
+          clientResponse,
+          new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(bytes, i, len))
+      );
+    }
+    final ClientResponse<Long> finalResponse = handler.done(clientResponse);
+
+    Assert.assertTrue(finalResponse.isFinished());
+    Assert.assertEquals(bytes.length, finalResponse.getObj().longValue());
+    Assert.assertArrayEquals(bytes, Files.toByteArray(file));
+  }
+
+  @Test
+  public void testSingleResponseToChannel() throws Exception
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      final FileChannel channel = raf.getChannel();
+      channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+
+      final FileChannelResponseHandler handler = new FileChannelResponseHandler(channel);
+      final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+      response.setContent(ChannelBuffers.wrappedBuffer(bytes));
+
+      final ClientResponse<Long> finalResponse = handler.done(handler.handleResponse(response));
+
+      Assert.assertEquals(bytes.length, finalResponse.getObj().longValue());
+      Assert.assertTrue("caller's channel is left open", channel.isOpen());
+    }
+
+    final byte[] written = Files.toByteArray(file);
+    Assert.assertArrayEquals(new byte[]{1, 2, 3}, Arrays.copyOfRange(written, 0, 3));
+    Assert.assertArrayEquals(bytes, Arrays.copyOfRange(written, 3, written.length));
+  }
+
+  @Test
+  public void testErrorResponseNotWritten() throws Exception
+  {
+    Files.write(bytes, file);
+
+    final AtomicLong released = new AtomicLong();
+    final FileChannelResponseHandler handler = new FileChannelResponseHandler(file);
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+    response.setChunked(true);
+
+    ClientResponse<FileChannel> clientResponse = handler.handleResponse(
+        response,
+        new TrafficCop()
+        {
+          @Override
+          public void release(long bytes)
+          {
+            released.addAndGet(bytes);
+          }
+
+          @Override
+          public void pause()
+          {
+          }
+
+          @Override
+          public void resume()
+          {
+          }
+        }
+    );
+    clientResponse = handler.handleChunk(
+        clientResponse,
+        new DefaultHttpChunk(ChannelBuffers.copiedBuffer("not found", Charsets.UTF_8))
+    );
+    final ClientResponse<Long> finalResponse = handler.done(clientResponse);
+
+    Assert.assertEquals(HttpResponseStatus.NOT_FOUND, handler.getStatus());
+    Assert.assertEquals(0, finalResponse.getObj().longValue());
+    Assert.assertEquals("not found".length(), released.get());
+    Assert.assertArrayEquals("file is untouched", bytes, Files.toByteArray(file));
+  }
+}
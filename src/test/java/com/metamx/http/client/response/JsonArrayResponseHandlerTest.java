@@ -0,0 +1,166 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class JsonArrayResponseHandlerTest
+{
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final String JSON =
+      " [ {\"a\": [1, {\"b\": \"]}\\\"\"}]}, \"x,y\", 12.5e3,true , null,[], {}, \"café\"] \n";
+
+  @Test
+  public void testEverySplit() throws Exception
+  {
+    final byte[] bytes = JSON.getBytes(Charsets.UTF_8);
+    final List<Object> expected = MAPPER.readValue(bytes, new TypeReference<List<Object>>() {});
+
+    // Split the body into two chunks at every possible point, and three at a few.
+    for (int i = 0; i <= bytes.length; i++) {
+      Assert.assertEquals(expected, parse(Arrays.copyOfRange(bytes, 0, i), Arrays.copyOfRange(bytes, i, bytes.length)));
+    }
+    for (int i = 0; i < bytes.length; i += 7) {
+      Assert.assertEquals(
+          expected,
+          parse(
+              Arrays.copyOfRange(bytes, 0, i / 2),
+              Arrays.copyOfRange(bytes, i / 2, i),
+              Arrays.copyOfRange(bytes, i, bytes.length)
+          )
+      );
+    }
+  }
+
+  @Test
+  public void testTypedElements() throws Exception
+  {
+    final List<Map<String, Integer>> elements = Lists.newArrayList();
+    final JsonArrayResponseHandler<Map<String, Integer>> handler = new JsonArrayResponseHandler<>(
+        MAPPER,
+        new TypeReference<Map<String, Integer>>() {},
+        new JsonArrayResponseHandler.Callback<Map<String, Integer>>()
+        {
+          @Override
+          public void element(Map<String, Integer> element)
+          {
+            elements.add(element);
+          }
+        }
+    );
+
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setContent(ChannelBuffers.copiedBuffer("[{\"x\": 1}, {\"y\": 2}]", Charsets.UTF_8));
+    Assert.assertEquals(2L, (long) handler.done(handler.handleResponse(response)).getObj());
+    Assert.assertEquals(
+        ImmutableList.of(ImmutableMap.of("x", 1), ImmutableMap.of("y", 2)),
+        elements
+    );
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testTruncated()
+  {
+    parse("[1, 2".getBytes(Charsets.UTF_8));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNotAnArray()
+  {
+    parse("{\"a\": 1}".getBytes(Charsets.UTF_8));
+  }
+
+  @Test
+  public void testEmptyElements()
+  {
+    Assert.assertEquals(ImmutableList.of(), parse("[ ]".getBytes(Charsets.UTF_8)));
+    for (String json : ImmutableList.of("[1,,2]", "[1, 2,]", "[,1]", "[,]", "[1 2]", "[{} {}]")) {
+      try {
+        parse(json.getBytes(Charsets.UTF_8));
+        Assert.fail(json);
+      }
+      catch (IllegalStateException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testErrorResponse()
+  {
+    final JsonArrayResponseHandler<Object> handler = new JsonArrayResponseHandler<>(
+        MAPPER,
+        Object.class,
+        new JsonArrayResponseHandler.Callback<Object>()
+        {
+          @Override
+          public void element(Object element)
+          {
+            Assert.fail("Unexpected element");
+          }
+        }
+    );
+
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+    response.setContent(ChannelBuffers.copiedBuffer("[\"not\", \"found\"]", Charsets.UTF_8));
+    Assert.assertEquals(0L, (long) handler.done(handler.handleResponse(response)).getObj());
+    Assert.assertEquals(HttpResponseStatus.NOT_FOUND, handler.getStatus());
+  }
+
+  private static List<Object> parse(byte[]... chunks)
+  {
+    final List<Object> elements = Lists.newArrayList();
+    final JsonArrayResponseHandler<Object> handler = new JsonArrayResponseHandler<>(
+        MAPPER,
+        Object.class,
+        new JsonArrayResponseHandler.Callback<Object>()
+        {
+          @Override
+          public void element(Object element)
+          {
+            elements.add(element);
+          }
+        }
+    );
+
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setChunked(true);
+    ClientResponse<Long> clientResponse = handler.handleResponse(response);
+    for (byte[] chunk : chunks) {
+      clientResponse = handler.handleChunk(clientResponse, new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(chunk)));
+    }
+    Assert.assertEquals(elements.size(), (long) handler.done(clientResponse).getObj());
+    return elements;
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+public class PublisherResponseHandlerTest
+{
+  @Test
+  public void testDemandDrivesReads()
+  {
+    final RecordingTrafficCop trafficCop = new RecordingTrafficCop();
+    final RecordingSubscriber subscriber = new RecordingSubscriber();
+    final PublisherResponseHandler handler = new PublisherResponseHandler();
+
+    ClientResponse<HttpResponse> clientResponse = handler.handleResponse(chunkedResponse(), trafficCop);
+    Assert.assertTrue(clientResponse.isFinished());
+    Assert.assertTrue("Nobody to read for yet", trafficCop.paused);
+
+    handler.subscribe(subscriber);
+    Assert.assertTrue(trafficCop.paused);
+
+    subscriber.subscription.request(1);
+    Assert.assertFalse(trafficCop.paused);
+
+    clientResponse = handler.handleChunk(clientResponse, chunk("a"));
+    Assert.assertEquals(Lists.newArrayList("a"), subscriber.elements);
+    Assert.assertTrue("Demand used up", trafficCop.paused);
+    Assert.assertEquals(1, trafficCop.released);
+
+    // Already read before the pause took effect; held until requested.
+    clientResponse = handler.handleChunk(clientResponse, chunk("bc"));
+    Assert.assertEquals(1, subscriber.elements.size());
+    Assert.assertEquals(1, trafficCop.released);
+
+    handler.done(clientResponse);
+    Assert.assertFalse(subscriber.completed);
+
+    subscriber.subscription.request(Long.MAX_VALUE);
+    Assert.assertEquals(Lists.newArrayList("a", "bc"), subscriber.elements);
+    Assert.assertTrue(subscriber.completed);
+    Assert.assertEquals(3, trafficCop.released);
+    Assert.assertFalse(trafficCop.paused);
+  }
+
+  @Test
+  public void testRequestFromOnNext()
+  {
+    final PublisherResponseHandler handler = new PublisherResponseHandler();
+    final RecordingSubscriber subscriber = new RecordingSubscriber()
+    {
+      @Override
+      public void onNext(ChannelBuffer buffer)
+      {
+        super.onNext(buffer);
+        subscription.request(1);
+      }
+    };
+    handler.subscribe(subscriber);
+    subscriber.subscription.request(1);
+
+    ClientResponse<HttpResponse> clientResponse = handler.handleResponse(chunkedResponse());
+    for (String s : new String[]{"x", "y", "z"}) {
+      clientResponse = handler.handleChunk(clientResponse, chunk(s));
+    }
+    handler.done(clientResponse);
+
+    Assert.assertEquals(Lists.newArrayList("x", "y", "z"), subscriber.elements);
+    Assert.assertTrue(subscriber.completed);
+  }
+
+  @Test
+  public void testCancelDrainsThenCloses()
+  {
+    final RecordingTrafficCop trafficCop = new RecordingTrafficCop();
+    final RecordingSubscriber subscriber = new RecordingSubscriber();
+    final PublisherResponseHandler handler = new PublisherResponseHandler(4);
+    handler.subscribe(subscriber);
+
+    ClientResponse<HttpResponse> clientResponse = handler.handleResponse(chunkedResponse(), trafficCop);
+    clientResponse = handler.handleChunk(clientResponse, chunk("ab"));
+    Assert.assertTrue(trafficCop.paused);
+
+    subscriber.subscription.cancel();
+    Assert.assertFalse("Draining", trafficCop.paused);
+    Assert.assertEquals(2, trafficCop.released);
+
+    clientResponse = handler.handleChunk(clientResponse, chunk("cdef"));
+    Assert.assertEquals(6, trafficCop.released);
+    try {
+      handler.handleChunk(clientResponse, chunk("g"));
+      Assert.fail("Expected CancellationException");
+    }
+    catch (CancellationException e) {
+      // Expected
+    }
+
+    handler.exceptionCaught(clientResponse, new RuntimeException("Channel closed"));
+    Assert.assertTrue(subscriber.elements.isEmpty());
+    Assert.assertNull(subscriber.error);
+    Assert.assertFalse(subscriber.completed);
+  }
+
+  @Test
+  public void testErrors()
+  {
+    final PublisherResponseHandler handler = new PublisherResponseHandler();
+    final RecordingSubscriber subscriber = new RecordingSubscriber();
+    handler.subscribe(subscriber);
+    subscriber.subscription.request(1);
+
+    final RecordingSubscriber second = new RecordingSubscriber();
+    handler.subscribe(second);
+    Assert.assertTrue(second.error instanceof IllegalStateException);
+
+    final ClientResponse<HttpResponse> clientResponse = handler.handleResponse(chunkedResponse());
+    handler.handleChunk(clientResponse, chunk("a"));
+    handler.handleChunk(clientResponse, chunk("b"));
+
+    final Exception e = new RuntimeException("Read timed out");
+    handler.exceptionCaught(clientResponse, e);
+    Assert.assertEquals(Lists.newArrayList("a"), subscriber.elements);
+    Assert.assertSame(e, subscriber.error);
+
+    final PublisherResponseHandler handler2 = new PublisherResponseHandler();
+    final RecordingSubscriber subscriber2 = new RecordingSubscriber();
+    handler2.subscribe(subscriber2);
+    subscriber2.subscription.request(0);
+    Assert.assertTrue(subscriber2.error instanceof IllegalArgumentException);
+  }
+
+  private static HttpResponse chunkedResponse()
+  {
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setChunked(true);
+    return response;
+  }
+
+  private static DefaultHttpChunk chunk(String s)
+  {
+    return new DefaultHttpChunk(ChannelBuffers.copiedBuffer(s, Charsets.UTF_8));
+  }
+
+  private static class RecordingTrafficCop implements TrafficCop
+  {
+    boolean paused = false;
+    long released = 0;
+
+    @Override
+    public void release(long bytes)
+    {
+      released += bytes;
+    }
+
+    @Override
+    public void pause()
+    {
+      Assert.assertFalse("Already paused", paused);
+      paused = true;
+    }
+
+    @Override
+    public void resume()
+    {
+      Assert.assertTrue("Not paused", paused);
+      paused = false;
+    }
+  }
+
+  private static class RecordingSubscriber implements Subscriber<ChannelBuffer>
+  {
+    final List<String> elements = Lists.newArrayList();
+    Subscription subscription = null;
+    Throwable error = null;
+    boolean completed = false;
+
+    @Override
+    public void onSubscribe(Subscription subscription)
+    {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(ChannelBuffer buffer)
+    {
+      elements.add(buffer.toString(Charsets.UTF_8));
+    }
+
+    @Override
+    public void onError(Throwable t)
+    {
+      Assert.assertNull(error);
+      error = t;
+    }
+
+    @Override
+    public void onComplete()
+    {
+      Assert.assertFalse(completed);
+      completed = true;
+    }
+  }
+}
@@ -34,6 +34,8 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SequenceInputStreamResponseHandlerTest
 {
@@ -110,6 +112,57 @@ public class SequenceInputStreamResponseHandlerTest
   {
   }
 
+  @Test
+  public void testWatermarks() throws IOException
+  {
+    final AtomicLong released = new AtomicLong();
+    final AtomicBoolean paused = new AtomicBoolean();
+    final TrafficCop trafficCop = new TrafficCop()
+    {
+      @Override
+      public void release(long bytes)
+      {
+        released.addAndGet(bytes);
+      }
+
+      @Override
+      public void pause()
+      {
+        paused.set(true);
+      }
+
+      @Override
+      public void resume()
+      {
+        paused.set(false);
+      }
+    };
+
+    SequenceInputStreamResponseHandler responseHandler = new SequenceInputStreamResponseHandler(300, 100);
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setChunked(true);
+    ClientResponse<InputStream> clientResponse = responseHandler.handleResponse(response, trafficCop);
+    for (int i = 0; i < 3; i++) {
+      Assert.assertFalse(paused.get());
+      clientResponse = responseHandler.handleChunk(
+          clientResponse,
+          new DefaultHttpChunk(new BigEndianHeapChannelBuffer(new byte[100]))
+      );
+    }
+    Assert.assertTrue(paused.get());
+    clientResponse = responseHandler.done(clientResponse);
+
+    final InputStream stream = clientResponse.getObj();
+    fillBuff(stream, new byte[150]);
+    Assert.assertTrue(paused.get());
+    fillBuff(stream, new byte[50]);
+    Assert.assertFalse(paused.get());
+    Assert.assertEquals(200, released.get());
+
+    stream.close();
+    Assert.assertEquals(300, released.get());
+  }
+
   @Test(expected = TesterException.class)
   public void testExceptionalSingleStream() throws IOException
   {
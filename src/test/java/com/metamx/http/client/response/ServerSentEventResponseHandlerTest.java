@@ -0,0 +1,147 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class ServerSentEventResponseHandlerTest
+{
+  @Test
+  public void testEvents()
+  {
+    final List<String> events = Lists.newArrayList();
+    final ServerSentEventResponseHandler handler = new ServerSentEventResponseHandler(
+        new ServerSentEventResponseHandler.Listener()
+        {
+          @Override
+          public void onEvent(ServerSentEvent event)
+          {
+            events.add(String.format("%s|%s|%s", event.getId(), event.getEvent(), event.getData()));
+          }
+        },
+        "0"
+    );
+
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setChunked(true);
+    ClientResponse<Long> clientResponse = handler.handleResponse(response);
+    for (String chunk : ImmutableList.of(
+        ": keepalive\n\ndata: first\n",
+        "\nid: 7\r\nevent: update\r\ndata:two\r\ndata:  lines\r\n",
+        "\r\nretry: 2500\nfield without colon\nid\n\ndata: last wins\n",
+        "\ndata: never terminated\n"
+    )) {
+      clientResponse = handler.handleChunk(
+          clientResponse,
+          new DefaultHttpChunk(ChannelBuffers.copiedBuffer(chunk, Charsets.UTF_8))
+      );
+    }
+
+    Assert.assertEquals(3L, (long) handler.done(clientResponse).getObj());
+    Assert.assertEquals(
+        ImmutableList.of("0|message|first", "7|update|two\n lines", "|message|last wins"),
+        events
+    );
+    Assert.assertEquals("", handler.getLastEventId());
+    Assert.assertEquals(2500, handler.getRetryMillis());
+  }
+
+  @Test
+  public void testErrorResponse()
+  {
+    final ServerSentEventResponseHandler handler = new ServerSentEventResponseHandler(
+        new ServerSentEventResponseHandler.Listener()
+        {
+          @Override
+          public void onEvent(ServerSentEvent event)
+          {
+            Assert.fail("Unexpected event");
+          }
+        }
+    );
+
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+    response.setContent(ChannelBuffers.copiedBuffer("data: not found\n\n", Charsets.UTF_8));
+    Assert.assertEquals(0L, (long) handler.done(handler.handleResponse(response)).getObj());
+    Assert.assertEquals(HttpResponseStatus.NOT_FOUND, handler.getStatus());
+  }
+
+  @Test
+  public void testCutOffEventKeepsLastEventId()
+  {
+    final List<String> events = Lists.newArrayList();
+    final ServerSentEventResponseHandler handler = newHandler(events);
+
+    Assert.assertEquals(1L, (long) stream(handler, "id: 1\ndata: one\n\nid: 2\ndata: tw").getObj());
+    Assert.assertEquals(ImmutableList.of("1|message|one"), events);
+    // Event 2 was never dispatched, so a reconnect must ask for it again.
+    Assert.assertEquals("1", handler.getLastEventId());
+  }
+
+  @Test
+  public void testByteOrderMarkAndCarriageReturns()
+  {
+    final List<String> events = Lists.newArrayList();
+    final ServerSentEventResponseHandler handler = newHandler(events);
+
+    Assert.assertEquals(
+        3L,
+        (long) stream(handler, "\uFEFFid: 1\rdata: one\r", "\rdata: two\r", "\n\r", "\ndata: three\r\r").getObj()
+    );
+    Assert.assertEquals(ImmutableList.of("1|message|one", "1|message|two", "1|message|three"), events);
+  }
+
+  private static ServerSentEventResponseHandler newHandler(final List<String> events)
+  {
+    return new ServerSentEventResponseHandler(
+        new ServerSentEventResponseHandler.Listener()
+        {
+          @Override
+          public void onEvent(ServerSentEvent event)
+          {
+            events.add(String.format("%s|%s|%s", event.getId(), event.getEvent(), event.getData()));
+          }
+        }
+    );
+  }
+
+  private static ClientResponse<Long> stream(ServerSentEventResponseHandler handler, String... chunks)
+  {
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setChunked(true);
+    ClientResponse<Long> clientResponse = handler.handleResponse(response);
+    for (String chunk : chunks) {
+      clientResponse = handler.handleChunk(
+          clientResponse,
+          new DefaultHttpChunk(ChannelBuffers.copiedBuffer(chunk, Charsets.UTF_8))
+      );
+    }
+    return handler.done(clientResponse);
+  }
+}
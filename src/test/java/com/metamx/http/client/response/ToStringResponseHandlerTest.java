@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011 - 2015 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.http.client.response;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ToStringResponseHandlerTest
+{
+  @Test
+  public void testCharacterSplitAcrossChunks()
+  {
+    final String expected = "price: €100, über";
+    final byte[] bytes = expected.getBytes(Charsets.UTF_8);
+    final int split = expected.indexOf('€') + 1; // In the middle of the euro sign
+
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setChunked(true);
+    HttpHeaders.setContentLength(response, bytes.length);
+
+    final ToStringResponseHandler handler = new ToStringResponseHandler(Charsets.UTF_8);
+    ClientResponse<StringBuilder> clientResponse = handler.handleResponse(response);
+    clientResponse = handler.handleChunk(
+        clientResponse,
+        new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(Arrays.copyOfRange(bytes, 0, split)))
+    );
+    clientResponse = handler.handleChunk(
+        clientResponse,
+        new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(Arrays.copyOfRange(bytes, split, bytes.length)))
+    );
+
+    // Presized from Content-Length, so it never had to grow.
+    Assert.assertEquals(bytes.length, clientResponse.getObj().capacity());
+    Assert.assertEquals(expected, handler.done(clientResponse).getObj());
+  }
+
+  @Test
+  public void testIncompleteCharacterAtEnd()
+  {
+    final byte[] euro = "€".getBytes(Charsets.UTF_8);
+
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setChunked(true);
+
+    final ToStringResponseHandler handler = new ToStringResponseHandler(Charsets.UTF_8);
+    ClientResponse<StringBuilder> clientResponse = handler.handleResponse(response);
+    clientResponse = handler.handleChunk(
+        clientResponse,
+        new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(Arrays.copyOfRange(euro, 0, 2)))
+    );
+
+    Assert.assertEquals("\uFFFD", handler.done(clientResponse).getObj());
+  }
+
+  @Test
+  public void testUnchunkedResponse()
+  {
+    final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+    response.setContent(ChannelBuffers.copiedBuffer("not here", Charsets.UTF_8));
+
+    final StatusResponseHandler handler = new StatusResponseHandler(Charsets.UTF_8);
+    final ClientResponse<StatusResponseHolder> clientResponse = handler.handleResponse(response);
+    Assert.assertSame(response.getContent(), clientResponse.getObj().getAccumulator().getContent());
+
+    final StatusResponseHolder holder = handler.done(clientResponse).getObj();
+    Assert.assertEquals(HttpResponseStatus.NOT_FOUND, holder.getStatus());
+    Assert.assertEquals("not here", holder.getContent());
+  }
+}